@@ -0,0 +1,138 @@
+import util.Options;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compiles many sources in one JVM, several at a time, each as Main would compile it on its own, e.g.
+ *   java -Dminic.O=2 -cp bin Batch -gen out tests/gen part-4/tests
+ *
+ * Each input is a source file, a directory whose .c files are all compiled, subdirectories included, or @list
+ * for the sources listed in the file list, one per line. A source gets the output file Main would be given,
+ * outputdir/<name>.s, only written by -gen, where <name> is its path within the directory it was found in,
+ * or its file name, less .c. What Main would have printed goes to outputdir/<name>.log, and the status Main
+ * would have exited with is reported as a line "<status> <source>", in the order of the inputs.
+ * Batch exits with 0 if every source passed, 1 otherwise.
+ *
+ * Options.jobs sources are compiled at a time, and their functions one after the other.
+ */
+public class Batch {
+    private static void usage() {
+        System.out.println("Usage: java "+Batch.class.getSimpleName()+" pass outputdir input...");
+        System.out.println("where pass is either: -lexer, -parser, -ast, -sem or -gen");
+        System.out.println("and each input is a source file, a directory of them, or @list for those listed in list");
+        System.exit(-1);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3 || !Driver.PASSES.contains(args[0]))
+            usage();
+        final String pass = args[0];
+        File outputDir = new File(args[1]);
+
+        List<File> sources = new ArrayList<File>();
+        List<String> names = new ArrayList<String>();
+        for (int i = 2; i < args.length; i++) addSources(args[i], sources, names);
+
+        // Sources are compiled concurrently rather than their functions.
+        int threads = Math.max(1, Options.jobs);
+        Driver.captureOutput(System.out, System.err);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> statuses = new ArrayList<Future<Integer>>();
+        Set<String> taken = new HashSet<String>();
+        for (int i = 0; i < sources.size(); i++) {
+            final File source = sources.get(i);
+            String name = names.get(i);
+            // Sources of the same name in different inputs get outputs of their own.
+            for (int n = 2; !taken.add(name); n++) name = names.get(i) + "-" + n;
+            final File output = new File(outputDir, name + ".s");
+            final File log    = new File(outputDir, name + ".log");
+            if (output.getParentFile() != null) output.getParentFile().mkdirs();
+            statuses.add(pool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    OutputStream logStream = new BufferedOutputStream(new FileOutputStream(log));
+                    try {
+                        return Driver.compile(pass, source, output, logStream, 1);
+                    } finally {
+                        logStream.close();
+                    }
+                }
+            }));
+        }
+        pool.shutdown();
+
+        boolean passed = true;
+        for (int i = 0; i < sources.size(); i++) {
+            int status;
+            try {
+                status = statuses.get(i).get();
+            } catch (ExecutionException e) {
+                // The log could not be written.
+                e.getCause().printStackTrace();
+                status = Driver.CRASH;
+            }
+            System.out.println(status + " " + sources.get(i));
+            passed &= status == Driver.PASS;
+        }
+        Driver.finish();
+        System.exit(passed ? 0 : 1);
+    }
+
+    /* Adds the sources input stands for, and the names of their outputs. */
+    private static void addSources(String input, List<File> sources, List<String> names) throws IOException {
+        if (input.startsWith("@")) {
+            BufferedReader list = new BufferedReader(new FileReader(input.substring(1)));
+            try {
+                for (String line = list.readLine(); line != null; line = list.readLine()) {
+                    line = line.trim();
+                    if (!line.isEmpty()) addSources(line, sources, names);
+                }
+            } finally {
+                list.close();
+            }
+            return;
+        }
+        File file = new File(input);
+        if (!file.isDirectory()) {
+            sources.add(file);
+            names.add(stripExtension(file.getName()));
+            return;
+        }
+        addDirectory(file, "", sources, names);
+    }
+
+    private static void addDirectory(File dir, String prefix, List<File> sources, List<String> names) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File file: files) {
+            if (file.isDirectory()) {
+                addDirectory(file, prefix + file.getName() + File.separator, sources, names);
+            } else if (file.getName().endsWith(".c")) {
+                sources.add(file);
+                names.add(prefix + stripExtension(file.getName()));
+            }
+        }
+    }
+
+    private static String stripExtension(String name) {
+        return name.endsWith(".c") ? name.substring(0, name.length() - 2) : name;
+    }
+}
@@ -0,0 +1,54 @@
+import util.Options;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * A compiler server, compiling what it is asked to over stdin and stdout one request after the other, e.g. for
+ * an editor, so the JVM stays warm and caches stay filled between compilations:
+ *   java -Dminic.O=2 -cp bin Daemon
+ *
+ * A request is a line holding Main's arguments, pass inputfile outputfile, separated by tabs if there are any,
+ * so paths may hold spaces, and by spaces otherwise. The reply is a line "<status> <length>", with the status
+ * Main would have exited with, followed by the length bytes Main would have printed, e.g. the semantic errors.
+ * A request that is not Main's arguments is answered with Main's MODE_FAIL status and a usage message.
+ * The daemon stops at the end of its input, or at a request "quit".
+ *
+ * What threads other than the daemon's print, e.g. those generating functions, goes to stderr, so replies stay intact.
+ */
+public class Daemon {
+
+    public static void main(String[] args) throws IOException {
+        OutputStream replies = System.out;
+        Driver.captureOutput(System.err, System.err);
+
+        BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (String request = requests.readLine(); request != null; request = requests.readLine()) {
+            if (request.trim().equals("quit")) break;
+            if (request.trim().isEmpty()) continue;
+
+            String[] fields = request.indexOf('\t') >= 0 ? request.split("\t") : request.trim().split(" +");
+            int status;
+            output.reset();
+            if (fields.length != 3 || !Driver.PASSES.contains(fields[0])) {
+                PrintStream usage = new PrintStream(output, true, "UTF-8");
+                usage.println("Usage: pass inputfile outputfile");
+                usage.println("where pass is either: -lexer, -parser, -ast, -sem or -gen");
+                status = Driver.MODE_FAIL;
+            } else {
+                status = Driver.compile(fields[0], new File(fields[1]), new File(fields[2]), output, Options.jobs);
+            }
+
+            replies.write((status + " " + output.size() + "\n").getBytes("UTF-8"));
+            output.writeTo(replies);
+            replies.flush();
+        }
+        Driver.finish();
+    }
+}
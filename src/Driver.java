@@ -0,0 +1,225 @@
+import ast.ASTPrinter;
+import ast.Program;
+import gen.CodeGenerator;
+import lexer.Scanner;
+import lexer.Token;
+import lexer.Tokeniser;
+import parser.Headers;
+import parser.Parser;
+import sem.SemanticAnalyzer;
+import util.CompileCache;
+import util.Identifiers;
+import util.Options;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The compiler's passes, run by Main on one source, and by Batch and Daemon on many in a JVM.
+ * A compilation returns the status Main exits with. For Batch and Daemon what it prints goes to the stream
+ * it is given, so several can run at the same time.
+ */
+class Driver {
+    // Exit statuses, those of Main.
+    static final int FILE_NOT_FOUND = 2;
+    static final int MODE_FAIL      = 254;
+    static final int LEXER_FAIL     = 250;
+    static final int PARSER_FAIL    = 245;
+    static final int SEM_FAIL       = 240;
+    static final int PASS           = 0;
+    static final int CRASH          = 1;    // an uncaught exception
+
+    static final List<String> PASSES = Arrays.asList("-lexer", "-parser", "-ast", "-sem", "-gen");
+
+    /* Makes System.out and System.err print to the stream each compilation is given, and otherwise to out and err. */
+    static void captureOutput(PrintStream out, PrintStream err) {
+        System.setOut(new PrintStream(new ThreadOutput(out), true));
+        System.setErr(new PrintStream(new ThreadOutput(err), true));
+    }
+
+    private static CompileCache cache;
+
+    private static synchronized CompileCache cache() {
+        if (cache == null) cache = new CompileCache(new File(Options.cache), Options.cacheSize);
+        return cache;
+    }
+
+    /* Called once the compilations of the JVM are done, to write out what the cache only keeps in memory. */
+    static synchronized void finish() {
+        if (cache != null) cache.close();
+    }
+
+    /*
+     * Runs pass on inputFile as Main would, generating jobs functions at a time and printing to output, once
+     * captureOutput() was called. With Options.cache set, the result of compiling the same source the same way
+     * is reused if there is one.
+     */
+    static int compile(String pass, File inputFile, File outputFile, OutputStream output, int jobs) throws IOException {
+        if (Options.cache == null) return compileUncached(pass, inputFile, outputFile, output, jobs);
+        String key;
+        try {
+            byte[] source = Files.readAllBytes(inputFile.toPath());
+            key = CompileCache.key(pass, source, Headers.fingerprint(inputFile, source));
+        } catch (IOException e) {
+            // Reported by the compilation.
+            return compileUncached(pass, inputFile, outputFile, output, jobs);
+        }
+        CompileCache.Result result = cache().get(key);
+        if (result != null) {
+            output.write(result.printed);
+            if (result.generated == null) return result.status;
+            try {
+                FileOutputStream generated = new FileOutputStream(outputFile);
+                try {
+                    generated.write(result.generated);
+                } finally {
+                    generated.close();
+                }
+            } catch (FileNotFoundException e) {
+                output.write(("File "+outputFile.toString()+" does not exist.\n").getBytes());
+                return FILE_NOT_FOUND;
+            }
+            return result.status;
+        }
+
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        int status = compileUncached(pass, inputFile, outputFile, printed, jobs);
+        printed.writeTo(output);
+        // Crashes and missing files may not happen next time.
+        if (status != CRASH && status != FILE_NOT_FOUND) {
+            byte[] generated = pass.equals("-gen") && status == PASS ? Files.readAllBytes(outputFile.toPath()) : null;
+            cache().put(key, new CompileCache.Result(status, printed.toByteArray(), generated));
+        }
+        return status;
+    }
+
+    private static int compileUncached(String pass, File inputFile, File outputFile, OutputStream output, int jobs) {
+        ThreadOutput.redirect(output);
+        // The identifiers of the compilation go with it, rather than building up in the JVM.
+        Identifiers.use(new Identifiers());
+        try {
+            return compile(pass, inputFile, outputFile, jobs);
+        } catch (Throwable t) {
+            t.printStackTrace();
+            return CRASH;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            ThreadOutput.redirect(null);
+            Identifiers.use(null);
+        }
+    }
+
+    /* Runs pass on inputFile, generating jobs functions at a time, printing to System.out and System.err. */
+    static int compile(String pass, File inputFile, File outputFile, int jobs) {
+        Scanner scanner;
+        try {
+            scanner = new Scanner(inputFile);
+        } catch (FileNotFoundException e) {
+            System.out.println("File "+inputFile.toString()+" does not exist.");
+            return FILE_NOT_FOUND;
+        }
+
+        Tokeniser tokeniser = new Tokeniser(scanner);
+        if (pass.equals("-lexer")) {
+            for (Token t = tokeniser.nextToken(); t.tokenClass != Token.TokenClass.EOF; t = tokeniser.nextToken())
+                System.out.println(t);
+            if (tokeniser.getErrorCount() == 0)
+                System.out.println("Lexing: pass");
+            else
+                System.out.println("Lexing: failed ("+tokeniser.getErrorCount()+" errors)");
+            return tokeniser.getErrorCount() == 0 ? PASS : LEXER_FAIL;
+        }
+
+        Parser parser = new Parser(tokeniser);
+        Program programAst = parser.parse();
+        if (pass.equals("-parser")) {
+            if (parser.getErrorCount() == 0)
+                System.out.println("Parsing: pass");
+            else
+                System.out.println("Parsing: failed ("+parser.getErrorCount()+" errors)");
+            return parser.getErrorCount() == 0 ? PASS : PARSER_FAIL;
+        }
+        if (pass.equals("-ast")) {
+            if (parser.getErrorCount() == 0) {
+                System.out.println("Parsing: pass");
+                System.out.println("Printing out AST:");
+                StringWriter sw = new StringWriter();
+                PrintWriter writer = new PrintWriter(sw);
+                programAst.accept(new ASTPrinter(writer));
+                writer.flush();
+                System.out.print(sw.toString());
+            } else
+                System.out.println("Parsing: failed ("+parser.getErrorCount()+" errors)");
+            return parser.getErrorCount() == 0 ? PASS : PARSER_FAIL;
+        }
+        if (parser.getErrorCount() > 0)
+            return PARSER_FAIL;
+
+        int errors = new SemanticAnalyzer().analyze(programAst);
+        if (pass.equals("-sem")) {
+            if (errors == 0)
+                System.out.println("Semantic analysis: Pass");
+            else
+                System.out.println("Semantic analysis: Failed (" + errors + ")");
+            return errors == 0 ? PASS : SEM_FAIL;
+        }
+        if (errors > 0)
+            return SEM_FAIL;
+        try {
+            new CodeGenerator(jobs).emitProgram(programAst, outputFile);
+        } catch (FileNotFoundException e) {
+            System.out.println("File "+outputFile.toString()+" does not exist.");
+            return FILE_NOT_FOUND;
+        }
+        return PASS;
+    }
+
+    /*
+     * Stands in for System.out and System.err, sending what each thread prints to where it was redirected,
+     * so the compilations running at the same time each print to their own stream.
+     */
+    private static class ThreadOutput extends OutputStream {
+        private static final ThreadLocal<OutputStream> target = new ThreadLocal<OutputStream>();
+
+        private final PrintStream original;     // for threads not redirected
+
+        ThreadOutput(PrintStream original) {
+            this.original = original;
+        }
+
+        static void redirect(OutputStream stream) {
+            target.set(stream);
+        }
+
+        private OutputStream current() {
+            OutputStream stream = target.get();
+            return stream != null ? stream : original;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            current().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            current().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            current().flush();
+        }
+    }
+}
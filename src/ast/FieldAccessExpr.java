@@ -1,13 +1,17 @@
 package ast;
 
+import util.Identifiers;
+
 public class FieldAccessExpr extends Expr {
 
     public final Expr struct;
     public final String field;
+    public final int fieldSymbol;   // field interned, see Identifiers
 
     public FieldAccessExpr(Expr struct, String field) {
         this.struct = struct;
         this.field = field;
+        this.fieldSymbol = Identifiers.current().intern(field);
     }
 
     public <T> T accept(ASTVisitor<T> v) {
@@ -1,16 +1,21 @@
 package ast;
 
 import java.util.List;
+import util.Identifiers;
+import util.Position;
 
 public class FunCallExpr extends Expr {
 
     public FunDecl fd; // to be filled in by the name analyser
+    public Position position; // to be filled in by the parser
 
     public final String ident;
+    public final int symbol;    // ident interned, see Identifiers
     public final List<Expr> exprs;
     
     public FunCallExpr(String ident, List<Expr> exprs){
         this.ident = ident;
+        this.symbol = Identifiers.current().intern(ident);
         this.exprs = exprs;
     }
 
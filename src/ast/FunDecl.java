@@ -1,15 +1,18 @@
 package ast;
 
 import java.util.List;
+import util.Identifiers;
 
 public class FunDecl implements ASTNode {
     public final Type type;
     public final String name;
+    public final int symbol;    // name interned, see Identifiers
     public final List<VarDecl> params;
     public final Block block;
 
     public int currWhile = 0;
     public int currIf    = 0;
+    public int currStr   = 0;
 
     public int stackVarsUsage = 0;
     public int stackArgsUsage = 0;
@@ -17,6 +20,7 @@ public class FunDecl implements ASTNode {
     public FunDecl(Type type, String name, List<VarDecl> params, Block block) {
 	    this.type = type;
 	    this.name = name;
+	    this.symbol = Identifiers.current().intern(name);
 	    this.params = params;
 	    this.block = block;
     }
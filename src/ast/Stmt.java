@@ -1,5 +1,8 @@
 package ast;
 
+import util.Position;
+
 public abstract class Stmt implements ASTNode {
+    public Position position; // to be filled in by the parser
     public abstract <T> T accept(ASTVisitor<T> v);
 }
@@ -1,11 +1,15 @@
 package ast;
 
+import util.Identifiers;
+
 public class StructType implements Type {
 
     public final String identifier;
+    public final int symbol;    // identifier interned, see Identifiers
 
     public StructType(String identifier) {
         this.identifier = identifier;
+        this.symbol = Identifiers.current().intern(identifier);
     }
 
     public <T> T accept(ASTVisitor<T> v) {
@@ -1,17 +1,26 @@
 package ast;
 
+import util.Identifiers;
+
 public class VarDecl implements ASTNode {
     public final Type type;
     public final String ident;
+    public final int symbol;    // ident interned, see Identifiers
     public int num_bytes;
     public FunDecl parentFunc;
     public int fpOffset;
     public int spOffset;
+    public Storage storage;     // to be filled in by the name analyser
+
+    /* Where a variable lives: under the label ident, or at fpOffset from the $fp of its function. */
+    public enum Storage { GLOBAL, FRAME }
 
     public VarDecl(Type type, String ident) {
 	    this.type       = type;
         this.ident      = ident;
+        this.symbol     = Identifiers.current().intern(ident);
         this.fpOffset   = 0;
+        this.storage    = Storage.FRAME;
     }
 
     public <T> T accept(ASTVisitor<T> v) {
@@ -1,12 +1,16 @@
 package ast;
 
+import util.Identifiers;
+
 public class VarExpr extends Expr {
 
     public final String ident;
+    public final int symbol;    // ident interned, see Identifiers
     public VarDecl vd; // to be filled in by the name analyser
     
     public VarExpr(String ident){
         this.ident = ident;
+        this.symbol = Identifiers.current().intern(ident);
     }
 
     public <T> T accept(ASTVisitor<T> v) {
@@ -1,18 +1,33 @@
 package gen;
 
 import ast.*;
-import sem.*;
+import opt.ASTWalker;
+import opt.CallGraph;
+import opt.Optimiser;
+import opt.Purity;
+import util.Identifiers;
+import util.IntMap;
+import util.Options;
+import util.Profile;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.EmptyStackException;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 
 import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.*;
 
+import gen.InductionVariables.Induction;
+
 /*
 
     Notes:
@@ -31,73 +46,223 @@ public class CodeGenerator implements ASTVisitor<Register> {
     // contains all the free temporary registers
     private Stack<Register> freeRegs = new Stack<Register>();
 
+    // How many functions are generated at a time.
+    private final int jobs;
+
     public CodeGenerator() {
+        this(Options.jobs);
+    }
+
+    public CodeGenerator(int jobs) {
+        this.jobs = jobs;
         freeAllRegs();
     }
 
+    /* A generator for one function of the program whose data and runtime program has generated. */
+    private CodeGenerator(CodeGenerator program) {
+        this(1);
+        structTypeDecls = program.structTypeDecls;
+        profile         = program.profile;
+        reachable       = program.reachable;
+        bufferOutput    = program.bufferOutput;
+    }
+
     private void freeAllRegs() {
+        freeRegs.clear();
         freeRegs.addAll(Register.tmpRegs);
     }
 
     private class RegisterAllocationError extends Error {}
 
     private Register getRegister() {
+        if (colouring) {
+            virtualsInUse++;
+            return Register.virtual(virtuals++);
+        }
+        Register out;
         try {
-            Register out = freeRegs.pop();
-            return out;
+            out = freeRegs.pop();
         } catch (EmptyStackException ese) {
-            throw new RegisterAllocationError(); // no more free registers, bad luck!
+            // A value kept for reuse can be computed again, see ValueTable.evict.
+            out = values.evict();
+            if (out == null) throw new RegisterAllocationError(); // no more free registers, bad luck!
         }
+        written.add(out);
+        return out;
     }
 
     private void freeRegister(Register reg) {
         if (reg == null) return;
         if (reg == Register.v0) return;
-        freeRegs.push(reg);
+        if (values.holds(reg)) {
+            values.used(reg);
+            return;
+        }
+        if (colouring) virtualsInUse--;
+        else freeRegs.push(reg);
+    }
+
+    /*
+     * Whole function register allocation, see GraphColouring. Functions are generated with virtual
+     * registers into a buffer, and the number of them in use stands in for the registers still free.
+     */
+    private boolean colouring = false;
+    private int virtuals = 0;
+    private int virtualsInUse = 0;
+    private int deepestOffset;      // $fp offset below every local of the current function
+
+    private int freeRegCount() {
+        if (!colouring) return freeRegs.size();
+        return Math.max(0, Register.tmpRegs.size() - virtualsInUse);
+    }
+
+    /*
+     * Registers each generated function may change, directly or in its callees. Functions are generated
+     * callees first, so a call only saves the registers its callee changes.
+     */
+    private HashMap<FunDecl, Set<Register>> clobbers = new HashMap<FunDecl, Set<Register>>();
+    private HashSet<Register> written = new HashSet<Register>();   // by the code generated so far
+
+    /* The registers a call to fd may change: none for the runtime stubs, all for a function not generated yet. */
+    private Set<Register> clobbersOf(FunDecl fd) {
+        if (fd.block == null) return new HashSet<Register>();
+        Set<Register> regs = clobbers.get(fd);
+        return regs == null ? new HashSet<Register>(Register.tmpRegs) : regs;
+    }
+
+    /* Hands back the registers of the values forgotten during the last statement. */
+    private void releaseValues() {
+        List<Register> released = values.release();
+        if (colouring) virtualsInUse -= released.size();
+        else freeRegs.addAll(released);
     }
     
     private PrintWriter writer; // use this writer to output the assembly instructions
 
 
     // Used so that it is easy to see how much memory a structType will use.
-    private HashMap<String, StructTypeDecl> structTypeDecls = new HashMap<String, StructTypeDecl>();
+    private IntMap<StructTypeDecl> structTypeDecls = new IntMap<StructTypeDecl>();   // by interned identifier
     
     // Track Variables stored on Stack & Heap.
     private ArrayList<String> heapAllocs = new ArrayList<String>();
 
     private Stack<ArrayList<VarDecl>> scopesStack= new Stack<ArrayList<VarDecl>>();;     // Stack of all stackAllocs Scopes.
-    private Scope currScope;
     
     // @DEBUG
     String stackState = "";
 
-    // Track String literals.
-    private int strNum = 0;
-
     // To track current function.
     private FunDecl currFunDecl;
     private int fpOffset = -12;
 
+    // Execution profile steering the code layout, null if none was given.
+    private Profile profile;
+
+    // Code of the current function that never ran in the profile, emitted after its return sequence.
+    private StringWriter coldCode;
+    private PrintWriter  coldWriter;
+
+    // Addresses of arrays and globals kept in registers while generating the loops that use them.
+    private static final int MAX_LOOP_BASES = 4;     // per loop
+    private static final int KEEP_FREE_REGS = 10;    // left for evaluating the loop body, at least, see RegisterNeed
+    private HashMap<VarDecl, Register> loopBases = new HashMap<VarDecl, Register>();
+
+    // Pointers walking arrays in step with loop counters, see InductionVariables.
+    private static final int MAX_INDUCTIONS = 2;     // per loop
+    private HashMap<VarDecl, Induction> inductions      = new HashMap<VarDecl, Induction>();  // by counter
+    private HashMap<Assign, Induction>  inductionSteps  = new HashMap<Assign, Induction>();   // by counter update
+    private int loopDepth = 0;
+
+    // All registers reserved by the loops being generated.
+    private HashSet<Register> loopRegs = new HashSet<Register>();
+
+    // Registers already holding the value of an expression, see ValueTable.
+    private static final int VALUE_FREE_REGS = 12;   // only hold on to a value while this many are free
+    private ValueTable values = new ValueTable();
+    private int argDepth = 0;                        // > 0 while generating call arguments
+
     public void emitProgram(Program program, File outputFile) throws FileNotFoundException {
         writer = new PrintWriter(outputFile);
 
+        profile = Profile.load();
+        Optimiser.optimise(program, profile);
         visitProgram(program);
         writer.close();
     }
 
+    // Names of the functions and runtime stubs main can reach, null to emit everything.
+    private Set<String> reachable;
+
+    private boolean emits(String name) {
+        return reachable == null || reachable.contains(name);
+    }
+
+    /* Finds what main can reach; code and globals nothing reaches are left out unless optimisations are off. */
+    private List<FunDecl> findReachable(Program p, CallGraph calls) {
+        FunDecl main = null;
+        for (FunDecl fd: p.funDecls) if (fd.name.equals("main")) main = fd;
+        if (Options.optLevel == 0 || main == null) return p.funDecls;
+
+        reachable = new HashSet<String>();
+        List<FunDecl> funDecls = new ArrayList<FunDecl>();
+        for (FunDecl fd: calls.reachableFrom(main)) {
+            reachable.add(fd.name);
+            if (fd.block != null) funDecls.add(fd);
+        }
+        final Set<VarDecl> globals = new HashSet<VarDecl>();
+        for (FunDecl fd: funDecls) {
+            fd.block.accept(new ASTWalker() {
+                @Override
+                public Void visitVarExpr(VarExpr v) {
+                    if (v.vd != null && Purity.isGlobal(v.vd)) globals.add(v.vd);
+                    return null;
+                }
+            });
+        }
+        for (VarDecl vd: p.varDecls) if (globals.contains(vd)) reachable.add(vd.ident);
+        return funDecls;
+    }
+
     @Override
     public Register visitProgram(Program p) {
-        currScope = new Scope();
+        CallGraph calls = new CallGraph(p);
+        List<FunDecl> funDecls = findReachable(p, calls);
         writer.print("\t\t.data");
         
         // Create the HashMap of StructTypeDecls.
         for (StructTypeDecl std: p.structTypeDecls) {
             StructType structType = (StructType)std.structType;
-            structTypeDecls.put(structType.identifier, std);
+            structTypeDecls.put(structType.symbol, std);
+        }
+
+        // State of the heap allocator, see emitAllocator().
+        if (emits("mcmalloc") || emits("mcfree")) {
+            writer.print("\nmc_free:\t.space " + 4 * MC_CLASSES + "\t# Free list of each size class.");
+            writer.print("\nmc_next:\t.word 0\t\t# Next free byte of the current chunk.");
+            writer.print("\nmc_end:\t.word 0\t\t# End of the current chunk.");
+        }
+
+        // Output buffer, see emitBufferedOutput().
+        if (Options.optLevel > 0 && (emits("print_i") || emits("print_c") || emits("print_s"))) {
+            writer.print("\nmc_out_len:\t.word 0\t\t# Number of bytes in the output buffer.");
+            writer.print("\nmc_out:\t.space " + (MC_OUT_SIZE + 4) + "\t# Output buffer, with room for the terminating 0.");
+        }
+
+        // Input buffer, see emitBufferedInput().
+        if (Options.optLevel > 0 && (emits("read_i") || emits("read_c"))) {
+            writer.print("\nmc_in_pos:\t.word 0\t\t# Next byte to read from the input buffer.");
+            writer.print("\nmc_in_end:\t.word 0\t\t# Number of bytes in the input buffer.");
+            writer.print("\nmc_in:\t.space " + MC_IN_SIZE + "\t# Input buffer, refilled from stdin.");
+            writer.print("\nmc_line:\t.space " + (MC_IN_SIZE + 4) + "\t# The line being read, 0 terminated.");
+            writer.print("\nmc_in_bad_int:\t.asciiz \"\\nRuntime exception: invalid integer input (read_i)\\n\"");
+            writer.print("\nmc_in_bad_chr:\t.asciiz \"\\nRuntime exception: invalid char input (read_c)\\n\"");
+            writer.print("\nmc_in_eof_msg:\t.asciiz \"\\nRuntime exception: end of input\\n\"");
+            writer.print("\n\t.align 2");
         }
 
         // Allocate memory on the heap for global variables.
         for (VarDecl vd: p.varDecls) {
+            if (!emits(vd.ident)) continue;
             writer.print("\n" + vd.ident + ":\t.space " + vd.num_bytes);
             heapAllocs.add(vd.ident);
         }
@@ -119,89 +284,550 @@ public class CodeGenerator implements ASTVisitor<Register> {
         writer.print("\n\tli\t$v0, 10\t\t\t# Exit cmd code.\n\tsyscall\t\t\t\t# Exit program.\n");
 
         // Print Frame
-        writer.print("\nframedump:");
-        writer.print("\n\tLI $a0, '-'\n\tLI $v0, 11\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall");
-        writer.print("\n\tLW $a0, ($fp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -4($fp)");
-        writer.print("\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -8($fp)\n\tLI $v0, 1\n\tsyscall");
-        writer.print("\n\tLI $a0, '\\n'\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -12($fp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'");
-        writer.print("\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -16($fp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall");
-        writer.print("\n\tLW $a0, -20($fp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -24($fp)\n\tLI $v0, 1");
-        writer.print("\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -28($fp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11");
-        writer.print("\n\tsyscall\n\tLW $a0, -32($fp)\n\t\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -36($fp)");
-        writer.print("\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -40($fp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'");
-        writer.print("\n\tLI $v0, 11\n\tsyscall\n\tLI $a0, '\\n'");
-        writer.print("\n\tLI $v0, 11\n\tsyscall\n\tJR $ra");
-        writer.print("\n\tLI $a0, '-'\n\tLI $v0, 11\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall");
+        if (emits("framedump")) {
+            writer.print("\nframedump:");
+            writer.print("\n\tLI $a0, '-'\n\tLI $v0, 11\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall");
+            writer.print("\n\tLW $a0, ($fp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -4($fp)");
+            writer.print("\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -8($fp)\n\tLI $v0, 1\n\tsyscall");
+            writer.print("\n\tLI $a0, '\\n'\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -12($fp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'");
+            writer.print("\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -16($fp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall");
+            writer.print("\n\tLW $a0, -20($fp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -24($fp)\n\tLI $v0, 1");
+            writer.print("\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -28($fp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11");
+            writer.print("\n\tsyscall\n\tLW $a0, -32($fp)\n\t\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -36($fp)");
+            writer.print("\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, -40($fp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'");
+            writer.print("\n\tLI $v0, 11\n\tsyscall\n\tLI $a0, '\\n'");
+            writer.print("\n\tLI $v0, 11\n\tsyscall\n\tJR $ra");
+            writer.print("\n\tLI $a0, '-'\n\tLI $v0, 11\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall");
+        }
 
         // Print Frame
-        writer.print("\nstackdump:");
-        writer.print("\n\tLI $a0, '-'\n\tLI $v0, 11\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall");
-        writer.print("\n\tLW $a0, ($sp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 4($sp)");
-        writer.print("\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 8($sp)\n\tLI $v0, 1\n\tsyscall");
-        writer.print("\n\tLI $a0, '\\n'\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 12($sp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'");
-        writer.print("\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 16($sp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall");
-        writer.print("\n\tLW $a0, 20($sp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 24($sp)\n\tLI $v0, 1");
-        writer.print("\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 28($sp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11");
-        writer.print("\n\tsyscall\n\tLW $a0, 32($sp)\n\t\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 36($sp)");
-        writer.print("\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 40($sp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'");
-        writer.print("\n\tLI $v0, 11\n\tsyscall\n\tLI $a0, '\\n'");
-        writer.print("\n\tLI $v0, 11\n\tsyscall\n\tJR $ra");
-        writer.print("\n\tLI $a0, '-'\n\tLI $v0, 11\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall");
-
-        // mcmalloc()
+        if (emits("stackdump")) {
+            writer.print("\nstackdump:");
+            writer.print("\n\tLI $a0, '-'\n\tLI $v0, 11\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall");
+            writer.print("\n\tLW $a0, ($sp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 4($sp)");
+            writer.print("\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 8($sp)\n\tLI $v0, 1\n\tsyscall");
+            writer.print("\n\tLI $a0, '\\n'\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 12($sp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'");
+            writer.print("\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 16($sp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall");
+            writer.print("\n\tLW $a0, 20($sp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 24($sp)\n\tLI $v0, 1");
+            writer.print("\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 28($sp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11");
+            writer.print("\n\tsyscall\n\tLW $a0, 32($sp)\n\t\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 36($sp)");
+            writer.print("\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall\n\tLW $a0, 40($sp)\n\tLI $v0, 1\n\tsyscall\n\tLI $a0, '\\n'");
+            writer.print("\n\tLI $v0, 11\n\tsyscall\n\tLI $a0, '\\n'");
+            writer.print("\n\tLI $v0, 11\n\tsyscall\n\tJR $ra");
+            writer.print("\n\tLI $a0, '-'\n\tLI $v0, 11\n\tsyscall\n\tLI $a0, '\\n'\n\tLI $v0, 11\n\tsyscall");
+        }
+
+        // mcmalloc() and mcfree()
+        if (emits("mcmalloc") || emits("mcfree")) emitAllocator();
+
+
+        // Output is buffered, and flushed before reading input and when main returns.
+        bufferOutput = Options.optLevel > 0 && (emits("print_i") || emits("print_c") || emits("print_s"));
+
+        // read_i() and read_c()
+        if (Options.optLevel > 0 && (emits("read_i") || emits("read_c"))) {
+            emitBufferedInput();
+        } else {
+            if (emits("read_i")) {
+                writer.print("\n\nread_i:");
+                if (bufferOutput) emitFlushCall();
+                writer.print("\n\tLI $v0, 5");
+                writer.print("\n\tsyscall");
+                writer.print("\n\tJR $ra");
+            }
+            if (emits("read_c")) {
+                writer.print("\n\nread_c:");
+                if (bufferOutput) emitFlushCall();
+                writer.print("\n\tLI $v0, 12");
+                writer.print("\n\tsyscall");
+                writer.print("\n\tJR $ra");
+            }
+        }
+
+        if (bufferOutput) emitBufferedOutput();
+
+        // print_i()
+        if (emits("print_i") && !bufferOutput) {
+            writer.print("\n\nprint_i:");
+            writer.print("\n\tLW $a0, ($fp)");
+            writer.print("\n\tLI $v0, 1\t# Print int cmd code.");
+            writer.print("\n\tsyscall\t\t# Print int now.");
+            writer.print("\n\tJR $ra\t\t# Return to caller.");
+        }
+
+        // print_c()
+        if (emits("print_c") && !bufferOutput) {
+            writer.print("\n\nprint_c:");
+            writer.print("\n\tLW $a0, ($fp)");
+            writer.print("\n\tLI $v0, 11\t# Print char cmd code.");
+            writer.print("\n\tsyscall\t\t# Print char now.");
+            writer.print("\n\tJR $ra\t\t# Return to caller.");
+        }
+
+        // print_s()
+        if (emits("print_s") && !bufferOutput) {
+            writer.print("\n\nprint_s:");
+            writer.print("\n\tLW $a0, ($fp)");
+            writer.print("\n\tLI $v0, 4\t# Print str cmd code.");
+            writer.print("\n\tsyscall\t\t# Print str now.");
+            // writer.print("\n\tADDI $sp, $sp, 4");
+            writer.print("\n\tJR $ra\t\t# Return to caller.");
+        }
+        
+        
+        // Declare the functions, generated callees first and emitted in layout order.
+        HashMap<FunDecl, String> functions = generateFunctions(calls, new HashSet<FunDecl>(funDecls));
+        for (FunDecl funDecl: layoutFunctions(funDecls))
+            writer.print(functions.get(funDecl));
+        return null;
+    }
+
+    /*
+     * Generates each of funDecls with a CodeGenerator of its own, jobs at a time. A function is generated
+     * once the callees before it in bottom up order are, and only knows their clobbers, as when generating them
+     * one after the other in that order, so the code of each function does not depend on the threads.
+     */
+    private HashMap<FunDecl, String> generateFunctions(CallGraph calls, Set<FunDecl> funDecls) {
+        ForkJoinPool pool = jobs > 1 ? new ForkJoinPool(jobs) : null;
+        Executor executor = pool != null ? pool : new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                task.run();
+            }
+        };
+        final LinkedHashMap<FunDecl, CompletableFuture<CodeGenerator>> generated = new LinkedHashMap<FunDecl, CompletableFuture<CodeGenerator>>();
+        final Identifiers identifiers = Identifiers.current();
+        for (final FunDecl funDecl: calls.bottomUp()) {
+            if (!funDecls.contains(funDecl)) continue;
+            final LinkedHashMap<FunDecl, CompletableFuture<CodeGenerator>> callees = new LinkedHashMap<FunDecl, CompletableFuture<CodeGenerator>>();
+            for (FunDecl callee: calls.callees(funDecl))
+                if (generated.containsKey(callee)) callees.put(callee, generated.get(callee));
+            CompletableFuture<Void> ready = CompletableFuture.allOf(callees.values().toArray(new CompletableFuture<?>[0]));
+            generated.put(funDecl, ready.thenApplyAsync(new Function<Void, CodeGenerator>() {
+                @Override
+                public CodeGenerator apply(Void ignored) {
+                    Identifiers previous = Identifiers.use(identifiers);
+                    try {
+                        CodeGenerator function = new CodeGenerator(CodeGenerator.this);
+                        for (Map.Entry<FunDecl, CompletableFuture<CodeGenerator>> callee: callees.entrySet())
+                            function.clobbers.put(callee.getKey(), callee.getValue().join().written);
+                        function.generateFunction(funDecl);
+                        return function;
+                    } finally {
+                        Identifiers.use(previous);
+                    }
+                }
+            }, executor));
+        }
+
+        HashMap<FunDecl, String> functions = new HashMap<FunDecl, String>();
+        try {
+            for (Map.Entry<FunDecl, CompletableFuture<CodeGenerator>> function: generated.entrySet())
+                functions.put(function.getKey(), function.getValue().join().code);
+        } catch (CompletionException e) {
+            // Fail as generating the function in this thread would have.
+            if (e.getCause() instanceof Error) throw (Error)e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+            throw e;
+        } finally {
+            if (pool != null) pool.shutdown();
+        }
+        return functions;
+    }
+
+    // The code of the function this generator generated, see generateFunction().
+    private String code;
+
+    private void generateFunction(FunDecl funDecl) {
+        StringWriter function = new StringWriter();
+        writer  = new PrintWriter(function);
+        written = new HashSet<Register>();
+        fpOffset = -12;
+        funDecl.accept(this);
+        writer.flush();
+        code = function.toString();
+    }
+
+    // Heap allocator: blocks of 8 << k bytes for k < MC_CLASSES, carved from chunks of MC_CHUNK bytes.
+    private static final int MC_CLASSES = 10;
+    private static final int MC_CHUNK   = 65536;
+
+    /*
+     * Emits mcmalloc() and mcfree(). Each block is preceded by a word holding its size class, or -1 for
+     * a block too large for any class, which comes straight from sbrk and is never reused.
+     * A freed block is pushed on the free list of its class, mcmalloc() pops from that list before
+     * carving a new block from the current chunk, and only calls sbrk for a new chunk.
+     * Like the other runtime stubs these only use $a0-$a3, $v0 and $v1, so calls to them need not save any tmpRegs.
+     */
+    private void emitAllocator() {
         writer.print("\n\nmcmalloc:");
-        writer.print("\n\tLW $a0, ($fp)");
+        writer.print("\n\tLW $a0, ($fp)\t\t# Requested size.");
+        writer.print("\n\tLI $a1, 0\t\t\t# Size class.");
+        writer.print("\n\tLI $a2, 8\t\t\t#   -> and its block size.");
+        writer.print("\nmcmalloc_class:");
+        writer.print("\n\tSLT $a3, $a2, $a0");
+        writer.print("\n\tBEQZ $a3, mcmalloc_small");
+        writer.print("\n\tADDI $a1, $a1, 1");
+        writer.print("\n\tSLL $a2, $a2, 1");
+        writer.print("\n\tSLTI $a3, $a1, " + MC_CLASSES);
+        writer.print("\n\tBNEZ $a3, mcmalloc_class");
+        writer.print("\n\tADDI $a0, $a0, 7\t\t# Too large for a class: room for the header, rounded up to a word.");
+        writer.print("\n\tSRL $a0, $a0, 2");
+        writer.print("\n\tSLL $a0, $a0, 2");
         writer.print("\n\tLI $v0, 9");
         writer.print("\n\tsyscall");
+        writer.print("\n\tLI $a1, -1");
+        writer.print("\n\tSW $a1, ($v0)");
+        writer.print("\n\tADDI $v0, $v0, 4");
         writer.print("\n\tJR $ra");
-
-
-        // read_i()
-        writer.print("\n\nread_i:");
-        writer.print("\n\tLI $v0, 5");
+        writer.print("\nmcmalloc_small:");
+        writer.print("\n\tSLL $a3, $a1, 2");
+        writer.print("\n\tLA $v1, mc_free");
+        writer.print("\n\tADD $v1, $v1, $a3\t\t# Address of the free list of the class.");
+        writer.print("\n\tLW $v0, ($v1)");
+        writer.print("\n\tBEQZ $v0, mcmalloc_carve");
+        writer.print("\n\tLW $a3, ($v0)\t\t# Pop a freed block.");
+        writer.print("\n\tSW $a3, ($v1)");
+        writer.print("\n\tJR $ra");
+        writer.print("\nmcmalloc_carve:");
+        writer.print("\n\tADDI $a2, $a2, 4\t\t# Block size with its header.");
+        writer.print("\n\tLW $v0, mc_next");
+        writer.print("\n\tLW $v1, mc_end");
+        writer.print("\n\tADD $a3, $v0, $a2");
+        writer.print("\n\tSLT $v1, $v1, $a3");
+        writer.print("\n\tBEQZ $v1, mcmalloc_fits");
+        writer.print("\n\tLI $a0, " + MC_CHUNK + "\t\t# The chunk is used up, get a new one.");
+        writer.print("\n\tLI $v0, 9");
         writer.print("\n\tsyscall");
+        writer.print("\n\tADD $v1, $v0, $a0");
+        writer.print("\n\tSW $v1, mc_end");
+        writer.print("\n\tADD $a3, $v0, $a2");
+        writer.print("\nmcmalloc_fits:");
+        writer.print("\n\tSW $a3, mc_next");
+        writer.print("\n\tSW $a1, ($v0)\t\t# Header: the size class.");
+        writer.print("\n\tADDI $v0, $v0, 4");
         writer.print("\n\tJR $ra");
 
-        // read_c()
-        writer.print("\n\nread_c:");
-        writer.print("\n\tLI $v0, 12");
-        writer.print("\n\tsyscall");
+        if (!emits("mcfree")) return;
+        writer.print("\n\nmcfree:");
+        writer.print("\n\tLW $a0, ($fp)\t\t# Block to free.");
+        writer.print("\n\tBEQZ $a0, mcfree_done");
+        writer.print("\n\tLW $a1, -4($a0)\t\t# Its size class.");
+        writer.print("\n\tBLTZ $a1, mcfree_done");
+        writer.print("\n\tSLL $a1, $a1, 2");
+        writer.print("\n\tLA $a2, mc_free");
+        writer.print("\n\tADD $a2, $a2, $a1");
+        writer.print("\n\tLW $a3, ($a2)\t\t# Push it on the free list of the class.");
+        writer.print("\n\tSW $a3, ($a0)");
+        writer.print("\n\tSW $a0, ($a2)");
+        writer.print("\nmcfree_done:");
         writer.print("\n\tJR $ra");
+    }
 
-        // print_i()
-        writer.print("\n\nprint_i:");
-        writer.print("\n\tLW $a0, ($fp)");
-        writer.print("\n\tLI $v0, 1\t# Print int cmd code.");
-        writer.print("\n\tsyscall\t\t# Print int now.");
-        writer.print("\n\tJR $ra\t\t# Return to caller.");
+    // Buffered output: print_i(), print_c() and print_s() append to mc_out, which is written out by mc_flush.
+    private static final int MC_OUT_SIZE = 4096;
+    private boolean bufferOutput = false;
 
-        // print_c()
-        writer.print("\n\nprint_c:");
-        writer.print("\n\tLW $a0, ($fp)");
-        writer.print("\n\tLI $v0, 11\t# Print char cmd code.");
-        writer.print("\n\tsyscall\t\t# Print char now.");
-        writer.print("\n\tJR $ra\t\t# Return to caller.");
+    /* Calls mc_flush from a runtime stub, keeping the stub's return address in $a3. */
+    private void emitFlushCall() {
+        writer.print("\n\tMOVE $a3, $ra");
+        writer.print("\n\tJAL mc_flush");
+        writer.print("\n\tMOVE $ra, $a3");
+    }
 
-        // print_s()
-        writer.print("\n\nprint_s:");
-        writer.print("\n\tLW $a0, ($fp)");
+    /*
+     * Emits print_i(), print_c() and print_s() appending to the output buffer, and mc_flush writing it out
+     * with a single syscall. The buffer is flushed when it has no room left, before reading input and when
+     * main returns; output still buffered when the program dies on a run time error is lost.
+     * Like the other runtime stubs these only use $a0-$a3, $v0 and $v1; mc_flush only $a0, $a1 and $v0.
+     */
+    private void emitBufferedOutput() {
+        writer.print("\n\nmc_flush:");
+        writer.print("\n\tLW $a1, mc_out_len");
+        writer.print("\n\tBEQZ $a1, mc_flush_done");
+        writer.print("\n\tLA $a0, mc_out");
+        writer.print("\n\tADD $a1, $a0, $a1");
+        writer.print("\n\tSB $zero, ($a1)\t\t# Terminate the buffered string.");
         writer.print("\n\tLI $v0, 4\t# Print str cmd code.");
-        writer.print("\n\tsyscall\t\t# Print str now.");
-        // writer.print("\n\tADDI $sp, $sp, 4");
-        writer.print("\n\tJR $ra\t\t# Return to caller.");
-        
-        
-        // Declare the functions.
-        for (FunDecl funDecl: p.funDecls) {
-            fpOffset = -12;
-            funDecl.accept(this);
+        writer.print("\n\tsyscall");
+        writer.print("\n\tSW $zero, mc_out_len");
+        writer.print("\nmc_flush_done:");
+        writer.print("\n\tJR $ra");
+
+        if (emits("print_c")) {
+            writer.print("\n\nprint_c:");
+            writer.print("\n\tLW $a1, mc_out_len");
+            writer.print("\n\tSLTI $a1, $a1, " + MC_OUT_SIZE);
+            writer.print("\n\tBNEZ $a1, print_c_room");
+            emitFlushCall();
+            writer.print("\nprint_c_room:");
+            writer.print("\n\tLW $a0, ($fp)");
+            writer.print("\n\tBEQZ $a0, print_c_nul");
+            writer.print("\n\tLW $a1, mc_out_len");
+            writer.print("\n\tLA $a2, mc_out");
+            writer.print("\n\tADD $a2, $a2, $a1");
+            writer.print("\n\tSB $a0, ($a2)\t\t# Append the char.");
+            writer.print("\n\tADDI $a1, $a1, 1");
+            writer.print("\n\tSW $a1, mc_out_len");
+            writer.print("\n\tJR $ra");
+            writer.print("\nprint_c_nul:\t\t\t# A 0 would end the buffered string, print it on its own.");
+            emitFlushCall();
+            writer.print("\n\tLI $a0, 0");
+            writer.print("\n\tLI $v0, 11\t# Print char cmd code.");
+            writer.print("\n\tsyscall");
+            writer.print("\n\tJR $ra");
+        }
+
+        if (emits("print_i")) {
+            writer.print("\n\nprint_i:");
+            writer.print("\n\tLW $a1, mc_out_len");
+            writer.print("\n\tSLTI $a1, $a1, " + (MC_OUT_SIZE - 10) + "\t# Room for a sign and 10 digits?");
+            writer.print("\n\tBNEZ $a1, print_i_room");
+            emitFlushCall();
+            writer.print("\nprint_i_room:");
+            writer.print("\n\tLW $a0, ($fp)");
+            writer.print("\n\tLW $a1, mc_out_len");
+            writer.print("\n\tLA $a2, mc_out");
+            writer.print("\n\tADD $a1, $a2, $a1\t\t# Where the number goes.");
+            writer.print("\n\tBGEZ $a0, print_i_count");
+            writer.print("\n\tLI $a2, 45\t\t# '-'");
+            writer.print("\n\tSB $a2, ($a1)");
+            writer.print("\n\tADDI $a1, $a1, 1");
+            writer.print("\nprint_i_count:");
+            writer.print("\n\tLI $v1, 10");
+            writer.print("\n\tMOVE $a2, $a0");
+            writer.print("\nprint_i_skip:\t\t\t# Move $a1 past the last digit.");
+            writer.print("\n\tADDI $a1, $a1, 1");
+            writer.print("\n\tDIV $a2, $v1");
+            writer.print("\n\tMFLO $a2");
+            writer.print("\n\tBNEZ $a2, print_i_skip");
+            writer.print("\n\tLA $a2, mc_out");
+            writer.print("\n\tSUB $a2, $a1, $a2");
+            writer.print("\n\tSW $a2, mc_out_len");
+            writer.print("\nprint_i_digit:\t\t\t# Write the digits from the last.");
+            writer.print("\n\tADDI $a1, $a1, -1");
+            writer.print("\n\tDIV $a0, $v1");
+            writer.print("\n\tMFHI $a2");
+            writer.print("\n\tMFLO $a0");
+            writer.print("\n\tBGEZ $a2, print_i_positive");
+            writer.print("\n\tSUB $a2, $zero, $a2\t# Remainders of negative numbers are negative.");
+            writer.print("\nprint_i_positive:");
+            writer.print("\n\tADDI $a2, $a2, 48\t# '0'");
+            writer.print("\n\tSB $a2, ($a1)");
+            writer.print("\n\tBNEZ $a0, print_i_digit");
+            writer.print("\n\tJR $ra");
+        }
+
+        if (emits("print_s")) {
+            writer.print("\n\nprint_s:");
+            writer.print("\n\tMOVE $a3, $ra");
+            writer.print("\n\tLW $v1, ($fp)\t\t# Next char of the string.");
+            writer.print("\nprint_s_next:");
+            writer.print("\n\tLB $a0, ($v1)");
+            writer.print("\n\tBEQZ $a0, print_s_done");
+            writer.print("\n\tLW $a1, mc_out_len");
+            writer.print("\n\tSLTI $a2, $a1, " + MC_OUT_SIZE);
+            writer.print("\n\tBNEZ $a2, print_s_room");
+            writer.print("\n\tJAL mc_flush");
+            writer.print("\n\tLB $a0, ($v1)");
+            writer.print("\n\tLI $a1, 0");
+            writer.print("\nprint_s_room:");
+            writer.print("\n\tLA $a2, mc_out");
+            writer.print("\n\tADD $a2, $a2, $a1");
+            writer.print("\n\tSB $a0, ($a2)\t\t# Append the char.");
+            writer.print("\n\tADDI $a1, $a1, 1");
+            writer.print("\n\tSW $a1, mc_out_len");
+            writer.print("\n\tADDI $v1, $v1, 1");
+            writer.print("\n\tJ print_s_next");
+            writer.print("\nprint_s_done:");
+            writer.print("\n\tMOVE $ra, $a3");
+            writer.print("\n\tJR $ra");
+        }
+    }
+
+    // Buffered input: read_i() and read_c() take their line from mc_in, which is refilled from stdin a block at a time.
+    private static final int MC_IN_SIZE = 4096;
+
+    /*
+     * Emits read_i() and read_c() reading lines out of the input buffer, with the results of the MARS read
+     * int and read char syscalls they replace: a line ends at "\n", "\r" or "\r\n", read_c returns the first
+     * char of the line, read_i the decimal int on it, surrounded by any blanks. A line too long for mc_line
+     * is cut short. Where MARS would stop with an error on bad input or at the end of input, these print a
+     * message and exit with status 1.
+     * Like the other runtime stubs these only use $a0-$a3, $v0 and $v1; mc_readline leaves $a3 alone.
+     */
+    private void emitBufferedInput() {
+        writer.print("\n\nmc_readline:\t\t\t# Copies the next line to mc_line, $v0 is -1 at the end of input.");
+        writer.print("\n\tLA $v1, mc_line");
+        writer.print("\nmc_readline_next:");
+        emitNextByte("mc_readline_byte");
+        writer.print("\n\tBLTZ $v0, mc_readline_eof");
+        writer.print("\n\tLI $a0, 10");
+        writer.print("\n\tBEQ $v0, $a0, mc_readline_end");
+        writer.print("\n\tLI $a0, 13");
+        writer.print("\n\tBEQ $v0, $a0, mc_readline_cr");
+        writer.print("\n\tLA $a0, mc_line");
+        writer.print("\n\tSUB $a0, $v1, $a0");
+        writer.print("\n\tSLTI $a0, $a0, " + MC_IN_SIZE);
+        writer.print("\n\tBEQZ $a0, mc_readline_next\t# The line is full, drop the rest of it.");
+        writer.print("\n\tSB $v0, ($v1)");
+        writer.print("\n\tADDI $v1, $v1, 1");
+        writer.print("\n\tJ mc_readline_next");
+        writer.print("\nmc_readline_cr:\t\t\t# \\r\\n ends a single line.");
+        emitNextByte("mc_readline_lf");
+        writer.print("\n\tBLTZ $v0, mc_readline_end");
+        writer.print("\n\tLI $a0, 10");
+        writer.print("\n\tBEQ $v0, $a0, mc_readline_end");
+        writer.print("\n\tLW $a0, mc_in_pos\t\t# Not part of this line, put it back.");
+        writer.print("\n\tADDI $a0, $a0, -1");
+        writer.print("\n\tSW $a0, mc_in_pos");
+        writer.print("\n\tJ mc_readline_end");
+        writer.print("\nmc_readline_eof:\t\t# The last line need not end with a newline.");
+        writer.print("\n\tLA $a0, mc_line");
+        writer.print("\n\tBNE $v1, $a0, mc_readline_end");
+        writer.print("\n\tLI $v0, -1");
+        writer.print("\n\tJR $ra");
+        writer.print("\nmc_readline_end:");
+        writer.print("\n\tSB $zero, ($v1)");
+        writer.print("\n\tLI $v0, 0");
+        writer.print("\n\tJR $ra");
+
+        writer.print("\n\nmc_in_error:\t\t\t# Prints the message at $a0 and exits.");
+        writer.print("\n\tLI $v0, 4");
+        writer.print("\n\tsyscall");
+        writer.print("\n\tLI $a0, 1");
+        writer.print("\n\tLI $v0, 17\t# Exit with status cmd code.");
+        writer.print("\n\tsyscall");
+        writer.print("\nmc_in_eof:");
+        writer.print("\n\tLA $a0, mc_in_eof_msg");
+        writer.print("\n\tJ mc_in_error");
+
+        if (emits("read_c")) {
+            writer.print("\n\nread_c:");
+            writer.print("\n\tMOVE $a3, $ra");
+            if (bufferOutput) writer.print("\n\tJAL mc_flush");
+            writer.print("\n\tJAL mc_readline");
+            writer.print("\n\tMOVE $ra, $a3");
+            writer.print("\n\tBLTZ $v0, mc_in_eof");
+            writer.print("\n\tLBU $v0, mc_line");
+            writer.print("\n\tBEQZ $v0, read_c_invalid\t# An empty line has no char.");
+            writer.print("\n\tJR $ra");
+            writer.print("\nread_c_invalid:");
+            writer.print("\n\tLA $a0, mc_in_bad_chr");
+            writer.print("\n\tJ mc_in_error");
+        }
+
+        if (emits("read_i")) {
+            // The digits are accumulated negated, so that -2147483648 does not overflow on the way.
+            writer.print("\n\nread_i:");
+            writer.print("\n\tMOVE $a3, $ra");
+            if (bufferOutput) writer.print("\n\tJAL mc_flush");
+            writer.print("\n\tJAL mc_readline");
+            writer.print("\n\tMOVE $ra, $a3");
+            writer.print("\n\tBLTZ $v0, mc_in_eof");
+            writer.print("\n\tLA $a0, mc_line");
+            writer.print("\nread_i_lead:\t\t\t# Skip blanks, i.e. chars up to ' '.");
+            writer.print("\n\tLBU $a1, ($a0)");
+            writer.print("\n\tBEQZ $a1, read_i_invalid");
+            writer.print("\n\tSLTI $a2, $a1, 33");
+            writer.print("\n\tBEQZ $a2, read_i_sign");
+            writer.print("\n\tADDI $a0, $a0, 1");
+            writer.print("\n\tJ read_i_lead");
+            writer.print("\nread_i_sign:");
+            writer.print("\n\tLI $a3, 0\t\t# 1 if negative.");
+            writer.print("\n\tLI $a2, 45");
+            writer.print("\n\tBNE $a1, $a2, read_i_plus");
+            writer.print("\n\tLI $a3, 1");
+            writer.print("\n\tADDI $a0, $a0, 1");
+            writer.print("\n\tJ read_i_first");
+            writer.print("\nread_i_plus:");
+            writer.print("\n\tLI $a2, 43");
+            writer.print("\n\tBNE $a1, $a2, read_i_first");
+            writer.print("\n\tADDI $a0, $a0, 1");
+            writer.print("\nread_i_first:");
+            writer.print("\n\tLI $v0, 0");
+            writer.print("\n\tLBU $a1, ($a0)");
+            writer.print("\n\tADDI $a1, $a1, -48");
+            writer.print("\n\tSLTIU $a2, $a1, 10");
+            writer.print("\n\tBEQZ $a2, read_i_invalid\t# At least one digit.");
+            writer.print("\nread_i_digit:");
+            writer.print("\n\tLI $a2, -214748364");
+            writer.print("\n\tSLT $v1, $v0, $a2");
+            writer.print("\n\tBNEZ $v1, read_i_invalid\t# Too many digits.");
+            writer.print("\n\tBNE $v0, $a2, read_i_fits");
+            writer.print("\n\tSLTI $v1, $a1, 9");
+            writer.print("\n\tBEQZ $v1, read_i_invalid");
+            writer.print("\nread_i_fits:");
+            writer.print("\n\tLI $v1, 10");
+            writer.print("\n\tMUL $v0, $v0, $v1");
+            writer.print("\n\tSUB $v0, $v0, $a1");
+            writer.print("\n\tADDI $a0, $a0, 1");
+            writer.print("\n\tLBU $a1, ($a0)");
+            writer.print("\n\tADDI $a1, $a1, -48");
+            writer.print("\n\tSLTIU $a2, $a1, 10");
+            writer.print("\n\tBNEZ $a2, read_i_digit");
+            writer.print("\nread_i_trail:\t\t\t# Only blanks may follow.");
+            writer.print("\n\tLBU $a1, ($a0)");
+            writer.print("\n\tBEQZ $a1, read_i_done");
+            writer.print("\n\tSLTI $a2, $a1, 33");
+            writer.print("\n\tBEQZ $a2, read_i_invalid");
+            writer.print("\n\tADDI $a0, $a0, 1");
+            writer.print("\n\tJ read_i_trail");
+            writer.print("\nread_i_done:");
+            writer.print("\n\tBNEZ $a3, read_i_negative");
+            writer.print("\n\tLI $a2, 0x80000000");
+            writer.print("\n\tBEQ $v0, $a2, read_i_invalid\t# 2147483648 is too big.");
+            writer.print("\n\tSUB $v0, $zero, $v0");
+            writer.print("\nread_i_negative:");
+            writer.print("\n\tJR $ra");
+            writer.print("\nread_i_invalid:");
+            writer.print("\n\tLA $a0, mc_in_bad_int");
+            writer.print("\n\tJ mc_in_error");
         }
-        return null;
+    }
+
+    /* Loads the next byte of input into $v0, -1 at the end of input, refilling mc_in with syscall 14 when empty. */
+    private void emitNextByte(String label) {
+        writer.print("\n\tLW $a0, mc_in_pos");
+        writer.print("\n\tLW $a1, mc_in_end");
+        writer.print("\n\tBNE $a0, $a1, " + label);
+        writer.print("\n\tLI $a0, 0\t\t# Read from stdin.");
+        writer.print("\n\tLA $a1, mc_in");
+        writer.print("\n\tLI $a2, " + MC_IN_SIZE);
+        writer.print("\n\tLI $v0, 14\t# Read file cmd code.");
+        writer.print("\n\tsyscall");
+        writer.print("\n\tSW $zero, mc_in_pos");
+        writer.print("\n\tSW $v0, mc_in_end");
+        writer.print("\n\tLI $a0, 0");
+        writer.print("\n\tBGTZ $v0, " + label);
+        writer.print("\n\tSW $zero, mc_in_end");
+        writer.print("\n\tLI $v0, -1");
+        writer.print("\n\tJ " + label + "_done");
+        writer.print("\n" + label + ":");
+        writer.print("\n\tLBU $v0, mc_in($a0)");
+        writer.print("\n\tADDI $a0, $a0, 1");
+        writer.print("\n\tSW $a0, mc_in_pos");
+        writer.print("\n" + label + "_done:");
+    }
+
+    /* Orders functions hottest first when there is a profile, keeping never called ones at the end. */
+    private List<FunDecl> layoutFunctions(List<FunDecl> funDecls) {
+        List<FunDecl> layout = new ArrayList<FunDecl>(funDecls);
+        if (profile == null) return layout;
+        Collections.sort(layout, new Comparator<FunDecl>() {
+            @Override
+            public int compare(FunDecl fd1, FunDecl fd2) {
+                return Long.compare(profile.entryCount(fd2.name), profile.entryCount(fd1.name));
+            }
+        });
+        return layout;
     }
 
     @Override
     public Register visitFunDecl(FunDecl fd) {
-        currScope = new Scope(currScope);
+        values     = new ValueTable();
+        coldCode   = new StringWriter();
+        coldWriter = new PrintWriter(coldCode);
 
         // Mark what FunDecl we are inside.
         currFunDecl = fd;
@@ -211,26 +837,49 @@ public class CodeGenerator implements ASTVisitor<Register> {
             vd.parentFunc = fd;                                 // Tie this VarDecl to its FunDecl.
             vd.fpOffset = currFPoffset; currFPoffset+=4;        // Increment the $fp offset for this arg/param.
             fd.stackArgsUsage += vd.num_bytes;                  // Increment the number of Bytes this FunDecl uses.
-            currScope.put(new Variable(vd, vd.ident));          // Add this VarDecl to current scopes list of stackAlloc'd variables.
+        }
+        // With graph colouring, the function is buffered until its registers are allocated.
+        PrintWriter output = writer;
+        StringWriter function = new StringWriter();
+        colouring = Options.regAlloc.equals("graph");
+        if (colouring) {
+            writer = new PrintWriter(function);
+            virtualsInUse = 0;
+            deepestOffset = fpOffset;
         }
         // Declare this function.
          writer.print("\n\n" + fd.name + ":");
         // Store the return address on the stack.
          writer.print("\n\tADDI $sp, $sp, -4\t# Move down Stack.");
          writer.print("\n\tSW $ra, ($sp)\t\t#   -> Push RET-ADDR.");
+        if (colouring) writer.print("\n\t" + GraphColouring.FRAME);
         // Generate this functions code.
         fd.block.accept(this);
         
         writer.print("\n\tJ " + fd.name + "_ret");
         // Clear the stack, and retrieve the return address.
         writer.print("\n" + fd.name + "_ret:");
+        if (colouring) writer.print("\n\t" + GraphColouring.UNFRAME);
+        flushIfMain();
         //writer.print("\n\tADDI $sp, $sp, " + fd.stackVarsUsage + "\t# Move up Stack -> Past all {" + fd.stackVarsUsage/4 + "} allocated vars for [" + fd.name + "]");
         writer.print("\n\tLW $ra, ($sp)\t\t# Load the RET-ADDR off the Stack.");
         writer.print("\n\tADDI $sp, $sp, 4\t#   -> Move up Stack.");
         writer.print("\n\tJR $ra\t\t\t\t#   -> Return to caller.");
 
-        // Reset the current FunDecl and the hierarchy of scopes.
-        currScope = currScope.outer;
+        // Append the code which never ran, out of the way of the hot path.
+        coldWriter.flush();
+        writer.print(coldCode.toString());
+
+        if (colouring) {
+            writer.flush();
+            writer = output;
+            GraphColouring allocator = new GraphColouring(function.toString(), deepestOffset);
+            writer.print(allocator.allocate());
+            written.addAll(allocator.registersUsed());
+            colouring = false;
+        }
+
+        // Reset the current FunDecl.
         currFunDecl = null;
         return null;
     }
@@ -239,8 +888,6 @@ public class CodeGenerator implements ASTVisitor<Register> {
 
     @Override
 	public Register visitBlock(Block b) {
-        currScope = new Scope(currScope);
-
         writer.print("\n\t# --- NEW BLOCK --- #");
         int stackUsage = 0;
         int fpOffsetUsed = 0;
@@ -252,45 +899,58 @@ public class CodeGenerator implements ASTVisitor<Register> {
             // Set the offset of this Var on stack, and decrement for the next.
             vd.fpOffset = fpOffset;
             fpOffset -= vd.num_bytes; fpOffsetUsed += vd.num_bytes;
+            deepestOffset = Math.min(deepestOffset, fpOffset);
             // Push this VarDecl onto our CallStack tracker, and increment this func's stack usage.
             currFunDecl.stackVarsUsage+= vd.num_bytes;
             stackUsage += vd.num_bytes;
-            currScope.put(new Variable(vd, vd.ident));
         }
         writer.print("\n");
         // Generate code for all of this block.
         for (Stmt s: b.stmts) {
+            // The allocator spills the registers of the statements run least, see GraphColouring.
+            if (colouring && profile != null)
+                writer.print("\n\t" + GraphColouring.COUNT + " " + profile.count(currFunDecl.name, s.position));
             Register stmtReg = s.accept(this);
             freeRegister(stmtReg);
+            releaseValues();
         }
         writer.print("\n\tADDI $sp, $sp, " + stackUsage + "\t# Clean up variables declared within this block.");
         
         writer.print("\n\t# --- END BLOCK --- #");
         fpOffset += fpOffsetUsed;
-        currScope = currScope.outer;
         return null;
     }
 
     @Override
 	public Register visitAssign(Assign a) {
+        // A counter replaced by its pointers is not kept up to date in the loop.
+        Induction ind = inductionSteps.get(a);
+        if (ind != null && ind.eliminated()) {
+            stepPointers(ind);
+            values.assigned(ind.counter);
+            return null;
+        }
+
         if (a.expr1 instanceof VarExpr) {
             // Get the VarDecl for this var.
             VarExpr v = (VarExpr)a.expr1;
 
-            Symbol varSymbol = currScope.lookup(v.ident);
-
             // If this var exists on the stack.
-            if (varSymbol != null) {
-                VarDecl stackVar = ((Variable)varSymbol).decl;
+            if (v.vd.storage == VarDecl.Storage.FRAME) {
+                VarDecl stackVar = v.vd;
                 Register rhs = a.expr2.accept(this);
                 writer.print("\n\tSW " + rhs + ", " + stackVar.fpOffset + "($fp)\t# Storing " + rhs + " to Stack var [" + stackVar.ident + "]");
-                freeRegister(rhs);
+                stored(v, rhs);
             }
             // Else this var exists in the heap.
             else {
                 Register rhs = a.expr2.accept(this);
-                writer.print("\n\tSW " + rhs + ", " + v.ident + "\t\t# Store " + rhs + " to [" + v.ident + "]");
-                freeRegister(rhs);
+                Register base = loopBases.get(v.vd);
+                if (base != null)
+                    writer.print("\n\tSW " + rhs + ", (" + base + ")\t\t# Store " + rhs + " to [" + v.ident + "]");
+                else
+                    writer.print("\n\tSW " + rhs + ", " + v.ident + "\t\t# Store " + rhs + " to [" + v.ident + "]");
+                stored(v, rhs);
             }
         }
         else if (a.expr1 instanceof FieldAccessExpr) {
@@ -298,30 +958,32 @@ public class CodeGenerator implements ASTVisitor<Register> {
             VarExpr       faeVE = (VarExpr)fae.struct;
             VarDecl       faeVD = faeVE.vd;
             StructType       st = (StructType)faeVD.type;
-            StructTypeDecl  std = structTypeDecls.get(st.identifier);
+            StructTypeDecl  std = structTypeDecls.get(st.symbol);
             int    structOffset = 0;
             for (VarDecl field: std.varDecls) {
-                if (field.ident.equals(fae.field)) break;
+                if (field.symbol == fae.fieldSymbol) break;
                 structOffset += 4;
             }
 
-            Symbol varSymbol = currScope.lookup(faeVE.ident);
-            
             // If this var exists on the stack.
-            if (varSymbol != null) {
-                VarDecl stackVar = ((Variable)varSymbol).decl;
+            if (faeVD.storage == VarDecl.Storage.FRAME) {
+                VarDecl stackVar = faeVD;
                 Register rhs = a.expr2.accept(this);
                 writer.print("\n\tSW " + rhs + ", " + (stackVar.fpOffset - structOffset) + "($fp)\t# Storing " + rhs + " to Stack var [" + stackVar.ident + "." + fae.field + "]");
-                freeRegister(rhs);
+                stored(fae, rhs);
             }
             // Else this var exists in the heap.
             else {
                 Register rhs = a.expr2.accept(this);
-                Register heapAddr = getRegister();
-                writer.print("\n\tLA " + heapAddr + ", " + faeVD.ident);
+                Register heapAddr = loopBases.get(faeVD);
+                boolean  hoisted  = heapAddr != null;
+                if (!hoisted) {
+                    heapAddr = getRegister();
+                    writer.print("\n\tLA " + heapAddr + ", " + faeVD.ident);
+                }
                 writer.print("\n\tSW " + rhs + ", " + (0 - structOffset) + "("+ heapAddr +")\t# Storing " + rhs + " to Heap var [" + faeVD.ident + "." + fae.field + "]");
-                freeRegister(rhs);
-                freeRegister(heapAddr);
+                stored(fae, rhs);
+                if (!hoisted) freeRegister(heapAddr);
             }
             
 
@@ -329,32 +991,17 @@ public class CodeGenerator implements ASTVisitor<Register> {
         else if (a.expr1 instanceof ArrayAccessExpr) {
             ArrayAccessExpr aae = (ArrayAccessExpr)a.expr1;    System.out.println("aae array: " + aae.array);
 
-            // Get the value to assign, and the index to assign to.
+            // Get the value to assign, and the address to assign to.
             Register rhs = a.expr2.accept(this);
-            Register index = aae.index.accept(this);
-            
-            if (aae.array instanceof VarExpr) {
-                VarExpr arrVE = (VarExpr)aae.array;
-                VarDecl arrVD = arrVE.vd;
-                
-                // Get registers for storing the offset into this variable.
-                Register offsetReg = getRegister();
-                Register valFour = getRegister();
-                // Multiply the index by 4 to get the correct word in memory.
-                writer.print("\n\tLI " + valFour + ", 4\t\t# Holds static value 4.");
-                writer.print("\n\tMUL " + index + ", " + index + ", " + valFour + "\t# Calculate how far into this variable to find desired index(" + index + ").");
-
-                // Set the variable offset based on the $fp, then decrement using the arrays offset.
-                writer.print("\n\tADDI " + offsetReg + ", $fp, " + arrVD.fpOffset + "\t# Point " + offsetReg + " at the start of this array.");
-                writer.print("\n\tADD " + offsetReg + ", " + offsetReg + ", " + index + "\t# Point " + offsetReg + " at the desired index (" + index + ") of this array");
-                
-                // Store the value.
-                writer.print("\n\tSW " + rhs + ", (" + offsetReg + ")");
-                freeRegister(valFour);
-                freeRegister(offsetReg);
+            String pointer = inductionAddress(aae);
+            if (pointer != null)
+                writer.print("\n\tSW " + rhs + ", " + pointer + "\t\t# Store through induction pointer");
+            else if (aae.array instanceof VarExpr) {
+                Register address = elementAddress(aae);
+                writer.print("\n\tSW " + rhs + ", (" + address + ")");
+                freeRegister(address);
             }
-            freeRegister(index);
-            freeRegister(rhs);
+            stored(aae, rhs);
         }
         else if (a.expr1 instanceof ValueAtExpr) {
             ValueAtExpr vae = (ValueAtExpr)a.expr1;
@@ -362,11 +1009,25 @@ public class CodeGenerator implements ASTVisitor<Register> {
             Register value    = a.expr2.accept(this);
             writer.print("\n\tSW " + value + ", (" + location + ")\t\t# Storing " + value + " at address " + location);
             freeRegister(location);
-            freeRegister(value);
+            stored(vae, value);
         }
+        if (ind != null) stepPointers(ind);
         return null;
     }
 
+    /* After reg was stored to target: forget the values the store changed, and remember reg as the value of target. */
+    private void stored(Expr target, Register reg) {
+        if (target instanceof VarExpr)
+            values.assigned(((VarExpr)target).vd);
+        else if (target instanceof ArrayAccessExpr && ((ArrayAccessExpr)target).array instanceof VarExpr)
+            values.stored(((VarExpr)((ArrayAccessExpr)target).array).vd);
+        else if (target instanceof FieldAccessExpr)
+            values.stored(((VarExpr)((FieldAccessExpr)target).struct).vd);
+        else
+            values.storedThroughPointer();
+        freeRegister(remember(values.key(target), target, reg));
+    }
+
     @Override
     public Register visitExprStmt(ExprStmt es) {
 		return es.expr.accept(this);
@@ -379,20 +1040,28 @@ public class CodeGenerator implements ASTVisitor<Register> {
         String ifName       = currFunDecl.name + "_if";
         int    ifNum        = currFunDecl.currIf;
         currFunDecl.currIf++;
+
+        if (profile != null && writer != coldWriter) {
+            long thenCount = profile.count(currFunDecl.name, i.stmt1.position);
+            long elseCount = i.stmt2 == null ? 0 : profile.count(currFunDecl.name, i.stmt2.position);
+            if (thenCount != Profile.UNKNOWN && elseCount != Profile.UNKNOWN) {
+                emitProfiledIf(i, condition, ifName + ifNum, thenCount, elseCount);
+                return null;
+            }
+        }
         writer.print("\n\tBNEZ " + condition + ", " + ifName + ifNum + "_t");
         writer.print("\n\tBEQZ " + condition + ", " + ifName + ifNum + "_f");
 
         // Print (condition == true) case.
         writer.print("\n" + ifName + ifNum + "_t:");        // Label this branch.
-        Register stmt1Reg = i.stmt1.accept(this);           // Generate code.
+        emitBranch(i.stmt1);                                // Generate code.
         
         writer.print("\n\tJ " + ifName + ifNum + "_cont");  // Once done, jump to cont.
 
         // Print (condition == false) case.
         writer.print("\n" + ifName + ifNum + "_f:");        // Label this branch.
         if (i.stmt2 != null) {                              // If there is an else stmt.
-            Register stmt2Reg = i.stmt2.accept(this);       // Generate the code.
-            freeRegister(stmt2Reg);
+            emitBranch(i.stmt2);                            // Generate the code.
         }
         writer.print("\n\tJ " + ifName + ifNum + "_cont");  // Once done, jump to cont.
 
@@ -400,16 +1069,76 @@ public class CodeGenerator implements ASTVisitor<Register> {
 
 
         // Free up registers.
-        freeRegister(stmt1Reg);
         freeRegister(condition);
 		return null;
 	}
 
+    /*
+     * Lays out an If from its profile counts: the hotter branch falls through,
+     * and a branch that never ran while the function did is moved to the cold code.
+     */
+    private void emitProfiledIf(If i, Register condition, String label, long thenCount, long elseCount) {
+        boolean funRan   = profile.entryCount(currFunDecl.name) > 0;
+        boolean thenCold = funRan && profile.isCold(thenCount) && !profile.isCold(elseCount);
+        boolean elseCold = funRan && i.stmt2 != null && profile.isCold(elseCount) && !profile.isCold(thenCount);
+
+        if (thenCold) {
+            writer.print("\n\tBNEZ " + condition + ", " + label + "_t\t# Cold branch.");
+            freeRegister(condition);
+            if (i.stmt2 != null) emitBranch(i.stmt2);
+            writer.print("\n" + label + "_cont:");
+            emitCold(i.stmt1, label + "_t", label + "_cont");
+        }
+        else if (elseCold) {
+            writer.print("\n\tBEQZ " + condition + ", " + label + "_f\t# Cold branch.");
+            freeRegister(condition);
+            emitBranch(i.stmt1);
+            writer.print("\n" + label + "_cont:");
+            emitCold(i.stmt2, label + "_f", label + "_cont");
+        }
+        else if (i.stmt2 != null && elseCount > thenCount) {
+            writer.print("\n\tBNEZ " + condition + ", " + label + "_t");
+            freeRegister(condition);
+            emitBranch(i.stmt2);
+            writer.print("\n\tJ " + label + "_cont");
+            writer.print("\n" + label + "_t:");
+            emitBranch(i.stmt1);
+            writer.print("\n" + label + "_cont:");
+        }
+        else {
+            writer.print("\n\tBEQZ " + condition + ", " + label + "_f");
+            freeRegister(condition);
+            emitBranch(i.stmt1);
+            writer.print("\n\tJ " + label + "_cont");
+            writer.print("\n" + label + "_f:");
+            if (i.stmt2 != null) emitBranch(i.stmt2);
+            writer.print("\n" + label + "_cont:");
+        }
+    }
+
+    /* Generates one branch of an If. Values computed in it are not known after it. */
+    private void emitBranch(Stmt stmt) {
+        values.enterScope();
+        freeRegister(stmt.accept(this));
+        values.exitScope();
+    }
+
+    /* Emits stmt into the cold code of the current function, under label, jumping back to cont. */
+    private void emitCold(Stmt stmt, String label, String cont) {
+        PrintWriter hotWriter = writer;
+        writer = coldWriter;
+        writer.print("\n" + label + ":");
+        emitBranch(stmt);
+        writer.print("\n\tJ " + cont);
+        writer = hotWriter;
+    }
+
     @Override
 	public Register visitReturn(Return r) {
         writer.print("\n\t# --- Return Statement --- #");
         if (r.expr != null) {
             Register output = r.expr.accept(this);
+            flushIfMain();
             writer.print("\n\tMOVE $v0, " + output + "\t\t#  Move " + output + " into output register.");
             writer.print("\n\tLW $ra, -8($fp)\t\t# Load ret address.");
             writer.print("\n\tADDI $sp, $fp, -4");
@@ -418,6 +1147,7 @@ public class CodeGenerator implements ASTVisitor<Register> {
             freeRegister(output);
             return Register.v0;
         }
+        flushIfMain();
         writer.print("\n\tLW $ra, -8($fp)\t\t# Load ret address.");
         writer.print("\n\tADDI $sp, $fp, -4");
         writer.print("\n\tJR $ra");
@@ -425,60 +1155,282 @@ public class CodeGenerator implements ASTVisitor<Register> {
 		return null;
     }
     
+    /* Writes out buffered output before main returns, the program ends there. */
+    private void flushIfMain() {
+        if (bufferOutput && currFunDecl.name.equals("main"))
+            writer.print("\n\tJAL mc_flush\t\t# Flush the output buffer before exiting.");
+    }
+
     @Override
 	public Register visitWhile(While w) {
-        Register condition = w.expr.accept(this);
+        int need = RegisterNeed.of(w);
+        // Values found before the loop cannot be given up once it reads them, see ValueTable.evict.
+        freeUpRegisters(need);
+        int keep = Math.max(KEEP_FREE_REGS, need);
+        List<Induction> reduced = reduceInductions(w, keep);
+        List<VarDecl> hoisted = hoistLoopBases(w, keep);
+        Induction test = null;
+        for (Induction ind: reduced) if (ind.eliminated()) test = ind;
+
+        Register condition = loopTest(w, test);
         String whileName = currFunDecl.name + "_while";
         int    whileNum  = currFunDecl.currWhile;
         writer.print("\n\tBNEZ " + condition + ", " + whileName + whileNum + "_t");
         writer.print("\n\tBEQZ " + condition + ", " + whileName + whileNum + "_f");
+        freeRegister(condition);
         currFunDecl.currWhile++;
         writer.print("\n" + whileName + whileNum + "_t:");
+        // Values known before the loop stay valid in it only if no iteration can change them.
+        values.changedBy(w);
+        values.enterLoop();
+        loopDepth++;
         Register temp = w.stmt.accept(this);
-        condition = w.expr.accept(this);
+        loopDepth--;
+        condition = loopTest(w, test);
+        values.exitLoop();
         writer.print("\n\tBNEZ " + condition + ", " + whileName + whileNum + "_t");
         writer.print("\n\tBEQZ " + condition + ", " + whileName + whileNum + "_f");
         writer.print("\n" + whileName + whileNum + "_f:");
+        if (test != null && (loopDepth > 0 || InductionVariables.readOutside(currFunDecl, w, test.counter)))
+            writeBackCounter(test);
         writer.print("\n\tJ " + whileName + whileNum + "_cont");
         writer.print("\n" + whileName + whileNum + "_cont:");
         freeRegister(condition);
         freeRegister(temp);
+        for (VarDecl vd: hoisted) releaseLoopReg(loopBases.remove(vd));
+        for (Induction ind: reduced) {
+            inductions.remove(ind.counter);
+            inductionSteps.remove(ind.update);
+            for (Register pointer: ind.pointers.values()) releaseLoopReg(pointer);
+            releaseLoopReg(ind.end);
+        }
         return null;
     }
+
+    /* Gives up values kept for reuse until n registers are free, or none is left to give up. */
+    private void freeUpRegisters(int n) {
+        if (colouring) return;
+        Register reg;
+        while (freeRegs.size() < n && (reg = values.evict()) != null) freeRegs.push(reg);
+    }
+
+    private Register reserveLoopReg() {
+        Register reg = getRegister();
+        loopRegs.add(reg);
+        return reg;
+    }
+
+    private void releaseLoopReg(Register reg) {
+        if (reg == null) return;
+        loopRegs.remove(reg);
+        freeRegister(reg);
+    }
+
+    /*
+     * Loop preheader: sets up a pointer to a[i] for the arrays a indexed by a counter i of the loop.
+     * The pointers move with the counter, see stepPointers, so a[i] costs a single LW or SW.
+     * At least keep registers are left free for the loop.
+     */
+    private List<Induction> reduceInductions(While w, int keep) {
+        List<Induction> reduced = new ArrayList<Induction>();
+        if (Options.optLevel == 0) return reduced;
+
+        for (Induction ind: InductionVariables.find(w, MAX_INDUCTIONS)) {
+            if (inductions.containsKey(ind.counter)) continue;
+            int needed = ind.arrays.size() + (ind.eliminated() ? 1 : 0);
+            if (freeRegCount() - needed <= keep) continue;
+
+            Register offset = getRegister();
+            writer.print("\n\tLW " + offset + ", " + ind.counter.fpOffset + "($fp)\t# Induction: counter [" + ind.counter.ident + "]");
+            writer.print("\n\tSLL " + offset + ", " + offset + ", 2");
+            for (VarDecl arrVD: ind.arrays) {
+                Register pointer = reserveLoopReg();
+                writer.print("\n\tADDI " + pointer + ", " + offset + ", " + arrVD.fpOffset);
+                writer.print("\n\tADD " + pointer + ", " + pointer + ", $fp\t# Induction: " + pointer + " points at [" + arrVD.ident + "[" + ind.counter.ident + "]]");
+                ind.pointers.put(arrVD, pointer);
+            }
+            freeRegister(offset);
+
+            // The loop test compares the first pointer against the one for the bound.
+            if (ind.eliminated()) {
+                VarDecl  arrVD = ind.arrays.get(0);
+                Register bound = ind.bound.accept(this);
+                ind.end = reserveLoopReg();
+                writer.print("\n\tSLL " + ind.end + ", " + bound + ", 2");
+                writer.print("\n\tADD " + ind.end + ", " + ind.end + ", $fp");
+                writer.print("\n\tADDI " + ind.end + ", " + ind.end + ", " + arrVD.fpOffset + "\t# Induction: " + ind.end + " ends the walk over [" + arrVD.ident + "]");
+                freeRegister(bound);
+            }
+            inductions.put(ind.counter, ind);
+            inductionSteps.put(ind.update, ind);
+            reduced.add(ind);
+        }
+        return reduced;
+    }
+
+    /* Moves the pointers of a counter along with it. */
+    private void stepPointers(Induction ind) {
+        for (VarDecl arrVD: ind.arrays) {
+            Register pointer = ind.pointers.get(arrVD);
+            writer.print("\n\tADDI " + pointer + ", " + pointer + ", " + (4 * ind.step) + "\t# Induction: step [" + arrVD.ident + "] with [" + ind.counter.ident + "]");
+        }
+    }
+
+    /* "offset(pointer)" for the element aae if an induction pointer walks its array, otherwise null. */
+    private String inductionAddress(ArrayAccessExpr aae) {
+        if (!(aae.array instanceof VarExpr)) return null;
+        Induction ind = inductions.get(InductionVariables.counterOf(aae.index));
+        if (ind == null) return null;
+        Register pointer = ind.pointers.get(((VarExpr)aae.array).vd);
+        if (pointer == null) return null;
+        return (4 * InductionVariables.offsetOf(aae.index)) + "(" + pointer + ")";
+    }
+
+    /* The loop test, on the pointers of the counter when the counter was dropped. */
+    private Register loopTest(While w, Induction ind) {
+        if (ind == null) return w.expr.accept(this);
+
+        Register pointer = ind.pointers.get(ind.arrays.get(0));
+        Register lhs     = ind.counterFirst() ? pointer : ind.end;
+        Register rhs     = ind.counterFirst() ? ind.end : pointer;
+        Register output  = getRegister();
+        Op op = ind.test.op;
+        if (op == Op.LT || op == Op.GE)
+            writer.print("\n\tSLT " + output + ", " + lhs + ", " + rhs + "\t# Induction: loop test on pointers");
+        else if (op == Op.GT || op == Op.LE)
+            writer.print("\n\tSLT " + output + ", " + rhs + ", " + lhs + "\t# Induction: loop test on pointers");
+        else
+            writer.print("\n\tXOR " + output + ", " + lhs + ", " + rhs + "\t# Induction: loop test on pointers");
+
+        if (op == Op.GE || op == Op.LE)
+            writer.print("\n\tXORI " + output + ", " + output + ", 1");
+        else if (op == Op.NE)
+            writer.print("\n\tSLTU " + output + ", $zero, " + output);
+        else if (op == Op.EQ)
+            writer.print("\n\tSLTIU " + output + ", " + output + ", 1");
+        return output;
+    }
+
+    /* Stores the value of a dropped counter on leaving its loop, recovered from its first pointer. */
+    private void writeBackCounter(Induction ind) {
+        VarDecl  arrVD   = ind.arrays.get(0);
+        Register counter = getRegister();
+        writer.print("\n\tADDI " + counter + ", " + ind.pointers.get(arrVD) + ", " + (-arrVD.fpOffset));
+        writer.print("\n\tSUB " + counter + ", " + counter + ", $fp");
+        writer.print("\n\tSRA " + counter + ", " + counter + ", 2");
+        writer.print("\n\tSW " + counter + ", " + ind.counter.fpOffset + "($fp)\t# Induction: write back [" + ind.counter.ident + "]");
+        freeRegister(counter);
+    }
+
+    /*
+     * Loop preheader: loads the addresses the loop uses most into registers, so the body does not
+     * recompute them on every iteration. Only a few registers are spent, at least keep are left for the loop.
+     */
+    private List<VarDecl> hoistLoopBases(While w, int keep) {
+        List<VarDecl> hoisted = new ArrayList<VarDecl>();
+        if (Options.optLevel == 0) return hoisted;
+
+        for (VarDecl vd: new LoopAddresses(w).byUses()) {
+            if (hoisted.size() == MAX_LOOP_BASES || freeRegCount() <= keep) break;
+            if (loopBases.containsKey(vd) || walkedByPointer(vd)) continue;
+            Register base = reserveLoopReg();
+            if (vd.type instanceof ArrayType)
+                writer.print("\n\tADDI " + base + ", $fp, " + vd.fpOffset + "\t# Hoisted: " + base + " points at the start of [" + vd.ident + "]");
+            else if (vd.storage == VarDecl.Storage.GLOBAL)
+                writer.print("\n\tLA " + base + ", " + vd.ident + "\t\t# Hoisted: " + base + " points at [" + vd.ident + "]");
+            else {
+                releaseLoopReg(base);
+                continue;
+            }
+            loopBases.put(vd, base);
+            hoisted.add(vd);
+        }
+        return hoisted;
+    }
+
+    private boolean walkedByPointer(VarDecl arrVD) {
+        for (Induction ind: inductions.values())
+            if (ind.pointers.containsKey(arrVD)) return true;
+        return false;
+    }
     
     /* Expr Methods */
 
     @Override
     public Register visitArrayAccessExpr(ArrayAccessExpr aae) {
-        
+        String key = values.key(aae);
+        Register cached = values.lookup(key);
+        if (cached != null) return cached;
+
         Register output = getRegister();
+        String pointer = inductionAddress(aae);
+        if (pointer != null) {
+            writer.print("\n\tLW " + output + ", " + pointer + "\t\t# Load through induction pointer");
+            remember(key, aae, output);
+        }
+        else if (aae.array instanceof VarExpr) {
+            Register address = elementAddress(aae);
+            writer.print("\n\tLW " + output + ", (" + address + ")");
+            freeRegister(address);
+            remember(key, aae, output);
+        }
+        return output;
+    }
+
+    /* Address of an element of an array variable. */
+    private Register elementAddress(ArrayAccessExpr aae) {
+        String key = values.addressKey(aae);
+        Register cached = values.lookup(key);
+        if (cached != null) return cached;
+
+        VarDecl  arrVD = ((VarExpr)aae.array).vd;
         Register index = aae.index.accept(this);
 
-        if (aae.array instanceof VarExpr) {
-            VarDecl arrVD = ((VarExpr)aae.array).vd;
-                
-            // Get registers for storing the offset into this variable.
-            Register offsetReg = getRegister();
-            Register valFour = getRegister();
-            // Multiply the index by 4 to get the correct word in memory.
-            writer.print("\n\tLI " + valFour + ", 4\t\t# Holds static value 4.");
-            writer.print("\n\tMUL " + index + ", " + index + ", " + valFour + "\t# Calculate how far into this variable to find desired index(" + index + ").");
-
-            // Set the variable offset based on the $fp, then decrement using the arrays offset.
-            writer.print("\n\tADDI " + offsetReg + ", $fp, " + arrVD.fpOffset + "\t# Point " + offsetReg + " at the start of this array.");
-            writer.print("\n\tADD " + offsetReg + ", " + offsetReg + ", " + index + "\t# Point " + offsetReg + " at the desired index (" + index + ") of this array");
-            
-            // Store the value.
-            writer.print("\n\tLW " + output + ", (" + offsetReg + ")");
-            freeRegister(valFour);
-            freeRegister(offsetReg);
+        // Get registers for storing the offset into this variable.
+        Register offsetReg = getRegister();
+        Register valFour = getRegister();
+        // Multiply the index by 4 to get the correct word in memory.
+        writer.print("\n\tLI " + valFour + ", 4\t\t# Holds static value 4.");
+        writer.print("\n\tMUL " + offsetReg + ", " + index + ", " + valFour + "\t# Calculate how far into this variable to find desired index(" + index + ").");
+
+        // Set the variable offset based on the $fp, then decrement using the arrays offset.
+        Register base = loopBases.get(arrVD);
+        if (base == null) {
+            writer.print("\n\tADDI " + valFour + ", $fp, " + arrVD.fpOffset + "\t# Point " + valFour + " at the start of this array.");
+            base = valFour;
         }
+        writer.print("\n\tADD " + offsetReg + ", " + base + ", " + offsetReg + "\t# Point " + offsetReg + " at the desired index (" + index + ") of this array");
+        freeRegister(valFour);
         freeRegister(index);
-        return output;
+        return remember(key, aae.index, offsetReg);
+    }
+
+    /* Keeps reg as the value of key, computed from dependsOn, if there are registers to spare. Returns reg. */
+    private Register remember(String key, Expr dependsOn, Register reg) {
+        // Registers are restored after a call, which would overwrite values found in its arguments.
+        if (Options.optLevel == 0 || argDepth > 0 || freeRegCount() < VALUE_FREE_REGS) return reg;
+        values.add(key, dependsOn, reg);
+        return reg;
     }
 
     @Override
     public Register visitBinOp(BinOp bo) {
+        String key = values.key(bo);
+        Register cached = values.lookup(key);
+        if (cached != null) return cached;
+
+        Register output = emitBinOp(bo);
+        // Constant operations are folded into a single LI, not worth a register.
+        if (Purity.countVars(bo) > 0) remember(key, bo, output);
+        return output;
+    }
+
+    /* reg itself if it may be overwritten, otherwise a fresh register. */
+    private Register writable(Register reg) {
+        return values.holds(reg) ? getRegister() : reg;
+    }
+
+    private Register emitBinOp(BinOp bo) {
         Register output   = getRegister();
         // Different operations can handle different operand types.
         if (bo.op == Op.ADD) {
@@ -669,10 +1621,12 @@ public class CodeGenerator implements ASTVisitor<Register> {
                 Register valOne = getRegister();
                 writer.print("\n\tLI " + valOne + ", 1\t\t\t# Register to hold value 1.");
 
-                writer.print("\n\tSUB " + operand1 + ", " + operand1 + ", " + operand2);
-                writer.print("\n\tMOVZ " + output + ", $zero " + operand1);
-                writer.print("\n\tMOVN " + output + ", " + valOne + ", " + output);
+                Register diff = writable(operand1);
+                writer.print("\n\tSUB " + diff + ", " + operand1 + ", " + operand2);
+                writer.print("\n\tMOVZ " + output + ", $zero " + diff);
+                writer.print("\n\tMOVN " + output + ", " + valOne + ", " + diff);
                 freeRegister(operand1);
+                if (diff != operand1) freeRegister(diff);
                 freeRegister(operand2);
                 freeRegister(valOne);
                 return output;
@@ -702,11 +1656,13 @@ public class CodeGenerator implements ASTVisitor<Register> {
                 Register valOne = getRegister();
                 writer.print("\n\tLI " + valOne + ", 1\t\t\t# Register to hold value 1.");
 
-                writer.print("\n\tSUB " + operand1 + ", " + operand1 + ", " + operand2);
-                writer.print("\n\tMOVN " + output + ",$zero , " + operand1);
-                writer.print("\n\tMOVZ " + output + ", " + valOne + ", " + operand1 + "\t# " + output + " now holds if " + operand1 + " == " + operand2);
+                Register diff = writable(operand1);
+                writer.print("\n\tSUB " + diff + ", " + operand1 + ", " + operand2);
+                writer.print("\n\tMOVN " + output + ",$zero , " + diff);
+                writer.print("\n\tMOVZ " + output + ", " + valOne + ", " + diff + "\t# " + output + " now holds if " + operand1 + " == " + operand2);
                 
                 freeRegister(operand1);
+                if (diff != operand1) freeRegister(diff);
                 freeRegister(operand2);
                 freeRegister(valOne);
                 writer.print("\n\t# HERE");
@@ -761,33 +1717,39 @@ public class CodeGenerator implements ASTVisitor<Register> {
 
     @Override
     public Register visitFieldAccessExpr(FieldAccessExpr fae) {
+        String key = values.key(fae);
+        Register cached = values.lookup(key);
+        if (cached != null) return cached;
+
         VarExpr       faeVE = (VarExpr)fae.struct;
         VarDecl       faeVD = faeVE.vd;
         StructType       st = (StructType)faeVD.type;
-        StructTypeDecl  std = structTypeDecls.get(st.identifier);
+        StructTypeDecl  std = structTypeDecls.get(st.symbol);
         int    structOffset = 0;
         for (VarDecl field: std.varDecls) {
-            if (field.ident.equals(fae.field)) break;
+            if (field.symbol == fae.fieldSymbol) break;
             structOffset += 4;
         }
 
-        Symbol varSymbol = currScope.lookup(faeVE.ident);
-        
         // If this var exists on the stack.
-        if (varSymbol != null) {
-            VarDecl stackVar = ((Variable)varSymbol).decl;
+        if (faeVD.storage == VarDecl.Storage.FRAME) {
+            VarDecl stackVar = faeVD;
             Register output = getRegister();
             writer.print("\n\tLW " + output + ", " + (stackVar.fpOffset - structOffset) + "($fp)\t# Loading  Stack var [" + stackVar.ident + "." + fae.field + "] to " + output);
-            return output;
+            return remember(key, fae, output);
         }
         // Else this var exists in the heap.
         else {
             Register output = getRegister();
-            Register heapAddr = getRegister();
-            writer.print("\n\tLA " + heapAddr + ", " + faeVD.ident);
+            Register heapAddr = loopBases.get(faeVD);
+            boolean  hoisted  = heapAddr != null;
+            if (!hoisted) {
+                heapAddr = getRegister();
+                writer.print("\n\tLA " + heapAddr + ", " + faeVD.ident);
+            }
             writer.print("\n\tLW " + output + ", " + (0 - structOffset) + "(" + heapAddr + ")\t# Loading  Heap var ["  + faeVD.ident +  "." + fae.field + "] to " + output);
-            freeRegister(heapAddr);
-            return output;
+            if (!hoisted) freeRegister(heapAddr);
+            return remember(key, fae, output);
         }
     }
 
@@ -801,15 +1763,24 @@ public class CodeGenerator implements ASTVisitor<Register> {
 
         // Push Register state to stack.
         Stack<Register> reinstate = (Stack<Register>)freeRegs.clone();
-        freeAllRegs();
-        Stack<Register> allRegs   = (Stack<Register>)freeRegs.clone();
-        
-        writer.print("\n\t# ~~~ Saving Reg State to Stack ~~~ #");
-        for (Register reg: allRegs) {
-            writer.print("\n\t ADDI $sp, $sp, -4");
-            writer.print("\n\t SW " + reg + "($sp)");
+        Set<Register> heldBefore = new HashSet<Register>(values.registers());
+        HashSet<Register> writtenBefore = written;
+        written = new HashSet<Register>();
+        PrintWriter callWriter = writer;
+        StringWriter args = new StringWriter();
+        if (colouring) {
+            // Only the registers live across the call and changed by the callee are saved, once they are known.
+            writer.print("\n\t" + GraphColouring.SAVE);
+            for (Register reg: clobbersOf(fce.fd)) writer.print(" " + reg);
+        }
+        else {
+            freeAllRegs();
+            // Loop addresses and known values are still read while evaluating the arguments.
+            freeRegs.removeAll(loopRegs);
+            freeRegs.removeAll(values.registers());
+            // The arguments are generated first, to know which registers they write.
+            writer = new PrintWriter(args);
         }
-        writer.print("\n\t# ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ #");
 
         int paramBytes = 0;
         
@@ -817,6 +1788,7 @@ public class CodeGenerator implements ASTVisitor<Register> {
         int num_params = fce.fd.params.size();
         writer.print("\n\n\t# --- About to call function: " + fce.ident + " --- #");
         writer.print("\n\t# Pushing {" + num_params + "} Params on Stack for [" + fce.ident + "()]");
+        argDepth++;
         for (int i = (num_params - 1); i >= 0; i--) {
             currFunDecl = callee;
             Register paramReg = fce.exprs.get(i).accept(this);
@@ -826,6 +1798,7 @@ public class CodeGenerator implements ASTVisitor<Register> {
             freeRegister(paramReg);
             paramBytes += 4;
         }
+        argDepth--;
         
         // Push current FP to stack.
          Register temp = getRegister();
@@ -836,6 +1809,26 @@ public class CodeGenerator implements ASTVisitor<Register> {
          writer.print("\n\tMOVE $fp, " + temp + "\t\t#   -> Curr $fp -> [param0]");
          freeRegister(temp);
 
+        // Save the registers in use that the arguments or the callee write.
+        written.addAll(clobbersOf(fce.fd));
+        List<Register> saved = new ArrayList<Register>();
+        if (!colouring) {
+            Set<Register> free = new HashSet<Register>(reinstate);
+            for (Register reg: Register.tmpRegs)
+                if (!free.contains(reg) && written.contains(reg)) saved.add(reg);
+            writer.flush();
+            writer = callWriter;
+            writer.print("\n\t# ~~~ Saving {" + saved.size() + "} Regs to Stack ~~~ #");
+            for (Register reg: saved) {
+                writer.print("\n\t ADDI $sp, $sp, -4");
+                writer.print("\n\t SW " + reg + "($sp)");
+            }
+            writer.print("\n\t# ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ #");
+            writer.print(args.toString());
+        }
+        writtenBefore.addAll(written);
+        written = writtenBefore;
+
         // Jump to function.
         writer.print("\n\n\tJAL " + fce.ident + "\t\t\t#  CALL => " + fce.ident + "()\n");
 
@@ -851,15 +1844,23 @@ public class CodeGenerator implements ASTVisitor<Register> {
 
 
         // Push Register state to stack.
-        freeAllRegs();
-        writer.print("\n\t# ~~~ Restoring Reg State from Stack ~~~ #");
-        Collections.reverse(allRegs);
-        for (Register reg: allRegs) {
-            writer.print("\n\t LW " + reg + "($sp)");
-            writer.print("\n\t ADDI $sp, $sp, 4");
-        }
-        writer.print("\n\t# ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ #");
-        freeRegs = reinstate;
+        if (colouring) {
+            writer.print("\n\t" + GraphColouring.RESTORE);
+        }
+        else {
+            writer.print("\n\t# ~~~ Restoring Reg State from Stack ~~~ #");
+            Collections.reverse(saved);
+            for (Register reg: saved) {
+                writer.print("\n\t LW " + reg + "($sp)");
+                writer.print("\n\t ADDI $sp, $sp, 4");
+            }
+            writer.print("\n\t# ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ #");
+            freeRegs = reinstate;
+            // Values given up while generating the arguments leave their registers free.
+            for (Register reg: heldBefore)
+                if (!values.holds(reg)) freeRegs.push(reg);
+        }
+        values.called();
         
 
         // Return the current function back to one we are currently in.
@@ -906,7 +1907,7 @@ public class CodeGenerator implements ASTVisitor<Register> {
         }
         if (soe.type instanceof StructType) {
             StructType st = (StructType)soe.type;
-            StructTypeDecl std = structTypeDecls.get(st.identifier);
+            StructTypeDecl std = structTypeDecls.get(st.symbol);
             Register output = getRegister();
             System.out.println("StructType " + st.identifier + " has size: " + std.compactSize + " and alloc size: " + std.allocSize);
             writer.print("\n\tLI " + output + ", " + std.compactSize + "\t\t# sizeof(StructType: " + st.identifier + ")");
@@ -919,10 +1920,11 @@ public class CodeGenerator implements ASTVisitor<Register> {
     public Register visitStrLiteral(StrLiteral sl) {
         Register output = getRegister();
         writer.print("\n\t.data");
-        writer.print("\n\t\tstr" + strNum + ":\t.asciiz \"" + sl.val + "\"");
+        // Numbered within the function, like its labels, so functions can be generated apart.
+        String label = currFunDecl.name + "_str" + currFunDecl.currStr++;
+        writer.print("\n\t\t" + label + ":\t.asciiz \"" + sl.val + "\"");
         writer.print("\n\t.text");
-        writer.print("\n\tLA " + output + ", str" + strNum);
-        strNum++;
+        writer.print("\n\tLA " + output + ", " + label);
 		return output;
     }
     
@@ -933,29 +1935,39 @@ public class CodeGenerator implements ASTVisitor<Register> {
 
     @Override
     public Register visitValueAtExpr(ValueAtExpr vae) {
+        String key = values.key(vae);
+        Register cached = values.lookup(key);
+        if (cached != null) return cached;
+
         Register output = getRegister();
         System.out.println("VAE: " + output);
         Register addr = vae.expr.accept(this);
         writer.print("\n\tLW " + output + ", (" + addr + ")\t\t# Loading value at addr(" + addr + ")");
         freeRegister(addr);
-		return output;
+		return remember(key, vae, output);
     }
 
     @Override
     public Register visitVarExpr(VarExpr v) {
-        Symbol varSymbol = currScope.lookup(v.ident);
-        
+        String key = values.key(v);
+        Register cached = values.lookup(key);
+        if (cached != null) return cached;
+
         // If this var exists on the stack.
-        if (varSymbol != null) {
-            VarDecl stackVar = ((Variable)varSymbol).decl;
+        if (v.vd.storage == VarDecl.Storage.FRAME) {
+            VarDecl stackVar = v.vd;
             Register output = getRegister();
             writer.print("\n\tLW " + output + ", " + stackVar.fpOffset + "($fp)\t\t# Loading stack variable [" + stackVar.ident + "] into " + output);
-            return output;
+            return remember(key, v, output);
         }
         else {
             Register output = getRegister();
-            writer.print("\n\tLW " + output + ", " + v.ident + "\t\t# Loading heap variable [" + v.ident + "] into " + output);
-            return output;
+            Register base = loopBases.get(v.vd);
+            if (base != null)
+                writer.print("\n\tLW " + output + ", (" + base + ")\t\t# Loading heap variable [" + v.ident + "] into " + output);
+            else
+                writer.print("\n\tLW " + output + ", " + v.ident + "\t\t# Loading heap variable [" + v.ident + "] into " + output);
+            return remember(key, v, output);
         }
     }
     
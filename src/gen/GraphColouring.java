@@ -0,0 +1,580 @@
+package gen;
+
+import util.Profile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Stack;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Chaitin-Briggs register allocation over the code of one function.
+ *
+ * With this allocator the code generator writes a function with as many virtual registers ($vr0, $vr1, ...)
+ * as it likes, marks where registers must be saved and restored around each call, and hands the text
+ * of the function to allocate(), which
+ *   - finds the registers live after each instruction,
+ *   - builds the interference graph: two registers interfere if one is written while the other is live,
+ *   - coalesces the two ends of a MOVE that do not interfere, if that cannot make the graph harder to
+ *     colour (Briggs' test, or George's for MOVEs from and to $v0, such as the MOVE output, $v0 after a call),
+ *   - colours the graph with Register.tmpRegs, removing nodes with fewer neighbours than there are
+ *     registers, and optimistically the cheapest node to spill whenever there is none,
+ *   - spills the nodes that could not be coloured to the stack frame, and starts again.
+ * The spill cost of a register is its number of uses and definitions, each weighted by the number of
+ * times its statement ran in the profile, or by 10 to the depth of the loops it is in without one.
+ *
+ * Only the registers holding a value across a call, and changed by the callee, are saved around it.
+ */
+class GraphColouring {
+
+    /*
+     * The code is read as text, so the code generator writes it as the allocator expects: one instruction per
+     * line, its mnemonic first, spelt as by MARS in any case, then its operands separated by commas or blanks.
+     * Virtual registers are $vr followed by a number. A label is alone on its line and ends with ':', '#' starts
+     * a comment, and a line starting with #@ is one of the markers below, which only the allocator reads.
+     * An instruction writing its first operand must be listed in WRITES_FIRST, and a conditional branch in
+     * BRANCHES, or the registers it defines are taken for uses and the loops it closes go unseen.
+     */
+
+    // Markers left in the code by the code generator.
+    static final String SAVE    = "#@SAVE";     // save the registers live across the next call, of those listed after it
+    static final String RESTORE = "#@RESTORE";  // restore them after it
+    static final String FRAME   = "#@FRAME";    // end of the prologue, room for spilled registers is made here
+    static final String UNFRAME = "#@UNFRAME";  // start of the epilogue
+    static final String COUNT   = "#@COUNT";    // the code up to the next COUNT ran as often as given, -1 if unknown
+
+    private static final int K = Register.tmpRegs.size();
+    private static final int MAX_WEIGHTED_DEPTH = 6;
+
+    private static final String V0 = "$v0";
+    private static final int V0_NODE = 0;
+
+    private static final Pattern REGISTER = Pattern.compile("\\$(vr\\d+|v0)(?!\\w)");
+    private static final Pattern LABEL    = Pattern.compile("^([A-Za-z_.$][\\w.$]*):$");
+    private static final Pattern VIRTUAL  = Pattern.compile("\\$vr(\\d+)");
+
+    // Instructions writing their first operand.
+    private static final HashSet<String> WRITES_FIRST = new HashSet<String>(Arrays.asList(
+            "LW", "LB", "LI", "LA", "MOVE", "MOVZ", "MOVN", "MFLO", "MFHI",
+            "ADD", "ADDU", "ADDI", "ADDIU", "SUB", "SUBU", "MUL", "NEG",
+            "AND", "ANDI", "OR", "ORI", "XOR", "XORI", "NOR", "NOT",
+            "SLL", "SRL", "SRA", "SLLV", "SRLV", "SRAV", "SLT", "SLTU", "SLTI", "SLTIU"));
+
+    private static final HashSet<String> BRANCHES = new HashSet<String>(Arrays.asList(
+            "B", "BEQ", "BNE", "BEQZ", "BNEZ", "BGEZ", "BGTZ", "BLEZ", "BLTZ"));
+
+    /* One line of the function. */
+    private static class Instr {
+        final String text;
+        String op;                  // upper case opcode or marker, null for labels, directives and comments
+        String label;               // the label the line defines
+        String target;              // the label a branch or jump goes to
+        List<String> defs = new ArrayList<String>();
+        List<String> uses = new ArrayList<String>();
+
+        Instr(String text) {
+            this.text = text;
+            String code = stripComment(text).trim();
+            if (text.trim().startsWith("#@")) {
+                op = text.trim().split("\\s+")[0];
+                return;
+            }
+            Matcher label = LABEL.matcher(code);
+            if (label.matches()) {
+                this.label = label.group(1);
+                return;
+            }
+            if (code.isEmpty() || code.startsWith(".") || code.contains(".asciiz")) return;
+
+            String[] parts = code.split("[,\\s]+");
+            op = parts[0].toUpperCase();
+            for (int i = 1; i < parts.length; i++) {
+                List<String> regs = registersIn(parts[i]);
+                if (i == 1 && WRITES_FIRST.contains(op)) {
+                    defs.addAll(regs);
+                    // A conditional move keeps the old value when it does not move.
+                    if (op.equals("MOVZ") || op.equals("MOVN")) uses.addAll(regs);
+                }
+                else uses.addAll(regs);
+            }
+            if (op.equals("JAL")) defs.add(V0);
+            if ((op.equals("J") || BRANCHES.contains(op)) && parts.length > 1) target = parts[parts.length - 1];
+        }
+
+        private Instr(Instr instr, String text) {
+            this.text   = text;
+            this.op     = instr.op;
+            this.label  = instr.label;
+            this.target = instr.target;
+        }
+
+        /* This instruction with register from replaced by to. */
+        Instr renamed(String from, String to) {
+            Instr renamed = new Instr(this, text.replaceAll(Pattern.quote(from) + "(?!\\w)", Matcher.quoteReplacement(to)));
+            for (String reg: defs) renamed.defs.add(reg.equals(from) ? to : reg);
+            for (String reg: uses) renamed.uses.add(reg.equals(from) ? to : reg);
+            return renamed;
+        }
+
+        boolean isMove() {
+            return "MOVE".equals(op) && defs.size() == 1 && uses.size() == 1;
+        }
+
+        boolean isConditionalMove() {
+            return "MOVZ".equals(op) || "MOVN".equals(op);
+        }
+    }
+
+    private List<Instr> code = new ArrayList<Instr>();
+    private final int spillBase;                            // $fp offset of the first spill slot
+    private int spillSlots = 0;
+    private int nextVirtual;
+    private final HashSet<String> unspillable = new HashSet<String>();
+
+    // Built for every attempt at colouring.
+    private HashMap<String, Integer> nodes;
+    private List<String> names;
+    private BitSet[] liveOut;
+    private BitSet[] adj;
+    private int[] alias;
+    private int[] colour;
+
+    GraphColouring(String function, int spillBase) {
+        this.spillBase = spillBase;
+        int highest = -1;
+        for (String line: function.split("\n", -1)) {
+            code.add(new Instr(line));
+            Matcher m = VIRTUAL.matcher(line);
+            while (m.find()) highest = Math.max(highest, Integer.parseInt(m.group(1)));
+        }
+        nextVirtual = highest + 1;
+
+        // MOVZ d, a, c followed by MOVN d, b, c (or the other way around) writes d either way,
+        // so the first of the pair does not read d.
+        for (int i = 0; i + 1 < code.size(); i++) {
+            Instr first = code.get(i), second = code.get(i + 1);
+            if (!first.isConditionalMove() || !second.isConditionalMove() || first.op.equals(second.op)) continue;
+            if (first.defs.isEmpty() || !first.defs.equals(second.defs)) continue;
+            List<String> cond1 = registersIn(lastOperand(first.text));
+            List<String> cond2 = registersIn(lastOperand(second.text));
+            if (cond1.isEmpty() || !cond1.equals(cond2)) continue;
+            first.uses.remove(first.defs.get(0));
+        }
+    }
+
+    /* The code of the function, with every virtual register replaced by a machine register. */
+    String allocate() {
+        while (true) {
+            number();
+            liveness();
+            interference();
+            coalesce();
+            List<Integer> spilled = colour(simplify());
+            if (spilled.isEmpty()) return emit();
+            spill(spilled);
+        }
+    }
+
+    /* Node numbers for $v0 and every virtual register in the code. */
+    private void number() {
+        nodes = new HashMap<String, Integer>();
+        names = new ArrayList<String>();
+        node(V0);
+        for (Instr instr: code) {
+            for (String reg: instr.defs) node(reg);
+            for (String reg: instr.uses) node(reg);
+        }
+    }
+
+    private int node(String reg) {
+        Integer n = nodes.get(reg);
+        if (n != null) return n;
+        nodes.put(reg, names.size());
+        names.add(reg);
+        return names.size() - 1;
+    }
+
+    private int[][] successors() {
+        HashMap<String, Integer> labels = new HashMap<String, Integer>();
+        for (int i = 0; i < code.size(); i++)
+            if (code.get(i).label != null) labels.put(code.get(i).label, i);
+
+        int[][] succ = new int[code.size()][];
+        for (int i = 0; i < code.size(); i++) {
+            Instr instr = code.get(i);
+            Integer target = instr.target == null ? null : labels.get(instr.target);
+            boolean last = i + 1 == code.size();
+            if ("JR".equals(instr.op))
+                succ[i] = new int[0];
+            else if ("J".equals(instr.op))
+                succ[i] = target == null ? new int[0] : new int[]{target};
+            else if (BRANCHES.contains(instr.op) && target != null)
+                succ[i] = last ? new int[]{target} : new int[]{target, i + 1};
+            else
+                succ[i] = last ? new int[0] : new int[]{i + 1};
+        }
+        return succ;
+    }
+
+    private void liveness() {
+        int n = code.size();
+        int[][] succ = successors();
+        BitSet[] use = new BitSet[n], def = new BitSet[n];
+        BitSet[] liveIn = new BitSet[n];
+        liveOut = new BitSet[n];
+        for (int i = 0; i < n; i++) {
+            use[i] = new BitSet();
+            def[i] = new BitSet();
+            for (String reg: code.get(i).uses) use[i].set(nodes.get(reg));
+            for (String reg: code.get(i).defs) def[i].set(nodes.get(reg));
+            liveIn[i]  = new BitSet();
+            liveOut[i] = new BitSet();
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = n - 1; i >= 0; i--) {
+                BitSet out = new BitSet();
+                for (int s: succ[i]) out.or(liveIn[s]);
+                BitSet in = (BitSet)out.clone();
+                in.andNot(def[i]);
+                in.or(use[i]);
+                if (!in.equals(liveIn[i]) || !out.equals(liveOut[i])) {
+                    liveIn[i]  = in;
+                    liveOut[i] = out;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private void interference() {
+        adj   = new BitSet[names.size()];
+        alias = new int[names.size()];
+        for (int n = 0; n < names.size(); n++) {
+            adj[n]   = new BitSet();
+            alias[n] = n;
+        }
+        for (int i = 0; i < code.size(); i++) {
+            Instr instr = code.get(i);
+            // The source of a MOVE does not interfere with its destination, they hold the same value.
+            int source = instr.isMove() ? nodes.get(instr.uses.get(0)) : -1;
+            for (String reg: instr.defs) {
+                int d = nodes.get(reg);
+                BitSet live = liveOut[i];
+                for (int l = live.nextSetBit(0); l >= 0; l = live.nextSetBit(l + 1))
+                    if (l != d && l != source) addEdge(d, l);
+                for (String other: instr.defs)
+                    if (!other.equals(reg)) addEdge(d, nodes.get(other));
+            }
+        }
+    }
+
+    private void addEdge(int n1, int n2) {
+        adj[n1].set(n2);
+        adj[n2].set(n1);
+    }
+
+    private int find(int n) {
+        while (alias[n] != n) n = alias[n];
+        return n;
+    }
+
+    private int degree(int n) {
+        return n == V0_NODE ? Integer.MAX_VALUE : adj[n].cardinality();
+    }
+
+    private void coalesce() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Instr instr: code) {
+                if (!instr.isMove()) continue;
+                Integer dst = nodes.get(instr.defs.get(0)), src = nodes.get(instr.uses.get(0));
+                int a = find(dst), b = find(src);
+                if (a == b || adj[a].get(b)) continue;
+                if (b == V0_NODE) {
+                    b = a;
+                    a = V0_NODE;
+                }
+                if (a == V0_NODE ? george(a, b) : briggs(a, b)) {
+                    merge(a, b);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /* Merging a and b is safe if the merged node has fewer than K neighbours of significant degree. */
+    private boolean briggs(int a, int b) {
+        BitSet neighbours = (BitSet)adj[a].clone();
+        neighbours.or(adj[b]);
+        int significant = 0;
+        for (int t = neighbours.nextSetBit(0); t >= 0; t = neighbours.nextSetBit(t + 1))
+            if (degree(t) >= K) significant++;
+        return significant < K;
+    }
+
+    /* Merging b into the precoloured a is safe if every neighbour of b already interferes with a or is trivially colourable. */
+    private boolean george(int a, int b) {
+        for (int t = adj[b].nextSetBit(0); t >= 0; t = adj[b].nextSetBit(t + 1))
+            if (!adj[t].get(a) && degree(t) >= K) return false;
+        return true;
+    }
+
+    private void merge(int a, int b) {
+        alias[b] = a;
+        for (int t = adj[b].nextSetBit(0); t >= 0; t = adj[b].nextSetBit(t + 1)) {
+            adj[t].clear(b);
+            addEdge(a, t);
+        }
+        adj[b].clear();
+    }
+
+    /* The nodes in the order they are to be coloured. */
+    private Stack<Integer> simplify() {
+        double[] cost = spillCosts();
+        int[] degree = new int[names.size()];
+        BitSet remaining = new BitSet();
+        for (int n = 0; n < names.size(); n++) {
+            if (find(n) != n || n == V0_NODE) continue;
+            remaining.set(n);
+            degree[n] = adj[n].cardinality();
+        }
+
+        Stack<Integer> stack = new Stack<Integer>();
+        while (!remaining.isEmpty()) {
+            int next = -1;
+            for (int n = remaining.nextSetBit(0); n >= 0 && next < 0; n = remaining.nextSetBit(n + 1))
+                if (degree[n] < K) next = n;
+            // Nothing is trivially colourable: push the cheapest node to spill, it may still get a colour.
+            if (next < 0) {
+                double best = Double.MAX_VALUE;
+                for (int n = remaining.nextSetBit(0); n >= 0; n = remaining.nextSetBit(n + 1)) {
+                    double c = cost[n] / Math.max(1, degree[n]);
+                    if (next < 0 || c < best) {
+                        best = c;
+                        next = n;
+                    }
+                }
+            }
+            remaining.clear(next);
+            stack.push(next);
+            for (int t = adj[next].nextSetBit(0); t >= 0; t = adj[next].nextSetBit(t + 1)) degree[t]--;
+        }
+        return stack;
+    }
+
+    private double[] spillCosts() {
+        int[] depth = loopDepths();
+        double[] cost = new double[names.size()];
+        long count = Profile.UNKNOWN;
+        for (int i = 0; i < code.size(); i++) {
+            if (COUNT.equals(code.get(i).op)) count = countOf(code.get(i).text);
+            double weight = count != Profile.UNKNOWN ? count : Math.pow(10, Math.min(depth[i], MAX_WEIGHTED_DEPTH));
+            for (String reg: code.get(i).defs) cost[find(nodes.get(reg))] += weight;
+            for (String reg: code.get(i).uses) cost[find(nodes.get(reg))] += weight;
+        }
+        for (String reg: unspillable)
+            if (nodes.containsKey(reg)) cost[find(nodes.get(reg))] = Double.POSITIVE_INFINITY;
+        return cost;
+    }
+
+    /* Loops are closed by a conditional branch back to their start, jumps back come from the cold code. */
+    private int[] loopDepths() {
+        HashMap<String, Integer> labels = new HashMap<String, Integer>();
+        int[] depth = new int[code.size() + 1];
+        for (int i = 0; i < code.size(); i++) {
+            Instr instr = code.get(i);
+            if (instr.label != null) labels.put(instr.label, i);
+            Integer start = instr.target == null ? null : labels.get(instr.target);
+            if (start != null && BRANCHES.contains(instr.op)) {
+                depth[start]++;
+                depth[i + 1]--;
+            }
+        }
+        for (int i = 1; i < depth.length; i++) depth[i] += depth[i - 1];
+        return depth;
+    }
+
+    /* Colours the nodes, returning those left without a colour. */
+    private List<Integer> colour(Stack<Integer> stack) {
+        colour = new int[names.size()];
+        Arrays.fill(colour, -1);
+        colour[V0_NODE] = K;
+        List<Integer> spilled = new ArrayList<Integer>();
+        while (!stack.isEmpty()) {
+            int n = stack.pop();
+            BitSet taken = new BitSet();
+            for (int t = adj[n].nextSetBit(0); t >= 0; t = adj[n].nextSetBit(t + 1))
+                if (colour[t] >= 0) taken.set(colour[t]);
+            int c = taken.nextClearBit(0);
+            if (c < K) colour[n] = c;
+            else spilled.add(n);
+        }
+        return spilled;
+    }
+
+    /* Keeps the spilled nodes in stack slots, loading them into a new register before each use and storing after each definition. */
+    private void spill(List<Integer> spilled) {
+        HashMap<Integer, Integer> slots = new HashMap<Integer, Integer>();
+        for (int n: spilled) slots.put(n, spillBase - 4 * spillSlots++);
+
+        List<Instr> rewritten = new ArrayList<Instr>();
+        for (Instr instr: code) {
+            List<String> after = new ArrayList<String>();
+            HashSet<String> regs = new HashSet<String>(instr.defs);
+            regs.addAll(instr.uses);
+            for (String reg: regs) {
+                Integer slot = slots.get(find(nodes.get(reg)));
+                if (slot == null) continue;
+                String temp = "$vr" + nextVirtual++;
+                unspillable.add(temp);
+                if (instr.uses.contains(reg))
+                    rewritten.add(new Instr("\tLW " + temp + ", " + slot + "($fp)\t\t# Reload spilled " + reg));
+                if (instr.defs.contains(reg))
+                    after.add("\tSW " + temp + ", " + slot + "($fp)\t\t# Spill " + reg);
+                instr = instr.renamed(reg, temp);
+            }
+            rewritten.add(instr);
+            for (String line: after) rewritten.add(new Instr(line));
+        }
+        code = rewritten;
+    }
+
+    private String emit() {
+        // Each SAVE is matched with the RESTORE of the same call, calls nest while evaluating arguments.
+        HashMap<Integer, List<Register>> saved = new HashMap<Integer, List<Register>>();
+        Stack<Integer> saves = new Stack<Integer>();
+        for (int i = 0; i < code.size(); i++) {
+            if (SAVE.equals(code.get(i).op)) saves.push(i);
+            if (RESTORE.equals(code.get(i).op)) {
+                int save = saves.pop();
+                List<Register> regs = liveAcross(i);
+                regs.retainAll(listedIn(code.get(save).text));
+                saved.put(save, regs);
+                saved.put(i, regs);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < code.size(); i++) {
+            Instr instr = code.get(i);
+            if (i > 0) sb.append('\n');
+            if (SAVE.equals(instr.op)) {
+                sb.append("\t# ~~~ Saving {" + saved.get(i).size() + "} live Regs to Stack ~~~ #");
+                for (Register reg: saved.get(i))
+                    sb.append("\n\tADDI $sp, $sp, -4\n\tSW " + reg + ", ($sp)");
+            }
+            else if (RESTORE.equals(instr.op)) {
+                sb.append("\t# ~~~ Restoring {" + saved.get(i).size() + "} live Regs from Stack ~~~ #");
+                List<Register> regs = new ArrayList<Register>(saved.get(i));
+                Collections.reverse(regs);
+                for (Register reg: regs)
+                    sb.append("\n\tLW " + reg + ", ($sp)\n\tADDI $sp, $sp, 4");
+            }
+            else if (FRAME.equals(instr.op)) {
+                if (spillSlots > 0)
+                    sb.append("\tADDI $sp, $fp, " + (spillBase - 4 * (spillSlots - 1)) + "\t# Room for {" + spillSlots + "} spilled Regs.");
+            }
+            else if (UNFRAME.equals(instr.op)) {
+                if (spillSlots > 0) sb.append("\tADDI $sp, $fp, -8\t# Drop the spilled Regs.");
+            }
+            else if (COUNT.equals(instr.op)) {
+                if (countOf(instr.text) != Profile.UNKNOWN)
+                    sb.append("\t# Ran {" + countOf(instr.text) + "} times in the profile.");
+            }
+            else if (instr.isMove() && colourOf(instr.defs.get(0)).equals(colourOf(instr.uses.get(0)))) {
+                sb.append("\t# Coalesced: " + replaceVirtuals(instr.text.trim()));
+            }
+            else
+                sb.append(replaceVirtuals(instr.text));
+        }
+        return sb.toString();
+    }
+
+    /* The machine registers holding a value across the call ending at restore. */
+    private List<Register> liveAcross(int restore) {
+        BitSet colours = new BitSet();
+        BitSet live = liveOut[restore];
+        for (int n = live.nextSetBit(0); n >= 0; n = live.nextSetBit(n + 1))
+            if (colour[find(n)] < K) colours.set(colour[find(n)]);
+        List<Register> regs = new ArrayList<Register>();
+        for (int c = colours.nextSetBit(0); c >= 0; c = colours.nextSetBit(c + 1)) regs.add(Register.tmpRegs.get(c));
+        return regs;
+    }
+
+    /* The machine registers given to virtual registers, once allocate() is done. */
+    List<Register> registersUsed() {
+        BitSet colours = new BitSet();
+        for (int n = 0; n < names.size(); n++)
+            if (colour[find(n)] < K) colours.set(colour[find(n)]);
+        List<Register> regs = new ArrayList<Register>();
+        for (int c = colours.nextSetBit(0); c >= 0; c = colours.nextSetBit(c + 1)) regs.add(Register.tmpRegs.get(c));
+        return regs;
+    }
+
+    /* The machine registers named in a marker. */
+    private static List<Register> listedIn(String marker) {
+        List<String> names = Arrays.asList(marker.trim().split("\\s+"));
+        List<Register> regs = new ArrayList<Register>();
+        for (Register reg: Register.tmpRegs)
+            if (names.contains(reg.toString())) regs.add(reg);
+        return regs;
+    }
+
+    private static long countOf(String marker) {
+        String[] fields = marker.trim().split("\\s+");
+        return Long.parseLong(fields[fields.length - 1]);
+    }
+
+    private String colourOf(String reg) {
+        int c = colour[find(nodes.get(reg))];
+        return c == K ? V0 : Register.tmpRegs.get(c).toString();
+    }
+
+    private String replaceVirtuals(String text) {
+        Matcher m = REGISTER.matcher(text);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String reg = m.group();
+            String replacement = nodes.containsKey(reg) ? colourOf(reg) : reg;
+            m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    private static List<String> registersIn(String operand) {
+        List<String> regs = new ArrayList<String>();
+        Matcher m = REGISTER.matcher(operand);
+        while (m.find()) regs.add(m.group());
+        return regs;
+    }
+
+    private static String lastOperand(String text) {
+        String[] parts = stripComment(text).trim().split("[,\\s]+");
+        return parts[parts.length - 1];
+    }
+
+    /* The line without its comment, a # in a character or string literal does not start one. */
+    private static String stripComment(String line) {
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == '\\') i++;
+                else if (c == quote) quote = 0;
+            }
+            else if (c == '\'' || c == '"') quote = c;
+            else if (c == '#') return line.substring(0, i);
+        }
+        return line;
+    }
+}
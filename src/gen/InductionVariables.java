@@ -0,0 +1,235 @@
+package gen;
+
+import ast.*;
+import opt.ASTWalker;
+import opt.Purity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Finds the induction variables of a loop that are worth strength reducing.
+ *
+ * A basic induction variable is a local counter i assigned exactly once in the loop, by i = i + c or
+ * i = i - c. The addresses of the array elements a[i], a[i + k] and a[i - k] are derived induction
+ * variables: they move by 4 * c whenever i does. Instead of computing base + 4 * i on every access,
+ * the code generator keeps a pointer to a[i] and bumps it alongside i.
+ *
+ * If the loop reads i only to index arrays and to compare it against a loop invariant bound,
+ * the counter is not needed at all: the test is replaced by one on the pointer, and i is only
+ * written back when the loop exits.
+ */
+class InductionVariables {
+
+    /* A counter of one loop, and the arrays it walks. */
+    static class Induction {
+        final VarDecl counter;
+        final Assign  update;
+        final int     step;
+        final List<VarDecl> arrays;
+
+        // Set when the counter itself can be dropped from the loop.
+        BinOp test;
+        Expr  bound;
+
+        // Filled in by the code generator: a pointer per array, and the pointer value ending the loop.
+        final HashMap<VarDecl, Register> pointers = new HashMap<VarDecl, Register>();
+        Register end;
+
+        Induction(VarDecl counter, Assign update, int step, List<VarDecl> arrays) {
+            this.counter = counter;
+            this.update  = update;
+            this.step    = step;
+            this.arrays  = arrays;
+        }
+
+        boolean eliminated() {
+            return test != null;
+        }
+
+        /* True if the counter is on the left hand side of the test. */
+        boolean counterFirst() {
+            return counterOf(test.expr1) == counter;
+        }
+    }
+
+    private final While loop;
+    private final HashSet<VarDecl> declared = new HashSet<VarDecl>();
+    private final LinkedHashMap<VarDecl, List<Assign>> assigns = new LinkedHashMap<VarDecl, List<Assign>>();
+    private final HashMap<VarDecl, Integer> reads = new HashMap<VarDecl, Integer>();
+    private final boolean hasCall;
+
+    private InductionVariables(While loop) {
+        this.loop = loop;
+        this.hasCall = Purity.hasCall(loop);
+        loop.accept(new ASTWalker() {
+            @Override
+            public Void visitBlock(Block b) {
+                declared.addAll(b.varDecls);
+                return super.visitBlock(b);
+            }
+
+            @Override
+            public Void visitAssign(Assign a) {
+                if (a.expr1 instanceof VarExpr) {
+                    VarDecl vd = ((VarExpr)a.expr1).vd;
+                    if (!assigns.containsKey(vd)) assigns.put(vd, new ArrayList<Assign>());
+                    assigns.get(vd).add(a);
+                    a.expr2.accept(this);
+                    return null;
+                }
+                return super.visitAssign(a);
+            }
+
+            @Override
+            public Void visitVarExpr(VarExpr v) {
+                Integer n = reads.get(v.vd);
+                reads.put(v.vd, n == null ? 1 : n + 1);
+                return null;
+            }
+        });
+    }
+
+    /* The induction variables of loop that index at least one array, at most max of them. */
+    static List<Induction> find(While loop, int max) {
+        return new InductionVariables(loop).find(max);
+    }
+
+    private List<Induction> find(int max) {
+        List<Induction> found = new ArrayList<Induction>();
+        for (VarDecl vd: assigns.keySet()) {
+            if (found.size() == max) break;
+            if (Purity.isGlobal(vd) || !(vd.type instanceof BaseType) || declared.contains(vd)) continue;
+            if (assigns.get(vd).size() != 1) continue;
+            Assign update = assigns.get(vd).get(0);
+            Integer step = stepOf(vd, update.expr2);
+            if (step == null) continue;
+
+            final VarDecl counter = vd;
+            final LinkedHashMap<VarDecl, Integer> arrays = new LinkedHashMap<VarDecl, Integer>();
+            loop.accept(new ASTWalker() {
+                @Override
+                public Void visitArrayAccessExpr(ArrayAccessExpr aae) {
+                    if (aae.array instanceof VarExpr && counterOf(aae.index) == counter) {
+                        VarDecl arrVD = ((VarExpr)aae.array).vd;
+                        if (!declared.contains(arrVD)) {
+                            Integer n = arrays.get(arrVD);
+                            arrays.put(arrVD, n == null ? 1 : n + 1);
+                        }
+                    }
+                    return super.visitArrayAccessExpr(aae);
+                }
+            });
+            if (arrays.isEmpty()) continue;
+
+            Induction ind = new Induction(counter, update, step, new ArrayList<VarDecl>(arrays.keySet()));
+            findTest(ind, arrays.values());
+            found.add(ind);
+        }
+        return found;
+    }
+
+    /*
+     * The counter can be dropped if every read of it is accounted for:
+     * one in its update, one per array index, and one in the loop test.
+     */
+    private void findTest(Induction ind, Iterable<Integer> indexReads) {
+        if (!(loop.expr instanceof BinOp)) return;
+        BinOp test = (BinOp)loop.expr;
+        if (test.op != Op.LT && test.op != Op.LE && test.op != Op.GT && test.op != Op.GE
+                && test.op != Op.NE && test.op != Op.EQ) return;
+
+        Expr bound;
+        if (test.expr1 instanceof VarExpr && ((VarExpr)test.expr1).vd == ind.counter)
+            bound = test.expr2;
+        else if (test.expr2 instanceof VarExpr && ((VarExpr)test.expr2).vd == ind.counter)
+            bound = test.expr1;
+        else
+            return;
+        if (!isInvariant(bound)) return;
+
+        int accounted = 2;
+        for (int n: indexReads) accounted += n;
+        if (reads.get(ind.counter) != accounted) return;
+
+        ind.test  = test;
+        ind.bound = bound;
+    }
+
+    /* True if vd is read anywhere in fd outside of loop. */
+    static boolean readOutside(FunDecl fd, final While loop, final VarDecl vd) {
+        final boolean[] read = {false};
+        fd.block.accept(new ASTWalker() {
+            @Override
+            public Void visitWhile(While w) {
+                if (w == loop) return null;
+                return super.visitWhile(w);
+            }
+
+            @Override
+            public Void visitAssign(Assign a) {
+                if (!(a.expr1 instanceof VarExpr)) a.expr1.accept(this);
+                a.expr2.accept(this);
+                return null;
+            }
+
+            @Override
+            public Void visitVarExpr(VarExpr v) {
+                if (v.vd == vd) read[0] = true;
+                return null;
+            }
+        });
+        return read[0];
+    }
+
+    private boolean isInvariant(Expr e) {
+        if (e instanceof IntLiteral || e instanceof ChrLiteral) return true;
+        if (!(e instanceof VarExpr)) return false;
+        VarDecl vd = ((VarExpr)e).vd;
+        if (!Purity.isScalar(vd) || assigns.containsKey(vd) || declared.contains(vd)) return false;
+        return !(Purity.isGlobal(vd) && hasCall);
+    }
+
+    /* c for "vd + c", "c + vd" and "vd - c", null for anything else. */
+    private static Integer stepOf(VarDecl vd, Expr e) {
+        if (!(e instanceof BinOp)) return null;
+        BinOp bo = (BinOp)e;
+        if (bo.op == Op.ADD && isVar(bo.expr1, vd) && bo.expr2 instanceof IntLiteral)
+            return ((IntLiteral)bo.expr2).val;
+        if (bo.op == Op.ADD && isVar(bo.expr2, vd) && bo.expr1 instanceof IntLiteral)
+            return ((IntLiteral)bo.expr1).val;
+        if (bo.op == Op.SUB && isVar(bo.expr1, vd) && bo.expr2 instanceof IntLiteral)
+            return -((IntLiteral)bo.expr2).val;
+        return null;
+    }
+
+    private static boolean isVar(Expr e, VarDecl vd) {
+        return e instanceof VarExpr && ((VarExpr)e).vd == vd;
+    }
+
+    /* The counter of an index "i", "i + k", "k + i" or "i - k", or null. */
+    static VarDecl counterOf(Expr index) {
+        if (index instanceof VarExpr) return ((VarExpr)index).vd;
+        if (!(index instanceof BinOp)) return null;
+        BinOp bo = (BinOp)index;
+        if (bo.op == Op.ADD && bo.expr1 instanceof VarExpr && bo.expr2 instanceof IntLiteral)
+            return ((VarExpr)bo.expr1).vd;
+        if (bo.op == Op.ADD && bo.expr2 instanceof VarExpr && bo.expr1 instanceof IntLiteral)
+            return ((VarExpr)bo.expr2).vd;
+        if (bo.op == Op.SUB && bo.expr1 instanceof VarExpr && bo.expr2 instanceof IntLiteral)
+            return ((VarExpr)bo.expr1).vd;
+        return null;
+    }
+
+    /* The k of an index counted by counterOf, in elements. */
+    static int offsetOf(Expr index) {
+        if (!(index instanceof BinOp)) return 0;
+        BinOp bo = (BinOp)index;
+        if (bo.expr1 instanceof IntLiteral) return ((IntLiteral)bo.expr1).val;
+        int k = ((IntLiteral)bo.expr2).val;
+        return bo.op == Op.SUB ? -k : k;
+    }
+}
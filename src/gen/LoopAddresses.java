@@ -0,0 +1,72 @@
+package gen;
+
+import ast.*;
+import opt.ASTWalker;
+import opt.Purity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Counts, for one loop, the variables whose address the loop computes over and over:
+ * arrays indexed in the loop, and globals read or written by label.
+ * Variables declared inside the loop are left out, their address is not known before it.
+ */
+class LoopAddresses extends ASTWalker {
+
+    private final LinkedHashMap<VarDecl, Integer> uses = new LinkedHashMap<VarDecl, Integer>();
+    private final HashSet<VarDecl> declared = new HashSet<VarDecl>();
+
+    LoopAddresses(While w) {
+        w.accept(this);
+        for (VarDecl vd: declared) uses.remove(vd);
+    }
+
+    /* The variables found, most used first. */
+    List<VarDecl> byUses() {
+        List<VarDecl> vds = new ArrayList<VarDecl>(uses.keySet());
+        Collections.sort(vds, new Comparator<VarDecl>() {
+            @Override
+            public int compare(VarDecl vd1, VarDecl vd2) {
+                return uses.get(vd2) - uses.get(vd1);
+            }
+        });
+        return vds;
+    }
+
+    private void use(VarDecl vd) {
+        if (vd == null) return;
+        Integer n = uses.get(vd);
+        uses.put(vd, n == null ? 1 : n + 1);
+    }
+
+    @Override
+    public Void visitBlock(Block b) {
+        declared.addAll(b.varDecls);
+        return super.visitBlock(b);
+    }
+
+    @Override
+    public Void visitArrayAccessExpr(ArrayAccessExpr aae) {
+        if (aae.array instanceof VarExpr) use(((VarExpr)aae.array).vd);
+        aae.index.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitFieldAccessExpr(FieldAccessExpr fae) {
+        VarDecl vd = ((VarExpr)fae.struct).vd;
+        if (vd != null && Purity.isGlobal(vd)) use(vd);
+        return null;
+    }
+
+    @Override
+    public Void visitVarExpr(VarExpr v) {
+        if (v.vd != null && Purity.isGlobal(v.vd) && Purity.isScalar(v.vd)) use(v.vd);
+        return null;
+    }
+}
@@ -46,6 +46,11 @@ public class Register {
         this.name = name;
     }
 
+    /* A virtual register, given one of the tmpRegs by GraphColouring. */
+    static Register virtual(int n) {
+        return new Register(-1, "vr" + n);
+    }
+
     public String toString() {
         return "$"+name;
     }
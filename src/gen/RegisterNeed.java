@@ -0,0 +1,72 @@
+package gen;
+
+import ast.*;
+
+/**
+ * Estimates how many registers the code generator holds at once while generating a statement, so that a
+ * loop keeps addresses in registers only if its body can do without them.
+ *
+ * It follows the order the code generator works in: an operation takes its output register first, then
+ * holds the value of its first operand while it evaluates the second, and may need two more registers
+ * once both are known. The estimate is an upper bound, values found in the ValueTable only take fewer.
+ * A call starts again from the registers free before it, the rest being saved around it.
+ */
+class RegisterNeed {
+
+    private static final int BINOP_NEED   = 4;  // both operands, and the two registers NE and EQ take
+    private static final int ADDRESS_NEED = 3;  // the index, the offset and the start of the array
+
+    static int of(Stmt s) {
+        if (s == null) return 0;
+        if (s instanceof Block) {
+            int need = 0;
+            for (Stmt stmt: ((Block)s).stmts) need = Math.max(need, of(stmt));
+            return need;
+        }
+        if (s instanceof While) {
+            While w = (While)s;
+            return Math.max(of(w.expr), of(w.stmt));
+        }
+        if (s instanceof If) {
+            // The condition is held until both branches are generated.
+            If i = (If)s;
+            return Math.max(of(i.expr), 1 + Math.max(of(i.stmt1), of(i.stmt2)));
+        }
+        if (s instanceof Assign) {
+            Assign a = (Assign)s;
+            if (a.expr1 instanceof ArrayAccessExpr)
+                return Math.max(of(a.expr2), 1 + address((ArrayAccessExpr)a.expr1));
+            if (a.expr1 instanceof FieldAccessExpr)
+                return Math.max(of(a.expr2), 2);
+            if (a.expr1 instanceof ValueAtExpr)
+                return Math.max(of(((ValueAtExpr)a.expr1).expr), 1 + of(a.expr2));
+            return of(a.expr2);
+        }
+        if (s instanceof ExprStmt) return of(((ExprStmt)s).expr);
+        if (s instanceof Return)   return of(((Return)s).expr);
+        return 0;
+    }
+
+    static int of(Expr e) {
+        if (e == null) return 0;
+        if (e instanceof BinOp) {
+            BinOp bo = (BinOp)e;
+            return 1 + Math.max(BINOP_NEED, Math.max(of(bo.expr1), 1 + of(bo.expr2)));
+        }
+        if (e instanceof ArrayAccessExpr)  return 1 + address((ArrayAccessExpr)e);
+        if (e instanceof ValueAtExpr)      return 1 + of(((ValueAtExpr)e).expr);
+        if (e instanceof TypecastExpr)     return of(((TypecastExpr)e).expr);
+        if (e instanceof FieldAccessExpr)  return 2;
+        if (e instanceof FunCallExpr) {
+            int need = 2;
+            for (Expr arg: ((FunCallExpr)e).exprs) need = Math.max(need, of(arg));
+            return need;
+        }
+        return 1;
+    }
+
+    /* Registers held while computing the address of an element of an array. */
+    private static int address(ArrayAccessExpr aae) {
+        return Math.max(ADDRESS_NEED, of(aae.index));
+    }
+}
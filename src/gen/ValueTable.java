@@ -0,0 +1,278 @@
+package gen;
+
+import ast.*;
+import opt.ASTWalker;
+import opt.ExprKey;
+import opt.Purity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * Value numbering for the code generator: remembers which register already holds the value of an
+ * expression, so that the same arithmetic, address or load is not emitted twice.
+ *
+ * Values are scoped like the dominator tree of the structured code: a value computed before an If or
+ * a While can be reused inside it, a value computed inside a branch or a loop body is forgotten when
+ * the branch or body ends. A value is forgotten as soon as anything it depends on may have changed:
+ *   - an assignment to a variable it reads,
+ *   - a store into an array or struct it loads from,
+ *   - a store through a pointer, if it loads through a pointer,
+ *   - a call, if it reads a global or loads through a pointer.
+ * MiniC has no address-of operator, so a pointer can only point into the heap (see opt.Purity).
+ *
+ * Registers holding values are not freed by the code generator. A forgotten value's register may still
+ * be an operand of the expression being generated, or the condition of an If whose branch forgot it, so it
+ * is only handed back by release(), between statements, once it is no operand any more.
+ *
+ * Values only save work, so when the code generator runs out of registers one gives its register up, see
+ * evict(). It must not be an operand being generated, nor have been read by code already generated for a
+ * loop it was found before, as that code runs again after the register is overwritten.
+ */
+class ValueTable {
+
+    private static final int MAX_VALUES = 6;
+
+    private static class Value {
+        final String   key;
+        final Register reg;
+        final int      scope;                                   // the depth of the scope it was found in
+        int            operands = 1;                            // times it is an operand not yet used
+        int            lastRead;                                // reads when it was last looked up
+        final HashSet<VarDecl> vars   = new HashSet<VarDecl>(); // scalars read
+        final HashSet<VarDecl> memory = new HashSet<VarDecl>(); // arrays and structs loaded from
+        boolean heap;                                           // loads through a pointer
+        boolean global;                                         // reads a global
+
+        Value(String key, Register reg, int scope) {
+            this.key   = key;
+            this.reg   = reg;
+            this.scope = scope;
+        }
+    }
+
+    /* A loop body being generated: the depth of its scope, and the reads before it. */
+    private static class Loop {
+        final int scope;
+        final int reads;
+
+        Loop(int scope, int reads) {
+            this.scope = scope;
+            this.reads = reads;
+        }
+    }
+
+    private final ExprKey keys = new ExprKey();
+    private final LinkedHashMap<String, Value> values = new LinkedHashMap<String, Value>();
+    private final Stack<List<Value>> scopes = new Stack<List<Value>>();
+    private final HashSet<Register> held = new HashSet<Register>();
+    private final List<Value> retired = new ArrayList<Value>();
+    private final Stack<Loop> loops = new Stack<Loop>();
+    private int reads = 0;                                      // lookups so far
+
+    ValueTable() {
+        scopes.push(new ArrayList<Value>());
+    }
+
+    String key(Expr e) {
+        return keys.of(e);
+    }
+
+    /* Key for the address of an array element, as opposed to its value. */
+    String addressKey(ArrayAccessExpr aae) {
+        String key = keys.of(aae);
+        return key == null ? null : "&" + key;
+    }
+
+    /* The register holding the value of key, null if none does. It is an operand until it is used(). */
+    Register lookup(String key) {
+        if (key == null) return null;
+        Value v = values.get(key);
+        if (v == null) return null;
+        v.operands++;
+        v.lastRead = ++reads;
+        return v.reg;
+    }
+
+    /* Called as the code generator frees reg, an operand it has now used. */
+    void used(Register reg) {
+        for (Value v: values.values())
+            if (v.reg == reg && v.operands > 0) v.operands--;
+        for (Value v: retired)
+            if (v.reg == reg && v.operands > 0) v.operands--;
+    }
+
+    /*
+     * The register of a forgotten value no longer an operand, or else of the oldest value that may be given up,
+     * which is forgotten, free to be reused at once. Null if there is none.
+     */
+    Register evict() {
+        for (Iterator<Value> it = retired.iterator(); it.hasNext(); ) {
+            Value v = it.next();
+            if (v.operands > 0) continue;
+            it.remove();
+            held.remove(v.reg);
+            return v.reg;
+        }
+        for (Value v: values.values()) {
+            if (!evictable(v)) continue;
+            values.remove(v.key);
+            held.remove(v.reg);
+            return v.reg;
+        }
+        return null;
+    }
+
+    private boolean evictable(Value v) {
+        if (v.operands > 0) return false;
+        // Loops are stacked outermost first, so this finds the first one entered since it was found.
+        for (Loop loop: loops)
+            if (loop.scope > v.scope) return v.lastRead <= loop.reads;
+        return true;
+    }
+
+    /* True for registers owned by the table, which must not be freed or written to by anyone else. */
+    boolean holds(Register reg) {
+        return held.contains(reg);
+    }
+
+    Set<Register> registers() {
+        return held;
+    }
+
+    /*
+     * Remembers that reg holds the value of key, which is computed from dependsOn.
+     * Returns false, leaving reg to the caller, if the table is full or reg is already in use.
+     */
+    boolean add(String key, Expr dependsOn, Register reg) {
+        if (key == null || values.containsKey(key) || held.contains(reg) || reg == Register.v0) return false;
+        if (values.size() >= MAX_VALUES) return false;
+
+        final Value v = new Value(key, reg, scopes.size());
+        v.lastRead = reads;
+        dependsOn.accept(new ASTWalker() {
+            @Override
+            public Void visitVarExpr(VarExpr ve) {
+                if (ve.vd == null) return null;
+                v.vars.add(ve.vd);
+                v.global |= Purity.isGlobal(ve.vd);
+                return null;
+            }
+
+            @Override
+            public Void visitArrayAccessExpr(ArrayAccessExpr aae) {
+                VarDecl arrVD = ((VarExpr)aae.array).vd;
+                v.memory.add(arrVD);
+                v.global |= Purity.isGlobal(arrVD);
+                aae.index.accept(this);
+                return null;
+            }
+
+            @Override
+            public Void visitFieldAccessExpr(FieldAccessExpr fae) {
+                VarDecl structVD = ((VarExpr)fae.struct).vd;
+                v.memory.add(structVD);
+                v.global |= Purity.isGlobal(structVD);
+                return null;
+            }
+
+            @Override
+            public Void visitValueAtExpr(ValueAtExpr vae) {
+                v.heap = true;
+                return super.visitValueAtExpr(vae);
+            }
+        });
+        values.put(key, v);
+        scopes.peek().add(v);
+        held.add(reg);
+        return true;
+    }
+
+    void enterScope() {
+        scopes.push(new ArrayList<Value>());
+    }
+
+    void exitScope() {
+        for (Value v: scopes.pop()) forget(v);
+    }
+
+    /* Enters the scope of a loop body, where values found before it are read again on every iteration. */
+    void enterLoop() {
+        enterScope();
+        loops.push(new Loop(scopes.size(), reads));
+    }
+
+    void exitLoop() {
+        loops.pop();
+        exitScope();
+    }
+
+    /* Registers of forgotten values that are no operands, free to be reused once the current statement is done. */
+    List<Register> release() {
+        List<Register> regs = new ArrayList<Register>();
+        for (Iterator<Value> it = retired.iterator(); it.hasNext(); ) {
+            Value v = it.next();
+            if (v.operands > 0) continue;
+            it.remove();
+            held.remove(v.reg);
+            regs.add(v.reg);
+        }
+        return regs;
+    }
+
+    void assigned(VarDecl vd) {
+        for (Value v: new ArrayList<Value>(values.values()))
+            if (v.vars.contains(vd)) forget(v);
+    }
+
+    void stored(VarDecl arrayOrStruct) {
+        for (Value v: new ArrayList<Value>(values.values()))
+            if (v.memory.contains(arrayOrStruct)) forget(v);
+    }
+
+    void storedThroughPointer() {
+        for (Value v: new ArrayList<Value>(values.values()))
+            if (v.heap) forget(v);
+    }
+
+    void called() {
+        for (Value v: new ArrayList<Value>(values.values()))
+            if (v.heap || v.global) forget(v);
+    }
+
+    /* Forgets everything that stmt may change, e.g. before the values are reused by every iteration of a loop. */
+    void changedBy(Stmt stmt) {
+        stmt.accept(new ASTWalker() {
+            @Override
+            public Void visitAssign(Assign a) {
+                if (a.expr1 instanceof VarExpr)
+                    assigned(((VarExpr)a.expr1).vd);
+                else if (a.expr1 instanceof ArrayAccessExpr)
+                    stored(((VarExpr)((ArrayAccessExpr)a.expr1).array).vd);
+                else if (a.expr1 instanceof FieldAccessExpr)
+                    stored(((VarExpr)((FieldAccessExpr)a.expr1).struct).vd);
+                else if (a.expr1 instanceof ValueAtExpr)
+                    storedThroughPointer();
+                return super.visitAssign(a);
+            }
+
+            @Override
+            public Void visitFunCallExpr(FunCallExpr fce) {
+                called();
+                return super.visitFunCallExpr(fce);
+            }
+        });
+    }
+
+    private void forget(Value v) {
+        if (values.get(v.key) != v) return;
+        values.remove(v.key);
+        retired.add(v);
+    }
+}
@@ -1,20 +1,55 @@
 package lexer;
 
 import java.io.*;
+import java.nio.file.Files;
 
 /**
+ * Scans a source read whole into memory, one char after the other, the end of the source being the char EOF.
+ *
+ * Sources are read as UTF-8, whatever the platform's charset. Their bytes are scanned directly, as each stands
+ * for a char of its own when it is ASCII, the rest being decoded when they are met, e.g. in a comment.
+ *
  * @author cdubach
  */
 public class Scanner {
 
-    private BufferedReader input;
-    private int peeked = -1;
+    /* What peek and next return past the end of the source. A source may hold it too, atEnd() tells them apart. */
+    public static final char EOF = '\uFFFF';
+
+    private final File source;
+    private final byte[] buffer;
+    private final int end;
+    private int pos = 0;
+    private char low = 0;       // the second half of a char beyond the BMP, 0 if there is none pending
 
     private int line = 1;
     private int column = 1;
 
     public Scanner(File source) throws FileNotFoundException {
-        input = new BufferedReader(new FileReader(source));
+        this(source, read(source));
+    }
+
+    /* Scans contents, those of source. */
+    public Scanner(File source, byte[] contents) {
+        this.source = source;
+        this.buffer = contents;
+        this.end = contents.length;
+    }
+
+    private static byte[] read(File source) throws FileNotFoundException {
+        try {
+            return Files.readAllBytes(source.toPath());
+        } catch (IOException e) {
+            // As FileReader reports a file which cannot be read.
+            FileNotFoundException notFound = new FileNotFoundException(source.toString());
+            notFound.initCause(e);
+            throw notFound;
+        }
+    }
+
+    /* The file scanned, whose directory holds the files it includes. */
+    public File getSource() {
+        return source;
     }
 
 
@@ -26,29 +61,48 @@ public class Scanner {
         return line;
     }
 
-    public char peek() throws IOException {
-        if (peeked != -1)
-            return (char)peeked;
+    /* The index in the source of the byte the next char starts at. */
+    int getOffset() {
+        return pos;
+    }
 
-        int r = input.read();
-        if (r == -1)
-            throw new EOFException();
+    /* The source, which is not copied, see TokenStream. */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    /* True once every char of the source was read. */
+    public boolean atEnd() {
+        return low == 0 && pos == end;
+    }
 
-        peeked = r;
-        return (char) r;
+    public char peek() {
+        if (low != 0)
+            return low;
+        if (pos == end)
+            return EOF;
+        byte b = buffer[pos];
+        if (b >= 0)
+            return (char) b;
+        return decode(false);
     }
 
 
-    public char next() throws IOException {
+    public char next() {
         char r;
-        if (peeked != -1) {
-            r = (char) peeked;
-            peeked = -1;
+        if (low != 0) {
+            r = low;
+            low = 0;
+            return r;           // the column was counted with the first half
+        }
+        if (pos == end)
+            return EOF;
+        byte b = buffer[pos];
+        if (b >= 0) {
+            pos++;
+            r = (char) b;
         } else {
-            int i = input.read();
-            if (i == -1)
-                throw new EOFException();
-            r = (char) i;
+            r = decode(true);
         }
 
         if (r == '\n' || r == '\r') {
@@ -60,8 +114,34 @@ public class Scanner {
         return r;
     }
 
-    public void close() throws IOException {
-        input.close();
+    /*
+     * The char the multi-byte UTF-8 sequence at pos starts, consumed if consume is set, U+FFFD if it is malformed.
+     * A char beyond the BMP comes as two, the second half returned by the next call to peek or next.
+     */
+    private char decode(boolean consume) {
+        int b = buffer[pos] & 0xff;
+        int length = b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : b >= 0xc0 ? 2 : 1;
+        int code = length == 4 ? b & 0x07 : length == 3 ? b & 0x0f : b & 0x1f;
+        if (length == 1 || pos + length > end) {
+            if (consume) pos++;
+            return '\uFFFD';
+        }
+        for (int i = 1; i < length; i++) {
+            int continuation = buffer[pos + i] & 0xff;
+            if ((continuation & 0xc0) != 0x80) {
+                if (consume) pos += i;
+                return '\uFFFD';
+            }
+            code = (code << 6) | (continuation & 0x3f);
+        }
+        if (consume) pos += length;
+        if (code < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+            return (char) code;
+        if (consume) low = Character.lowSurrogate(code);
+        return Character.highSurrogate(code);
+    }
+
+    public void close() {
     }
 
 
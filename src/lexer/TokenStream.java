@@ -0,0 +1,154 @@
+package lexer;
+
+import lexer.Token.TokenClass;
+import util.Identifiers;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The tokens of a whole source, lexed at once and held in parallel arrays rather than as Tokens: the ordinal of
+ * the class of each, where its data starts in the source and how many bytes it takes, and its line and column
+ * packed in a long. The arrays come in chunks of CHUNK tokens, so growing them copies nothing. The data of an identifier or literal stays in the Scanner's buffer and only becomes a
+ * String when asked for, an identifier being interned straight from the buffer, so lexing a source allocates
+ * little more than the arrays. The last token is EOF.
+ */
+public class TokenStream {
+
+    private static final TokenClass[] CLASSES = TokenClass.values();
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK      = 1 << CHUNK_BITS;
+
+    private final File   source;
+    private final byte[] buffer;
+    private final Lexeme lexeme = new Lexeme();
+    private final Identifiers identifiers = Identifiers.current();
+
+    // By chunk, then by token within it.
+    private byte[][] classes   = new byte[16][];
+    private int[][]  starts    = new int[16][];
+    private int[][]  lengths   = new int[16][];
+    private long[][] positions = new long[16][];    // line << 32 | column
+    private int      size      = 0;
+
+    /* Lexes all the tokens left in tokeniser, whose errors are reported as they are found. */
+    public TokenStream(Tokeniser tokeniser) {
+        Scanner scanner = tokeniser.getScanner();
+        this.source = scanner.getSource();
+        this.buffer = scanner.getBuffer();
+        TokenClass tokenClass;
+        do {
+            tokenClass = tokeniser.lex();
+            add(tokenClass, tokeniser.getLexemeStart(), tokeniser.getLexemeEnd(), scanner.getLine(), scanner.getColumn());
+        } while (tokenClass != TokenClass.EOF);
+    }
+
+    private void add(TokenClass tokenClass, int start, int end, int line, int column) {
+        int chunk = size >>> CHUNK_BITS, i = size & (CHUNK - 1);
+        if (i == 0) {
+            if (chunk == classes.length) {
+                classes   = Arrays.copyOf(classes, 2 * chunk);
+                starts    = Arrays.copyOf(starts, 2 * chunk);
+                lengths   = Arrays.copyOf(lengths, 2 * chunk);
+                positions = Arrays.copyOf(positions, 2 * chunk);
+            }
+            classes[chunk]   = new byte[CHUNK];
+            starts[chunk]    = new int[CHUNK];
+            lengths[chunk]   = new int[CHUNK];
+            positions[chunk] = new long[CHUNK];
+        }
+        classes[chunk][i]   = (byte) tokenClass.ordinal();
+        starts[chunk][i]    = start;
+        lengths[chunk][i]   = end - start;
+        positions[chunk][i] = (long) line << 32 | column & 0xffffffffL;
+        size++;
+    }
+
+    public File getSource() {
+        return source;
+    }
+
+    /* The number of tokens, EOF included. */
+    public int size() {
+        return size;
+    }
+
+    public TokenClass tokenClass(int i) {
+        return CLASSES[classes[i >>> CHUNK_BITS][i & (CHUNK - 1)]];
+    }
+
+    public int line(int i) {
+        return (int) (positions[i >>> CHUNK_BITS][i & (CHUNK - 1)] >>> 32);
+    }
+
+    public int column(int i) {
+        return (int) positions[i >>> CHUNK_BITS][i & (CHUNK - 1)];
+    }
+
+    /* The data of the i^th token, as Token.data holds it. */
+    public String data(int i) {
+        switch (tokenClass(i)) {
+            case IDENTIFIER:
+                if (lexeme.of(start(i), length(i))) return identifiers.name(identifiers.intern(lexeme));
+                return identifiers.name(identifiers.intern(decode(i)));
+            case INT_LITERAL:
+            case STRING_LITERAL:
+            case CHAR_LITERAL:
+                return decode(i);
+            default:
+                return "";
+        }
+    }
+
+    /* The i^th token as a Token, made anew. */
+    public Token token(int i) {
+        return new Token(tokenClass(i), data(i), line(i), column(i));
+    }
+
+    private String decode(int i) {
+        return new String(buffer, start(i), length(i), StandardCharsets.UTF_8);
+    }
+
+    private int start(int i) {
+        return starts[i >>> CHUNK_BITS][i & (CHUNK - 1)];
+    }
+
+    private int length(int i) {
+        return lengths[i >>> CHUNK_BITS][i & (CHUNK - 1)];
+    }
+
+    /* The ASCII chars of a slice of the source, without copying them. */
+    private class Lexeme implements CharSequence {
+        private int start, length;
+
+        /* Makes this the slice from start, false if it is not all ASCII. */
+        boolean of(int start, int length) {
+            for (int i = start; i < start + length; i++)
+                if (buffer[i] < 0) return false;
+            this.start = start;
+            this.length = length;
+            return true;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) buffer[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return toString().subSequence(from, to);
+        }
+
+        @Override
+        public String toString() {
+            return new String(buffer, start, length, StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -1,18 +1,126 @@
 package lexer;
 
 import lexer.Token.TokenClass;
+import util.Identifiers;
 
-import java.io.EOFException;
-import java.io.IOException;
+import java.io.File;
+import java.util.Arrays;
 
 /**
+ * Lexes tokens by a transition table over classes of chars, built once from the rules in the static block.
+ *
+ * A token starts in the state the class of its first char leads to from START, and grows by each char the
+ * state has a transition for, so it ends at the first char that cannot continue it. Identifiers are told apart
+ * from keywords once read whole, by a perfect hash of their length and first and last chars. Comments are
+ * skipped, and string and char literals and #include, whose errors are reported at the char at fault, are
+ * scanned by methods of their own once their first char has led to them.
+ *
  * @author cdubach
  */
 public class Tokeniser {
 
+    // Classes of chars.
+    private static final int OTHER = 0, LETTER = 1, DIGIT = 2, BLANK = 3, END_OF_FILE = 4, EQUALS = 5, BANG = 6,
+                             LESS = 7, GREATER = 8, AMPERSAND = 9, BAR = 10, SLASH = 11, STAR = 12, DOUBLE_QUOTE = 13,
+                             SINGLE_QUOTE = 14, HASH = 15, PUNCTUATION = 16;
+    private static final int CLASSES = 17;
+
+    // States, those after SINGLE having no transitions.
+    private static final int START = 0, IDENTIFIER = 1, NUMBER = 2, ASSIGN = 3, EQ = 4, NOT = 5, NE = 6, LT = 7,
+                             LE = 8, GT = 9, GE = 10, AND_FIRST = 11, AND = 12, OR_FIRST = 13, OR = 14, DIV = 15,
+                             SINGLE = 16, SPACE = 17, LINE_COMMENT = 18, BLOCK_COMMENT = 19, STRING = 20,
+                             CHARACTER = 21, INCLUDE = 22, END = 23, UNRECOGNISED = 24;
+    private static final int STATES = 25;
+    private static final byte NONE = -1;
+
+    private static final byte[]       CLASS    = new byte[128];                     // of each ASCII char
+    private static final byte[][]     NEXT     = new byte[STATES][CLASSES];         // NONE where there is no transition
+    private static final TokenClass[] ACCEPT   = new TokenClass[STATES];            // of the token ending in each state
+    private static final TokenClass[] SINGLES  = new TokenClass[128];               // of the tokens of a single char
+
+    private static final int          KEYWORD_SLOTS   = 32;
+    private static final String[]     KEYWORDS        = new String[KEYWORD_SLOTS];  // by keywordSlot
+    private static final TokenClass[] KEYWORD_CLASSES = new TokenClass[KEYWORD_SLOTS];
+
+    static {
+        for (char c = 0; c < 128; c++) {
+            if (Character.isLetter(c) || c == '_') CLASS[c] = LETTER;
+            else if (Character.isDigit(c))         CLASS[c] = DIGIT;
+            else if (Character.isWhitespace(c))    CLASS[c] = BLANK;
+        }
+        CLASS['='] = EQUALS;    CLASS['!'] = BANG;      CLASS['<'] = LESS;          CLASS['>'] = GREATER;
+        CLASS['&'] = AMPERSAND; CLASS['|'] = BAR;       CLASS['/'] = SLASH;         CLASS['*'] = STAR;
+        CLASS['"'] = DOUBLE_QUOTE;                      CLASS['\''] = SINGLE_QUOTE; CLASS['#'] = HASH;
+        single('{', TokenClass.LBRA);  single('}', TokenClass.RBRA);  single('(', TokenClass.LPAR);
+        single(')', TokenClass.RPAR);  single('[', TokenClass.LSBR);  single(']', TokenClass.RSBR);
+        single(';', TokenClass.SC);    single(',', TokenClass.COMMA); single('+', TokenClass.PLUS);
+        single('-', TokenClass.MINUS); single('%', TokenClass.REM);   single('.', TokenClass.DOT);
+        SINGLES['*'] = TokenClass.ASTERIX;
+
+        for (byte[] transitions: NEXT) Arrays.fill(transitions, NONE);
+        rule(START, OTHER, UNRECOGNISED);   rule(START, LETTER, IDENTIFIER);    rule(START, DIGIT, NUMBER);
+        rule(START, BLANK, SPACE);          rule(START, END_OF_FILE, END);      rule(START, EQUALS, ASSIGN);
+        rule(START, BANG, NOT);             rule(START, LESS, LT);              rule(START, GREATER, GT);
+        rule(START, AMPERSAND, AND_FIRST);  rule(START, BAR, OR_FIRST);         rule(START, SLASH, DIV);
+        rule(START, STAR, SINGLE);          rule(START, PUNCTUATION, SINGLE);   rule(START, DOUBLE_QUOTE, STRING);
+        rule(START, SINGLE_QUOTE, CHARACTER);                                   rule(START, HASH, INCLUDE);
+        rule(IDENTIFIER, LETTER, IDENTIFIER);                                   rule(IDENTIFIER, DIGIT, IDENTIFIER);
+        rule(NUMBER, DIGIT, NUMBER);
+        rule(ASSIGN, EQUALS, EQ);           rule(NOT, EQUALS, NE);
+        rule(LT, EQUALS, LE);               rule(GT, EQUALS, GE);
+        rule(AND_FIRST, AMPERSAND, AND);    rule(OR_FIRST, BAR, OR);
+        rule(DIV, SLASH, LINE_COMMENT);     rule(DIV, STAR, BLOCK_COMMENT);
+
+        ACCEPT[IDENTIFIER] = TokenClass.IDENTIFIER;  ACCEPT[NUMBER] = TokenClass.INT_LITERAL;
+        ACCEPT[ASSIGN] = TokenClass.ASSIGN;          ACCEPT[EQ] = TokenClass.EQ;
+        ACCEPT[NOT] = TokenClass.INVALID;            ACCEPT[NE] = TokenClass.NE;
+        ACCEPT[LT] = TokenClass.LT;                  ACCEPT[LE] = TokenClass.LE;
+        ACCEPT[GT] = TokenClass.GT;                  ACCEPT[GE] = TokenClass.GE;
+        ACCEPT[AND_FIRST] = TokenClass.INVALID;      ACCEPT[AND] = TokenClass.AND;
+        ACCEPT[OR_FIRST] = TokenClass.INVALID;       ACCEPT[OR] = TokenClass.OR;
+        ACCEPT[DIV] = TokenClass.DIV;
+
+        keyword("char", TokenClass.CHAR);     keyword("else", TokenClass.ELSE);     keyword("if", TokenClass.IF);
+        keyword("int", TokenClass.INT);       keyword("return", TokenClass.RETURN); keyword("sizeof", TokenClass.SIZEOF);
+        keyword("struct", TokenClass.STRUCT); keyword("while", TokenClass.WHILE);   keyword("void", TokenClass.VOID);
+    }
+
+    private static void single(char c, TokenClass tokenClass) {
+        CLASS[c] = PUNCTUATION;
+        SINGLES[c] = tokenClass;
+    }
+
+    private static void rule(int from, int charClass, int to) {
+        NEXT[from][charClass] = (byte) to;
+    }
+
+    private static void keyword(String name, TokenClass tokenClass) {
+        int slot = keywordSlot(name);
+        if (KEYWORDS[slot] != null) throw new IllegalStateException(name + " and " + KEYWORDS[slot] + " hash alike");
+        KEYWORDS[slot] = name;
+        KEYWORD_CLASSES[slot] = tokenClass;
+    }
+
+    private static int keywordSlot(CharSequence name) {
+        return (name.length() + name.charAt(0) + name.charAt(name.length() - 1)) & (KEYWORD_SLOTS - 1);
+    }
+
+    private static int classOf(char c) {
+        if (c < 128)                    return CLASS[c];
+        if (Character.isLetter(c))      return LETTER;
+        if (Character.isDigit(c))       return DIGIT;
+        if (Character.isWhitespace(c))  return BLANK;
+        return OTHER;
+    }
+
     private Scanner scanner;
+    private final StringBuilder text = new StringBuilder();    // of the identifier or literal being lexed
+    private final Identifiers identifiers = Identifiers.current();
 
     private int error = 0;
+    // The include naming the header lexed, printed before its first error, or null.
+    private String includedAs;
+
     public int getErrorCount() {
 	return this.error;
     }
@@ -21,495 +129,210 @@ public class Tokeniser {
         this.scanner = scanner;
     }
 
+    public File getSource() {
+        return scanner.getSource();
+    }
+
+    /* Makes the errors found in the source, a header, say it is the one include name stands for. */
+    public void includedAs(String name) {
+        includedAs = name;
+    }
+
+    /* Called before an error in the source is printed, to say which header it is in the first time. */
+    public void beforeError() {
+        if (includedAs == null) return;
+        System.out.println("In file included from "+includedAs+":");
+        includedAs = null;
+    }
+
     private void error(char c, int line, int col) {
-        System.out.println("Lexing error: unrecognised character ("+c+") at "+line+":"+col);
+        String shown = c == Scanner.EOF && scanner.atEnd() ? "EOF" : String.valueOf(c);
+        beforeError();
+        System.out.println("Lexing error: unrecognised character ("+shown+") at "+line+":"+col);
 	    error++;
     }
 
 
     public Token nextToken() {
-        Token result;
-        try {
-             result = next();
-        } catch (EOFException eof) {
-            // end of file, nothing to worry about, just return EOF token
-            return new Token(TokenClass.EOF, scanner.getLine(), scanner.getColumn());
-        } catch (IOException ioe) {
-            ioe.printStackTrace();
-            // something went horribly wrong, abort
-            System.exit(-1);
-            return null;
+        TokenClass tokenClass = lex();
+        switch (tokenClass) {
+            case IDENTIFIER:
+                return new Token(tokenClass, identifiers.name(identifiers.intern(text)), scanner.getLine(), scanner.getColumn());
+            case INT_LITERAL:
+            case STRING_LITERAL:
+            case CHAR_LITERAL:
+                return new Token(tokenClass, text.toString(), scanner.getLine(), scanner.getColumn());
+            default:
+                return new Token(tokenClass, scanner.getLine(), scanner.getColumn());
         }
-        return result;
     }
 
-    /*
-     * To be completed
-     */
-    private Token next() throws IOException {
+    // The bytes of the source holding the data of the token last lexed, from lexemeStart to lexemeEnd - 1.
+    private int lexemeStart, lexemeEnd;
 
-        // Get the next Char.
-        char c = scanner.next();
+    int getLexemeStart() {
+        return lexemeStart;
+    }
 
-        // Parse DIV token taking into account comments.
-        if (c == '/') {
-            char peek = scanner.peek();
-            // We have a regular line comment.
-            if (peek == '/') {
-                // Move into the comment content.
-                c = scanner.next();
-                int currLine = scanner.getLine();
-                // Loop until we find the end of the comment.
-                while (scanner.getLine() == currLine) {
-                    c = scanner.next();
-                }
-            }
-            // We have a block comment.
-            else if (peek == '*') {
-                // Move into the comment content.
-                c = scanner.next();
-                // Loop until we find the end of the comment.
-                while (true) {
-                    c    = scanner.next();
-                    peek = scanner.peek();
-                    if (c == '*' && peek == '/') { scanner.next(); break; }
-                }
-                c = scanner.next();
-            }
-            else return new Token(TokenClass.DIV, scanner.getLine(),scanner.getColumn());
-        }
+    int getLexemeEnd() {
+        return lexemeEnd;
+    }
 
-        // Recognise STRING_LITERAL token. @TODO, multiple lines fix.
-        if (c == '"') {
-            // We are now expecting any set of characters, terminated by a single ". With care taken for escaped characters.
-            StringBuilder sb = new StringBuilder();
-            int currLine = scanner.getLine();
-            while (true) {
-                // Try get the current char.
-                try {
-                    c = scanner.next();
-                } catch (EOFException eof) {
-                    // Reached end of file before terminating string.
-                    error(c, scanner.getLine(), scanner.getColumn());
-                    return new Token(TokenClass.INVALID, scanner.getLine(), scanner.getColumn());
-                } catch (IOException ioe) {
-                    ioe.printStackTrace();
-                    // something went horribly wrong, abort
-                    System.exit(-1);
-                    return null;
-                }
-                // If hit new-line before STRING_LITERAL terminator, we have invalid token.
-                if (scanner.getLine() != currLine) {
+    Scanner getScanner() {
+        return scanner;
+    }
+
+    /*
+     * Lexes the next token, its position being the scanner's once it returns, and the data of an identifier or
+     * literal left in text and found at lexemeStart in the source. Nothing is allocated, see TokenStream.
+     */
+    TokenClass lex() {
+        lexemeStart = lexemeEnd = scanner.getOffset();
+        while (true) {
+            int start = scanner.getOffset();
+            // The end of the source, not the char EOF, which the source may hold.
+            int charClass = scanner.atEnd() ? END_OF_FILE : classOf(scanner.peek());
+            char c = scanner.next();
+            int state = NEXT[START][charClass];
+            switch (state) {
+                case SPACE:     continue;
+                case END:       return TokenClass.EOF;
+                case STRING:    return string();
+                case CHARACTER: return character();
+                case INCLUDE:   return include();
+                case UNRECOGNISED:
                     error(c, scanner.getLine(), scanner.getColumn());
-                    return new Token(TokenClass.INVALID, scanner.getLine(), scanner.getColumn());
-                }
-                // Check if we are about to see an escaped character.
-                if (c == '\\') {
-                    sb.append(c);
-                    c = scanner.next();
-                    sb.append(c);
-                }
-                // End of string.
-                else if (c == '"') {
-                    break;
-                } else {
-                    sb.append(c);
-                }
+                    return TokenClass.INVALID;
             }
-            return new Token(TokenClass.STRING_LITERAL, sb.toString(), scanner.getLine(), scanner.getColumn());
-        }
 
-        // Recognise IDENTIFIER/keywords/types token.
-        if (Character.isLetter(c) || c == '_') {
-            /* Alphabetically go throuh possible keywords/types before assuming IDENTIFIER. */
-            // Create a StringBuilder in case of IDENTIFIER.
-            StringBuilder sb = new StringBuilder();
-            sb.append(c);
-            // Check for CHAR token.
-            if (c == 'c') {
-                String expected = "har";    // "char" but with first char removed since that has already been checked.
-                char peek;                  // Peek into next char of stream.
-                char expt;                  // What we expect the peek to be.
-                boolean isChar = true;      // Track if this is a CHAR token.
-                for (int i = 0; i < expected.length(); i++) {
-                    // Peek the next char, and the expected char.
-                    peek = scanner.peek();
-                    expt = expected.charAt(i);
-                    if (peek != expt) {
-                        isChar = false;     // This is not a CHAR token.
-                        break;
-                    }
-                    // It is potentially part of a CHAR token, save this char.
-                    c = scanner.next();
-                    sb.append(c);
-                }
-                peek = scanner.peek();
-                if (isChar && (!Character.isLetter(peek)) && (!Character.isDigit(peek)) && (peek != '_')){
-                    return new Token(TokenClass.CHAR, scanner.getLine(),scanner.getColumn());
-                }
-            }
-            // Check for ELSE token.
-            else if (c == 'e') {
-                String expected = "lse"; // "else" but with first char removed since that has already been checked.
-                // Flag to track if this stream of characters is an ELSE token.
-                boolean isElse  = true;
-                char expt_c;
-                char peek;
-                for (int i = 0; i < expected.length(); i++) {
-                    // Get the next char, and the expected char.
-                    peek   = scanner.peek();
-                    expt_c = expected.charAt(i);
-                    if (peek != expt_c) {
-                         // This is not an ELSE token.
-                        isElse = false;
-                        break;
-                    }
-                    c = scanner.next();
-                    sb.append(c);
-                }
-                peek = scanner.peek();
-                if (isElse && (!Character.isLetter(peek)) && (!Character.isDigit(peek)) && (peek != '_')) {
-                    return new Token(TokenClass.ELSE, scanner.getLine(),scanner.getColumn());
-                }
-            }
-            // Check for IF/INT token.
-            else if (c == 'i') {
-                // Check for IF token.
-                if (scanner.peek() == 'f') {
-                    c = scanner.next();
-                    sb.append(c);
-                    char peek = scanner.peek();
-                    // If the char following IF is valid for an IF statement, return the token.
-                    if ((!Character.isLetter(peek)) && (!Character.isDigit(peek)) && (peek != '_')) {
-                        return new Token(TokenClass.IF, scanner.getLine(),scanner.getColumn());
-                    }
-                }
-                // Check for INT token.
-                else {
-                    String expected = "nt"; // "int" but with first char removed since that has already been checked.
-                    // Flag to track if this stream of characters is an INT token.
-                    boolean isInt  = true;
-                    char expt_c;
-                    char peek;
-                    for (int i = 0; i < expected.length(); i++) {
-                        // Get the next char, and the expected char.
-                        peek   = scanner.peek();
-                        expt_c = expected.charAt(i);
-                        if (peek != expt_c) {
-                            // This is not an ELSE token.
-                            isInt = false;
-                            break;
-                        }
-                        c = scanner.next();
-                        sb.append(c);
-                    }
-                    peek = scanner.peek();
-                    if (isInt && (!Character.isLetter(peek)) && (!Character.isDigit(peek)) && (peek != '_')) {
-                        return new Token(TokenClass.INT, scanner.getLine(),scanner.getColumn());
-                    }
-                }
-            }
-            // Check for RETURN token.
-            else if (c == 'r') {
-                String expected = "eturn"; // "return" but with first char removed since that has already been checked.
-                // Flag to track if this stream of characters is a RETURN token.
-                boolean isReturn  = true;
-                char expt_c;
-                char peek;
-                for (int i = 0; i < expected.length(); i++) {
-                    // Get the next char, and the expected char.
-                    peek   = scanner.peek();
-                    expt_c = expected.charAt(i);
-                    if (peek != expt_c) {
-                        // This is not a RETURN token.
-                        isReturn = false;
-                        break;
-                    }
-                    c = scanner.next();
-                    sb.append(c);
-                }
-                peek = scanner.peek();
-                if (isReturn && (!Character.isLetter(peek)) && (!Character.isDigit(peek)) && (peek != '_')) {
-                    return new Token(TokenClass.RETURN, scanner.getLine(),scanner.getColumn());
-                }
-            }
-            // Check for SIZEOF/STRUCT token.
-            else if (c == 's') {
-                // Check for SIZEOF token.
-                if (scanner.peek() == 'i') {
-                    String expected = "izeof"; // "sizeof" but with first char removed since that has already been checked.
-                    // Flag to track if this stream of characters is an SIZEOF token.
-                    boolean isSizeof  = true;
-                    char expt_c;
-                    char peek;
-                    for (int i = 0; i < expected.length(); i++) {
-                        // Get the next char, and the expected char.
-                        peek   = scanner.peek();
-                        expt_c = expected.charAt(i);
-                        if (peek != expt_c) {
-                            // This is not an SIZEOF token.
-                            isSizeof = false;
-                            break;
-                        }
-                        c = scanner.next();
-                        sb.append(c);
-                    }
-                    peek = scanner.peek();
-                    if (isSizeof && (!Character.isLetter(peek)) && (!Character.isDigit(peek)) && (peek != '_')) {
-                        return new Token(TokenClass.SIZEOF, scanner.getLine(),scanner.getColumn());
-                    }
-                }
-                // Check for STRUCT token.
-                else {
-                    String expected = "truct"; // "struct" but with first char removed since that has already been checked.
-                    // Flag to track if this stream of characters is an STRUCT token.
-                    boolean isStruct  = true;
-                    char expt_c;
-                    char peek;
-                    for (int i = 0; i < expected.length(); i++) {
-                        // Get the next char, and the expected char.
-                        peek   = scanner.peek();
-                        expt_c = expected.charAt(i);
-                        if (peek != expt_c) {
-                            // This is not a STRUCT token.
-                            isStruct = false;
-                            break;
-                        }
-                        c = scanner.next();
-                        sb.append(c);
-                    }
-                    peek = scanner.peek();
-                    if (isStruct && (!Character.isLetter(peek)) && (!Character.isDigit(peek)) && (peek != '_')) {
-                        return new Token(TokenClass.STRUCT, scanner.getLine(),scanner.getColumn());
-                    }
-                }
-            }
-            // Check for WHILE token.
-            else if (c == 'w') {
-                String expected = "hile"; // "while" but with first char removed since that has already been checked.
-                // Flag to track if this stream of characters is a WHILE token.
-                boolean isWhile  = true;
-                char expt_c;
-                char peek;
-                for (int i = 0; i < expected.length(); i++) {
-                    // Get the next char, and the expected char.
-                    peek   = scanner.peek();
-                    expt_c = expected.charAt(i);
-                    if (peek != expt_c) {
-                        // This is not a WHILE token.
-                        isWhile = false;
-                        break;
-                    }
-                    c = scanner.next();
-                    sb.append(c);
-                }
-                peek = scanner.peek();
-                if (isWhile && (!Character.isLetter(peek)) && (!Character.isDigit(peek)) && (peek != '_')) {
-                    return new Token(TokenClass.WHILE, scanner.getLine(),scanner.getColumn());
-                }
+            char first = c;
+            text.setLength(0);
+            text.append(c);
+            for (int next = NEXT[state][classOf(scanner.peek())]; next != NONE; next = NEXT[state][classOf(scanner.peek())]) {
+                state = next;
                 c = scanner.next();
-                sb.append(c);
-            }
-            // Check for VOID token.
-            else if (c == 'v') {
-                String expected = "oid"; // "void" but with first char removed since that has already been checked.
-                // Flag to track if this stream of characters is a VOID token.
-                boolean isVoid  = true;
-                char expt_c;
-                char peek;
-                for (int i = 0; i < expected.length(); i++) {
-                    // Get the next char, and the expected char.
-                    peek   = scanner.peek();
-                    expt_c = expected.charAt(i);
-                    if (peek != expt_c) {
-                        // This is not a VOID token.
-                        isVoid = false;
-                        break;
-                    }
-                    c = scanner.next();
-                    sb.append(c);
-                }
-                peek = scanner.peek();
-                if (isVoid && (!Character.isLetter(peek)) && (!Character.isDigit(peek)) && (peek != '_')) {
-                    return new Token(TokenClass.VOID, scanner.getLine(),scanner.getColumn());
-                }
+                text.append(c);
             }
 
-            // If we have reached here, no token has been returned.
-            // Now Lex an IDENTIFIER, where c is the last character in sb.
-            char peek;
-            while (true) {
-                peek = scanner.peek();
-                // If the next character is whitespace, the IDENTIFIER has been identified.
-                if (Character.isWhitespace(peek)) {
-                    return new Token(TokenClass.IDENTIFIER, sb.toString(), scanner.getLine(), scanner.getColumn());
-                }
-                // If the next character is an illegal characater for an IDENTIFIER, we have finished finding the token.
-                if (!Character.isLetter(peek) && !Character.isDigit(peek) && peek != '_') {
-                    return new Token(TokenClass.IDENTIFIER, sb.toString(), scanner.getLine(), scanner.getColumn());
-                }
-                // We are still Lexing the token.
-                c = scanner.next();
-                sb.append(c);
+            switch (state) {
+                case LINE_COMMENT:  skipLine();     continue;
+                case BLOCK_COMMENT: skipComment();  continue;
+                case SINGLE:        return SINGLES[first];
+                case IDENTIFIER:
+                case NUMBER:
+                    lexemeStart = start;
+                    lexemeEnd = scanner.getOffset();
+                    return state == IDENTIFIER ? keywordOrIdentifier() : TokenClass.INT_LITERAL;
+                case AND_FIRST:
+                case OR_FIRST:
+                    error(c, scanner.getLine(), scanner.getColumn());
+                    break;
             }
+            return ACCEPT[state];
         }
+    }
 
-        // Recognise INT_LITERAL token.
-        if (Character.isDigit(c)) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(c);
-            char peek;
-            while (true) {
-                peek = scanner.peek();
-                // Check that next char is a digit.
-                if (!Character.isDigit(peek)) {
-                    return new Token(TokenClass.INT_LITERAL, sb.toString(), scanner.getLine(),scanner.getColumn());
-                }
-                c = scanner.next();
-                sb.append(c);
-            }
+    /* The keyword in text, or IDENTIFIER. */
+    private TokenClass keywordOrIdentifier() {
+        int slot = keywordSlot(text);
+        String keyword = KEYWORDS[slot];
+        if (keyword != null && keyword.length() == text.length()) {
+            int i = 0;
+            while (i < keyword.length() && keyword.charAt(i) == text.charAt(i)) i++;
+            if (i == keyword.length()) return KEYWORD_CLASSES[slot];
         }
-        
-        // Recognise ASSIGN/EQ tokens.
-        if (c == '=') {
-            // EQ Token.
-            if (scanner.peek() == '=') {
-                scanner.next();
-                return new Token(TokenClass.EQ, scanner.getLine(), scanner.getColumn());
-            }
-            // ASSIGN Token.
-            else return new Token(TokenClass.ASSIGN, scanner.getLine(),scanner.getColumn());
+        return TokenClass.IDENTIFIER;
+    }
+
+    /* Skips a line comment, its // read, up to the end of the line. */
+    private void skipLine() {
+        int currLine = scanner.getLine();
+        while (scanner.getLine() == currLine && !scanner.atEnd()) scanner.next();
+    }
+
+    /* Skips a block comment, its slash-star read, up to the star-slash ending it. */
+    private void skipComment() {
+        while (!scanner.atEnd()) {
+            char c = scanner.next();
+            if (c == '*' && scanner.peek() == '/') { scanner.next(); return; }
         }
-        // Recognise NE token.
-        if (c == '!') {
-            if (scanner.peek() == '=') {
-                c = scanner.next();
-                return new Token(TokenClass.NE, scanner.getLine(), scanner.getColumn());
-            } else {
-                return new Token(TokenClass.INVALID, scanner.getLine(),scanner.getColumn());
+    }
+
+    /* A string literal, its opening " read, which must end on the same line. */
+    private TokenClass string() {
+        text.setLength(0);
+        int start = scanner.getOffset();
+        char c = '"';
+        int currLine = scanner.getLine();
+        while (true) {
+            if (scanner.atEnd()) {
+                // Reached end of file before terminating string.
+                error(c, scanner.getLine(), scanner.getColumn());
+                return TokenClass.INVALID;
             }
-        }
-        // Recognise CHAR_LITERAL token.
-        if (c == '\'') {
             c = scanner.next();
-            char peek = scanner.peek();
-            // Check for escape character: '\t' | '\b' | '\n' | '\r' | '\f' | '\'' | '\"' | '\\'
-            if (c == '\\') {
-                String value = "\\";
-                // Our valid set of escaped characters.
-                if (peek == 't' || peek == 'b' || peek == 'n' || peek == 'r' || peek == 'f' || peek == '\'' || peek == '"' || peek == '\\') {
-                    c = scanner.next();
-                    value += c;
-                    peek = scanner.peek();
-                    // Next character must be a closing single quote to be a valid CHAR_LITERAL.
-                    if (peek == '\'') {
-                        String ltr = "\\" + c;
-                        c = scanner.next();
-                        return new Token(TokenClass.CHAR_LITERAL, ltr, scanner.getLine(),scanner.getColumn());
-                    } else {
-                        c = scanner.next();
-                        error(c, scanner.getLine(),scanner.getColumn());
-                        return new Token(TokenClass.INVALID, scanner.getLine(),scanner.getColumn());
-                    }
-                } else {
-                    c = scanner.next();
-                    error(c, scanner.getLine(),scanner.getColumn());
-                    return new Token(TokenClass.INVALID, scanner.getLine(),scanner.getColumn());
-                }
-            }
-            // Otherwise we have a normal char.
-            else {
-                // Check the CHAR_LITERAL is closed correctly.
-                if (peek == '\'') {
-                    char val = c;
-                    c = scanner.next();
-                    return new Token(TokenClass.CHAR_LITERAL, String.valueOf(val), scanner.getLine(),scanner.getColumn());
-                } else {
-                    c = scanner.next();
-                    error(c, scanner.getLine(),scanner.getColumn());
-                    return new Token(TokenClass.INVALID, scanner.getLine(),scanner.getColumn());
-                }
+            // If hit new-line before STRING_LITERAL terminator, we have invalid token.
+            if (scanner.getLine() != currLine) {
+                error(c, scanner.getLine(), scanner.getColumn());
+                return TokenClass.INVALID;
             }
-        }
-        // Recognise LT/LE tokens.
-        if (c == '<') {
-            if (scanner.peek() == '=') {
-                c = scanner.next();
-                return new Token(TokenClass.LE, scanner.getLine(), scanner.getColumn());
-            }
-            else return new Token(TokenClass.LT, scanner.getLine(),scanner.getColumn());
-        }
-        // Recognise GT/GE tokens.
-        if (c == '>') {
-            if (scanner.peek() == '=') {
+            // An escaped character is kept as written.
+            if (c == '\\') {
+                text.append(c);
                 c = scanner.next();
-                return new Token(TokenClass.GE, scanner.getLine(), scanner.getColumn());
+                text.append(c);
             }
-            return new Token(TokenClass.GT, scanner.getLine(),scanner.getColumn());
-        }
-        // Recognise AND token.
-        if (c == '&') {
-            if (scanner.peek() == '&') {
-                c = scanner.next();
-                return new Token(TokenClass.AND, scanner.getLine(), scanner.getColumn());
+            else if (c == '"') {
+                lexemeStart = start;
+                lexemeEnd = scanner.getOffset() - 1;
+                return TokenClass.STRING_LITERAL;
             }
             else {
-                error(c, scanner.getLine(),scanner.getColumn());
-                return new Token(TokenClass.INVALID, scanner.getLine(),scanner.getColumn());
+                text.append(c);
             }
         }
-        // Recognise OR token.
-        if (c == '|') {
-            if (scanner.peek() == '|') {
+    }
+
+    /* A char literal, its opening ' read: a char or one of the escapes \t \b \n \r \f \' \" \\, then '. */
+    private TokenClass character() {
+        int start = scanner.getOffset();
+        char c = scanner.next();
+        char peek = scanner.peek();
+        text.setLength(0);
+        if (c == '\\') {
+            if (peek != 't' && peek != 'b' && peek != 'n' && peek != 'r' && peek != 'f' && peek != '\'' && peek != '"' && peek != '\\') {
                 c = scanner.next();
-                return new Token(TokenClass.OR, scanner.getLine(), scanner.getColumn());
-            }
-            else {
-                error(c, scanner.getLine(),scanner.getColumn());
-                return new Token(TokenClass.INVALID, scanner.getLine(),scanner.getColumn());
+                error(c, scanner.getLine(), scanner.getColumn());
+                return TokenClass.INVALID;
             }
+            c = scanner.next();
+            text.append('\\').append(c);
+            peek = scanner.peek();
+        } else {
+            text.append(c);
         }
-        // Recognise INCLUDE token.
-        if (c == '#') {
-            // The only valid characters that can proceed a '#'' are "include"
-            String expected = "include";
-            char expt_c;
-            for (int i = 0; i < expected.length(); i++) {
-                // Get the current and expected char.
-                c      = scanner.next();
-                expt_c = expected.charAt(i);
-                // If the current character is not expected.
-                if (c != expt_c) {
-                    error(c, scanner.getLine(),scanner.getColumn());
-                    return new Token(TokenClass.INVALID, scanner.getLine(),scanner.getColumn());
-                }
-                
-            }
-            // We have found "#include".
-            return new Token(TokenClass.INCLUDE, scanner.getLine(),scanner.getColumn());
+        // Next character must be a closing single quote to be a valid CHAR_LITERAL.
+        c = scanner.next();
+        if (peek != '\'') {
+            error(c, scanner.getLine(), scanner.getColumn());
+            return TokenClass.INVALID;
         }
+        lexemeStart = start;
+        lexemeEnd = scanner.getOffset() - 1;
+        return TokenClass.CHAR_LITERAL;
+    }
 
-        /* Recognise simple tokens. */
-        if (c == '{') return new Token(TokenClass.LBRA, scanner.getLine(),scanner.getColumn());
-        if (c == '}') return new Token(TokenClass.RBRA, scanner.getLine(),scanner.getColumn());
-        if (c == '(') return new Token(TokenClass.LPAR, scanner.getLine(),scanner.getColumn());
-        if (c == ')') return new Token(TokenClass.RPAR, scanner.getLine(),scanner.getColumn());
-        if (c == '[') return new Token(TokenClass.LSBR, scanner.getLine(),scanner.getColumn());
-        if (c == ']') return new Token(TokenClass.RSBR, scanner.getLine(),scanner.getColumn());
-        if (c == ';') return new Token(TokenClass.SC, scanner.getLine(),scanner.getColumn());
-        if (c == ',') return new Token(TokenClass.COMMA, scanner.getLine(),scanner.getColumn());
-        if (c == '+') return new Token(TokenClass.PLUS, scanner.getLine(),scanner.getColumn());
-        if (c == '-') return new Token(TokenClass.MINUS, scanner.getLine(),scanner.getColumn());
-        if (c == '*') return new Token(TokenClass.ASTERIX, scanner.getLine(),scanner.getColumn());
-        if (c == '%') return new Token(TokenClass.REM, scanner.getLine(),scanner.getColumn());
-        if (c == '.') return new Token(TokenClass.DOT, scanner.getLine(),scanner.getColumn());
-
-        // Skip Whitespace.
-        if (Character.isWhitespace(c)) return next();
-
-        // if we reach this point, it means we did not recognise a valid token
-        error(c, scanner.getLine(),scanner.getColumn());
-        return new Token(TokenClass.INVALID, scanner.getLine(),scanner.getColumn());
+    /* The #include directive, its # read, reporting the first char that does not spell include. */
+    private TokenClass include() {
+        String expected = "include";
+        for (int i = 0; i < expected.length(); i++) {
+            char c = scanner.next();
+            if (c != expected.charAt(i)) {
+                error(c, scanner.getLine(), scanner.getColumn());
+                return TokenClass.INVALID;
+            }
+        }
+        return TokenClass.INCLUDE;
     }
 
 
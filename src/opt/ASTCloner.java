@@ -0,0 +1,108 @@
+package opt;
+
+import ast.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deep copies statements and expressions.
+ * Uses of the VarDecls found in substitutions are replaced by a copy of the substituted expression,
+ * and VarDecls declared inside the copied code are copied too, so every copy owns its own locals.
+ */
+public class ASTCloner extends ASTRewriter {
+
+    private final Map<VarDecl, Expr> substitutions;
+    private final HashMap<VarDecl, VarDecl> copiedDecls = new HashMap<VarDecl, VarDecl>();
+
+    public ASTCloner() {
+        this(new HashMap<VarDecl, Expr>());
+    }
+
+    public ASTCloner(Map<VarDecl, Expr> substitutions) {
+        this.substitutions = substitutions;
+    }
+
+    public Expr copy(Expr e) {
+        return rewrite(e);
+    }
+
+    public Stmt copy(Stmt s) {
+        return rewrite(s);
+    }
+
+    /* The type a copy is given for t, t itself unless a subclass copies types too. */
+    protected Type type(Type t) {
+        return t;
+    }
+
+    @Override
+    public ASTNode visitBlock(Block b) {
+        List<VarDecl> varDecls = new ArrayList<VarDecl>();
+        for (VarDecl vd: b.varDecls) varDecls.add((VarDecl)vd.accept(this));
+        List<Stmt> stmts = new ArrayList<Stmt>();
+        for (Stmt s: b.stmts) stmts.add(rewrite(s));
+        return positioned(new Block(varDecls, stmts), b);
+    }
+
+    @Override
+    public ASTNode visitVarDecl(VarDecl vd) {
+        VarDecl copy = new VarDecl(type(vd.type), vd.ident);
+        copy.num_bytes  = vd.num_bytes;
+        copy.parentFunc = vd.parentFunc;
+        copy.storage    = vd.storage;
+        copiedDecls.put(vd, copy);
+        return copy;
+    }
+
+    @Override
+    public ASTNode visitReturn(Return r) {
+        return positioned(new Return(rewrite(r.expr)), r);
+    }
+
+    @Override
+    public ASTNode visitFunCallExpr(FunCallExpr fce) {
+        List<Expr> exprs = new ArrayList<Expr>();
+        for (Expr e: fce.exprs) exprs.add(rewrite(e));
+        FunCallExpr copy = typed(new FunCallExpr(fce.ident, exprs), fce);
+        copy.fd       = fce.fd;
+        copy.position = fce.position;
+        return copy;
+    }
+
+    @Override
+    public ASTNode visitVarExpr(VarExpr v) {
+        if (substitutions.containsKey(v.vd))
+            return new ASTCloner().copy(substitutions.get(v.vd));
+        VarExpr copy = typed(new VarExpr(v.ident), v);
+        copy.vd = copiedDecls.containsKey(v.vd) ? copiedDecls.get(v.vd) : v.vd;
+        return copy;
+    }
+
+    @Override
+    public ASTNode visitIntLiteral(IntLiteral il) {
+        return typed(new IntLiteral(Integer.toString(il.val)), il);
+    }
+
+    @Override
+    public ASTNode visitStrLiteral(StrLiteral sl) {
+        return typed(new StrLiteral(sl.val), sl);
+    }
+
+    @Override
+    public ASTNode visitChrLiteral(ChrLiteral cl) {
+        return typed(new ChrLiteral(cl.val), cl);
+    }
+
+    @Override
+    public ASTNode visitSizeOfExpr(SizeOfExpr soe) {
+        return typed(new SizeOfExpr(type(soe.type)), soe);
+    }
+
+    @Override
+    public ASTNode visitTypecastExpr(TypecastExpr te) {
+        return typed(new TypecastExpr(type(te.type), rewrite(te.expr)), te);
+    }
+}
@@ -0,0 +1,208 @@
+package opt;
+
+import ast.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rebuilds a tree bottom up, letting subclasses replace any statement or expression.
+ * AST fields are final, so a node is copied whenever one of its children was replaced;
+ * untouched nodes are returned as they are. Blocks are updated in place so that
+ * FunDecl.block and the VarDecls they own keep their identity.
+ */
+public abstract class ASTRewriter implements ASTVisitor<ASTNode> {
+
+    protected Expr rewrite(Expr e) {
+        if (e == null) return null;
+        return (Expr)e.accept(this);
+    }
+
+    protected Stmt rewrite(Stmt s) {
+        if (s == null) return null;
+        return (Stmt)s.accept(this);
+    }
+
+    protected <E extends Expr> E typed(E copy, Expr original) {
+        copy.type = original.type;
+        return copy;
+    }
+
+    protected <S extends Stmt> S positioned(S copy, Stmt original) {
+        copy.position = original.position;
+        return copy;
+    }
+
+    @Override
+    public ASTNode visitProgram(Program p) {
+        for (FunDecl fd: p.funDecls) fd.accept(this);
+        return p;
+    }
+
+    @Override
+    public ASTNode visitFunDecl(FunDecl fd) {
+        fd.block.accept(this);
+        return fd;
+    }
+
+    @Override
+    public ASTNode visitBlock(Block b) {
+        for (int i = 0; i < b.stmts.size(); i++)
+            b.stmts.set(i, rewrite(b.stmts.get(i)));
+        return b;
+    }
+
+    @Override
+    public ASTNode visitWhile(While w) {
+        Expr expr = rewrite(w.expr);
+        Stmt stmt = rewrite(w.stmt);
+        if (expr == w.expr && stmt == w.stmt) return w;
+        return positioned(new While(expr, stmt), w);
+    }
+
+    @Override
+    public ASTNode visitIf(If i) {
+        Expr expr  = rewrite(i.expr);
+        Stmt stmt1 = rewrite(i.stmt1);
+        Stmt stmt2 = rewrite(i.stmt2);
+        if (expr == i.expr && stmt1 == i.stmt1 && stmt2 == i.stmt2) return i;
+        return positioned(new If(expr, stmt1, stmt2), i);
+    }
+
+    @Override
+    public ASTNode visitAssign(Assign a) {
+        Expr expr1 = rewrite(a.expr1);
+        Expr expr2 = rewrite(a.expr2);
+        if (expr1 == a.expr1 && expr2 == a.expr2) return a;
+        return positioned(new Assign(expr1, expr2), a);
+    }
+
+    @Override
+    public ASTNode visitReturn(Return r) {
+        Expr expr = rewrite(r.expr);
+        if (expr == r.expr) return r;
+        return positioned(new Return(expr), r);
+    }
+
+    @Override
+    public ASTNode visitExprStmt(ExprStmt es) {
+        Expr expr = rewrite(es.expr);
+        if (expr == es.expr) return es;
+        return positioned(new ExprStmt(expr), es);
+    }
+
+    @Override
+    public ASTNode visitArrayAccessExpr(ArrayAccessExpr aae) {
+        Expr array = rewrite(aae.array);
+        Expr index = rewrite(aae.index);
+        if (array == aae.array && index == aae.index) return aae;
+        return typed(new ArrayAccessExpr(array, index), aae);
+    }
+
+    @Override
+    public ASTNode visitBinOp(BinOp bo) {
+        Expr expr1 = rewrite(bo.expr1);
+        Expr expr2 = rewrite(bo.expr2);
+        if (expr1 == bo.expr1 && expr2 == bo.expr2) return bo;
+        return typed(new BinOp(expr1, bo.op, expr2), bo);
+    }
+
+    @Override
+    public ASTNode visitFieldAccessExpr(FieldAccessExpr fae) {
+        Expr struct = rewrite(fae.struct);
+        if (struct == fae.struct) return fae;
+        return typed(new FieldAccessExpr(struct, fae.field), fae);
+    }
+
+    @Override
+    public ASTNode visitFunCallExpr(FunCallExpr fce) {
+        List<Expr> exprs = new ArrayList<Expr>();
+        boolean changed = false;
+        for (Expr e: fce.exprs) {
+            Expr arg = rewrite(e);
+            changed |= (arg != e);
+            exprs.add(arg);
+        }
+        if (!changed) return fce;
+        FunCallExpr copy = typed(new FunCallExpr(fce.ident, exprs), fce);
+        copy.fd       = fce.fd;
+        copy.position = fce.position;
+        return copy;
+    }
+
+    @Override
+    public ASTNode visitTypecastExpr(TypecastExpr te) {
+        Expr expr = rewrite(te.expr);
+        if (expr == te.expr) return te;
+        return typed(new TypecastExpr(te.type, expr), te);
+    }
+
+    @Override
+    public ASTNode visitValueAtExpr(ValueAtExpr vae) {
+        Expr expr = rewrite(vae.expr);
+        if (expr == vae.expr) return vae;
+        return typed(new ValueAtExpr(expr), vae);
+    }
+
+    /* Leaves */
+
+    @Override
+    public ASTNode visitVarExpr(VarExpr v) {
+        return v;
+    }
+
+    @Override
+    public ASTNode visitIntLiteral(IntLiteral il) {
+        return il;
+    }
+
+    @Override
+    public ASTNode visitStrLiteral(StrLiteral sl) {
+        return sl;
+    }
+
+    @Override
+    public ASTNode visitChrLiteral(ChrLiteral cl) {
+        return cl;
+    }
+
+    @Override
+    public ASTNode visitSizeOfExpr(SizeOfExpr soe) {
+        return soe;
+    }
+
+    @Override
+    public ASTNode visitVarDecl(VarDecl vd) {
+        return vd;
+    }
+
+    @Override
+    public ASTNode visitStructTypeDecl(StructTypeDecl st) {
+        return st;
+    }
+
+    @Override
+    public ASTNode visitBaseType(BaseType bt) {
+        return bt;
+    }
+
+    @Override
+    public ASTNode visitStructType(StructType st) {
+        return st;
+    }
+
+    @Override
+    public ASTNode visitPointerType(PointerType pt) {
+        return pt;
+    }
+
+    @Override
+    public ASTNode visitArrayType(ArrayType at) {
+        return at;
+    }
+
+    @Override
+    public ASTNode visitOp(Op o) {
+        return o;
+    }
+}
@@ -0,0 +1,164 @@
+package opt;
+
+import ast.*;
+
+/**
+ * Visits every statement and expression of a tree without changing it.
+ * Analyses extend this and override the visit methods of the nodes they are interested in,
+ * calling the super method to keep walking into the children.
+ */
+public abstract class ASTWalker implements ASTVisitor<Void> {
+
+    @Override
+    public Void visitProgram(Program p) {
+        for (FunDecl fd: p.funDecls) fd.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitFunDecl(FunDecl fd) {
+        fd.block.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitBlock(Block b) {
+        for (VarDecl vd: b.varDecls) vd.accept(this);
+        for (Stmt s: b.stmts) s.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitWhile(While w) {
+        w.expr.accept(this);
+        w.stmt.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitIf(If i) {
+        i.expr.accept(this);
+        i.stmt1.accept(this);
+        if (i.stmt2 != null) i.stmt2.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitAssign(Assign a) {
+        a.expr1.accept(this);
+        a.expr2.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitReturn(Return r) {
+        if (r.expr != null) r.expr.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitExprStmt(ExprStmt es) {
+        es.expr.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitArrayAccessExpr(ArrayAccessExpr aae) {
+        aae.array.accept(this);
+        aae.index.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitBinOp(BinOp bo) {
+        bo.expr1.accept(this);
+        bo.expr2.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitFieldAccessExpr(FieldAccessExpr fae) {
+        fae.struct.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitFunCallExpr(FunCallExpr fce) {
+        for (Expr e: fce.exprs) e.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitTypecastExpr(TypecastExpr te) {
+        te.expr.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitValueAtExpr(ValueAtExpr vae) {
+        vae.expr.accept(this);
+        return null;
+    }
+
+    /* Leaves */
+
+    @Override
+    public Void visitVarExpr(VarExpr v) {
+        return null;
+    }
+
+    @Override
+    public Void visitIntLiteral(IntLiteral il) {
+        return null;
+    }
+
+    @Override
+    public Void visitStrLiteral(StrLiteral sl) {
+        return null;
+    }
+
+    @Override
+    public Void visitChrLiteral(ChrLiteral cl) {
+        return null;
+    }
+
+    @Override
+    public Void visitSizeOfExpr(SizeOfExpr soe) {
+        return null;
+    }
+
+    @Override
+    public Void visitVarDecl(VarDecl vd) {
+        return null;
+    }
+
+    @Override
+    public Void visitStructTypeDecl(StructTypeDecl st) {
+        return null;
+    }
+
+    @Override
+    public Void visitBaseType(BaseType bt) {
+        return null;
+    }
+
+    @Override
+    public Void visitStructType(StructType st) {
+        return null;
+    }
+
+    @Override
+    public Void visitPointerType(PointerType pt) {
+        return null;
+    }
+
+    @Override
+    public Void visitArrayType(ArrayType at) {
+        return null;
+    }
+
+    @Override
+    public Void visitOp(Op o) {
+        return null;
+    }
+}
@@ -0,0 +1,68 @@
+package opt;
+
+import ast.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Which functions of a program call which, from the FunDecls filled in by name analysis.
+ * The runtime stubs (print_i, mcmalloc, ...) appear as callees, with no block, but have no callees of their own.
+ */
+public class CallGraph {
+
+    private final List<FunDecl> funDecls;
+    private final LinkedHashMap<FunDecl, LinkedHashSet<FunDecl>> callees = new LinkedHashMap<FunDecl, LinkedHashSet<FunDecl>>();
+
+    public CallGraph(Program p) {
+        this.funDecls = p.funDecls;
+        for (FunDecl fd: p.funDecls) {
+            final LinkedHashSet<FunDecl> called = new LinkedHashSet<FunDecl>();
+            fd.block.accept(new ASTWalker() {
+                @Override
+                public Void visitFunCallExpr(FunCallExpr fce) {
+                    if (fce.fd != null) called.add(fce.fd);
+                    return super.visitFunCallExpr(fce);
+                }
+            });
+            callees.put(fd, called);
+        }
+    }
+
+    public Set<FunDecl> callees(FunDecl fd) {
+        Set<FunDecl> called = callees.get(fd);
+        return called == null ? new LinkedHashSet<FunDecl>() : called;
+    }
+
+    /* The functions, runtime stubs included, that can run once root is called, root included. */
+    public Set<FunDecl> reachableFrom(FunDecl root) {
+        LinkedHashSet<FunDecl> reached = new LinkedHashSet<FunDecl>();
+        List<FunDecl> work = new ArrayList<FunDecl>();
+        reached.add(root);
+        work.add(root);
+        while (!work.isEmpty()) {
+            FunDecl fd = work.remove(work.size() - 1);
+            for (FunDecl callee: callees(fd))
+                if (reached.add(callee)) work.add(callee);
+        }
+        return reached;
+    }
+
+    /* Every function of the program, each after the functions it calls unless they call it back. */
+    public List<FunDecl> bottomUp() {
+        List<FunDecl> order = new ArrayList<FunDecl>();
+        HashSet<FunDecl> visited = new HashSet<FunDecl>();
+        for (FunDecl fd: funDecls) postOrder(fd, visited, order);
+        return order;
+    }
+
+    private void postOrder(FunDecl fd, Set<FunDecl> visited, List<FunDecl> order) {
+        if (!callees.containsKey(fd) || !visited.add(fd)) return;
+        for (FunDecl callee: callees.get(fd)) postOrder(callee, visited, order);
+        order.add(fd);
+    }
+}
@@ -0,0 +1,96 @@
+package opt;
+
+import ast.*;
+
+/**
+ * Estimates the amount of code generated for a tree, in nodes: one per statement and per
+ * operation or operand, with calls weighted by the cost of the call sequence.
+ */
+public class CodeSize extends ASTWalker {
+
+    private int nodes = 0;
+
+    public static int of(ASTNode n) {
+        CodeSize counter = new CodeSize();
+        n.accept(counter);
+        return counter.nodes;
+    }
+
+    @Override
+    public Void visitWhile(While w) {
+        nodes++;
+        return super.visitWhile(w);
+    }
+
+    @Override
+    public Void visitIf(If i) {
+        nodes++;
+        return super.visitIf(i);
+    }
+
+    @Override
+    public Void visitAssign(Assign a) {
+        nodes++;
+        return super.visitAssign(a);
+    }
+
+    @Override
+    public Void visitReturn(Return r) {
+        nodes++;
+        return super.visitReturn(r);
+    }
+
+    @Override
+    public Void visitBinOp(BinOp bo) {
+        nodes++;
+        return super.visitBinOp(bo);
+    }
+
+    @Override
+    public Void visitArrayAccessExpr(ArrayAccessExpr aae) {
+        nodes++;
+        return super.visitArrayAccessExpr(aae);
+    }
+
+    @Override
+    public Void visitFieldAccessExpr(FieldAccessExpr fae) {
+        nodes++;
+        return super.visitFieldAccessExpr(fae);
+    }
+
+    @Override
+    public Void visitValueAtExpr(ValueAtExpr vae) {
+        nodes++;
+        return super.visitValueAtExpr(vae);
+    }
+
+    @Override
+    public Void visitFunCallExpr(FunCallExpr fce) {
+        nodes += 4;
+        return super.visitFunCallExpr(fce);
+    }
+
+    @Override
+    public Void visitVarExpr(VarExpr v) {
+        nodes++;
+        return null;
+    }
+
+    @Override
+    public Void visitIntLiteral(IntLiteral il) {
+        nodes++;
+        return null;
+    }
+
+    @Override
+    public Void visitChrLiteral(ChrLiteral cl) {
+        nodes++;
+        return null;
+    }
+
+    @Override
+    public Void visitStrLiteral(StrLiteral sl) {
+        nodes++;
+        return null;
+    }
+}
@@ -0,0 +1,108 @@
+package opt;
+
+import ast.*;
+
+import java.util.ArrayList;
+
+/**
+ * Evaluates arithmetic on constants at compile time, with the semantics of the generated code
+ * (32 bit wrap around, division truncating towards zero), and simplifies what that leaves:
+ *   (x + c1) + c2  ->  x + (c1 + c2)        x + 0, x - 0, x * 1  ->  x
+ *   if (c) s1 else s2  ->  s1 or s2         while (0) s  ->  nothing
+ * Constant offsets are kept on the right, as "x + c" or "x - c", which is the shape the code
+ * generator recognises in array indices.
+ *
+ * AND and OR are left alone: the generated code does not reduce their operands to 0 or 1.
+ * Division and modulo by zero are left to fail at run time.
+ */
+public class ConstantFolder extends ASTRewriter {
+
+    @Override
+    public ASTNode visitBinOp(BinOp bo) {
+        BinOp folded = (BinOp)super.visitBinOp(bo);
+        Expr expr1 = folded.expr1;
+        Expr expr2 = folded.expr2;
+
+        if (expr1 instanceof IntLiteral && expr2 instanceof IntLiteral) {
+            Integer result = evaluate(((IntLiteral)expr1).val, folded.op, ((IntLiteral)expr2).val);
+            if (result != null) return literal(result);
+            return folded;
+        }
+
+        // Constants go on the right of commutative operations.
+        if ((folded.op == Op.ADD || folded.op == Op.MUL) && expr1 instanceof IntLiteral && !(expr2 instanceof IntLiteral)) {
+            Expr e = expr1;
+            expr1 = expr2;
+            expr2 = e;
+        }
+        if (!(expr2 instanceof IntLiteral)) return folded;
+        int c = ((IntLiteral)expr2).val;
+
+        if (folded.op == Op.MUL && c == 1) return expr1;
+        if (folded.op != Op.ADD && folded.op != Op.SUB) return folded;
+
+        // x + c and x - c, merging a constant offset already on x.
+        int offset = folded.op == Op.ADD ? c : -c;
+        Expr x = expr1;
+        if (x instanceof BinOp) {
+            BinOp inner = (BinOp)x;
+            if ((inner.op == Op.ADD || inner.op == Op.SUB) && inner.expr2 instanceof IntLiteral) {
+                int c2 = ((IntLiteral)inner.expr2).val;
+                offset += inner.op == Op.ADD ? c2 : -c2;
+                x = inner.expr1;
+            }
+        }
+        return offset(x, offset, folded);
+    }
+
+    /* x + offset, in the simplest form. */
+    private Expr offset(Expr x, int offset, Expr original) {
+        if (offset == 0) return x;
+        // -offset would overflow, keep adding.
+        if (offset > 0 || offset == Integer.MIN_VALUE)
+            return typed(new BinOp(x, Op.ADD, literal(offset)), original);
+        return typed(new BinOp(x, Op.SUB, literal(-offset)), original);
+    }
+
+    private static Integer evaluate(int v1, Op op, int v2) {
+        if (op == Op.ADD) return v1 + v2;
+        if (op == Op.SUB) return v1 - v2;
+        if (op == Op.MUL) return v1 * v2;
+        if (op == Op.DIV) return v2 == 0 ? null : v1 / v2;
+        if (op == Op.MOD) return v2 == 0 ? null : v1 % v2;
+        if (op == Op.GT)  return v1 >  v2 ? 1 : 0;
+        if (op == Op.LT)  return v1 <  v2 ? 1 : 0;
+        if (op == Op.GE)  return v1 >= v2 ? 1 : 0;
+        if (op == Op.LE)  return v1 <= v2 ? 1 : 0;
+        if (op == Op.NE)  return v1 != v2 ? 1 : 0;
+        if (op == Op.EQ)  return v1 == v2 ? 1 : 0;
+        return null;
+    }
+
+    private static IntLiteral literal(int val) {
+        IntLiteral il = new IntLiteral(Integer.toString(val));
+        il.type = BaseType.INT;
+        return il;
+    }
+
+    @Override
+    public ASTNode visitIf(If i) {
+        If folded = (If)super.visitIf(i);
+        if (!(folded.expr instanceof IntLiteral)) return folded;
+        if (((IntLiteral)folded.expr).val != 0) return folded.stmt1;
+        if (folded.stmt2 != null) return folded.stmt2;
+        return positioned(emptyBlock(), i);
+    }
+
+    @Override
+    public ASTNode visitWhile(While w) {
+        While folded = (While)super.visitWhile(w);
+        if (folded.expr instanceof IntLiteral && ((IntLiteral)folded.expr).val == 0)
+            return positioned(emptyBlock(), w);
+        return folded;
+    }
+
+    private static Block emptyBlock() {
+        return new Block(new ArrayList<VarDecl>(), new ArrayList<Stmt>());
+    }
+}
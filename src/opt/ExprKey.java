@@ -0,0 +1,172 @@
+package opt;
+
+import ast.*;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Builds a canonical key for expressions, so that structurally equal expressions get equal keys.
+ * Variables are told apart by their VarDecl, not their name, so shadowing cannot confuse two keys.
+ * Returns null for expressions that have no stable value, such as calls and string literals.
+ */
+public class ExprKey implements ASTVisitor<String> {
+
+    private final IdentityHashMap<VarDecl, Integer> declIds = new IdentityHashMap<VarDecl, Integer>();
+
+    public String of(Expr e) {
+        return e.accept(this);
+    }
+
+    private String id(VarDecl vd) {
+        Integer id = declIds.get(vd);
+        if (id == null) {
+            id = declIds.size();
+            declIds.put(vd, id);
+        }
+        return vd.ident + "#" + id;
+    }
+
+    @Override
+    public String visitVarExpr(VarExpr v) {
+        if (v.vd == null) return null;
+        return id(v.vd);
+    }
+
+    @Override
+    public String visitIntLiteral(IntLiteral il) {
+        return Integer.toString(il.val);
+    }
+
+    @Override
+    public String visitChrLiteral(ChrLiteral cl) {
+        return "'" + cl.val + "'";
+    }
+
+    @Override
+    public String visitBinOp(BinOp bo) {
+        String key1 = bo.expr1.accept(this);
+        String key2 = bo.expr2.accept(this);
+        if (key1 == null || key2 == null) return null;
+        return "(" + bo.op + " " + key1 + " " + key2 + ")";
+    }
+
+    @Override
+    public String visitArrayAccessExpr(ArrayAccessExpr aae) {
+        String array = aae.array.accept(this);
+        String index = aae.index.accept(this);
+        if (array == null || index == null) return null;
+        return array + "[" + index + "]";
+    }
+
+    @Override
+    public String visitFieldAccessExpr(FieldAccessExpr fae) {
+        String struct = fae.struct.accept(this);
+        if (struct == null) return null;
+        return struct + "." + fae.field;
+    }
+
+    @Override
+    public String visitValueAtExpr(ValueAtExpr vae) {
+        String addr = vae.expr.accept(this);
+        if (addr == null) return null;
+        return "*" + addr;
+    }
+
+    @Override
+    public String visitTypecastExpr(TypecastExpr te) {
+        // Casts do not change the bits of a value.
+        return te.expr.accept(this);
+    }
+
+    @Override
+    public String visitSizeOfExpr(SizeOfExpr soe) {
+        return null;
+    }
+
+    @Override
+    public String visitStrLiteral(StrLiteral sl) {
+        return null;
+    }
+
+    @Override
+    public String visitFunCallExpr(FunCallExpr fce) {
+        return null;
+    }
+
+    /* Not expressions */
+
+    @Override
+    public String visitBaseType(BaseType bt) {
+        return null;
+    }
+
+    @Override
+    public String visitStructTypeDecl(StructTypeDecl st) {
+        return null;
+    }
+
+    @Override
+    public String visitBlock(Block b) {
+        return null;
+    }
+
+    @Override
+    public String visitFunDecl(FunDecl p) {
+        return null;
+    }
+
+    @Override
+    public String visitProgram(Program p) {
+        return null;
+    }
+
+    @Override
+    public String visitVarDecl(VarDecl vd) {
+        return null;
+    }
+
+    @Override
+    public String visitStructType(StructType st) {
+        return null;
+    }
+
+    @Override
+    public String visitPointerType(PointerType pt) {
+        return null;
+    }
+
+    @Override
+    public String visitArrayType(ArrayType at) {
+        return null;
+    }
+
+    @Override
+    public String visitWhile(While w) {
+        return null;
+    }
+
+    @Override
+    public String visitIf(If i) {
+        return null;
+    }
+
+    @Override
+    public String visitAssign(Assign a) {
+        return null;
+    }
+
+    @Override
+    public String visitReturn(Return r) {
+        return null;
+    }
+
+    @Override
+    public String visitExprStmt(ExprStmt es) {
+        return null;
+    }
+
+    @Override
+    public String visitOp(Op o) {
+        return null;
+    }
+}
@@ -0,0 +1,79 @@
+package opt;
+
+import ast.*;
+import util.Options;
+import util.Profile;
+
+import java.util.HashMap;
+
+/**
+ * Replaces calls to expression functions, i.e. functions whose whole body is "return exp;",
+ * by the returned expression with the arguments substituted for the parameters.
+ *
+ * Call sites are picked from the profile when there is one: cold call sites are never inlined,
+ * hot ones are allowed a larger callee. Without a profile only tiny callees are inlined, at -O2.
+ */
+public class Inliner extends ASTRewriter {
+
+    private static final int SMALL_CALLEE = 8;  // max size of the returned expression, in nodes
+    private static final int HOT_CALLEE   = 24; // same, for hot call sites
+
+    private final Profile profile;
+    private FunDecl currFunDecl;
+
+    public Inliner(Profile profile) {
+        this.profile = profile;
+    }
+
+    @Override
+    public ASTNode visitFunDecl(FunDecl fd) {
+        currFunDecl = fd;
+        fd.block.accept(this);
+        currFunDecl = null;
+        return fd;
+    }
+
+    @Override
+    public ASTNode visitFunCallExpr(FunCallExpr fce) {
+        FunCallExpr call = (FunCallExpr)super.visitFunCallExpr(fce);
+        FunDecl callee = call.fd;
+        Expr body = returnedExpr(callee);
+        if (body == null || callee == currFunDecl) return call;
+
+        // Decide from the profile, or from the size of the callee alone.
+        int maxSize = SMALL_CALLEE;
+        if (profile != null) {
+            long count = profile.count(currFunDecl.name, call.position);
+            if (count == Profile.UNKNOWN || profile.isCold(count)) return call;
+            if (profile.isHot(count)) maxSize = HOT_CALLEE;
+        }
+        else if (Options.optLevel < 2) return call;
+        if (CodeSize.of(body) > maxSize) return call;
+
+        // Only parameters may be referenced, the callee's globals could be shadowed at the call site.
+        if (!Purity.usesOnly(body, callee.params)) return call;
+
+        // Arguments are evaluated before the body runs. Keep that order observable only
+        // when nothing in the body or the arguments can change memory.
+        boolean bodyCalls = Purity.hasCall(body);
+        HashMap<VarDecl, Expr> substitutions = new HashMap<VarDecl, Expr>();
+        for (int i = 0; i < callee.params.size(); i++) {
+            VarDecl param = callee.params.get(i);
+            Expr arg = call.exprs.get(i);
+            int uses = Purity.countUses(body, param);
+            boolean cheap = Purity.isCheap(arg);
+            if (!cheap && (bodyCalls || uses != 1 || Purity.hasCall(arg))) return call;
+            substitutions.put(param, arg);
+        }
+        return new ASTCloner(substitutions).copy(body);
+    }
+
+    /* The expression returned by an expression function, or null for any other function. */
+    private static Expr returnedExpr(FunDecl fd) {
+        if (fd == null || fd.block == null) return null;
+        if (!fd.block.varDecls.isEmpty() || fd.block.stmts.size() != 1) return null;
+        Stmt stmt = fd.block.stmts.get(0);
+        if (!(stmt instanceof Return)) return null;
+        return ((Return)stmt).expr;
+    }
+}
@@ -0,0 +1,135 @@
+package opt;
+
+import ast.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Moves arithmetic that gives the same value on every iteration of a While out of the loop.
+ *
+ * Each invariant expression is computed once into a fresh local, assigned just before the loop,
+ * and the loop reads that local instead. Only arithmetic that cannot trap is moved: no ADD or SUB,
+ * which trap on overflow, no DIV or MOD, no loads and no calls, so computing it when the loop body,
+ * or the branch of it holding it, never runs is harmless. The operands of an ADD or SUB may be moved.
+ *
+ * A local scalar is invariant if the loop never assigns it. A global is invariant only if the
+ * loop also makes no calls, since any call may assign it. Stores through pointers can only reach
+ * the heap (see Purity), so they never change a variable.
+ *
+ * Loops are handled innermost first, so code hoisted out of an inner loop can be hoisted again.
+ * Only loops sitting directly in a Block are handled, since the hoisted code needs a Block to live in.
+ */
+public class LoopInvariantCodeMotion extends ASTWalker {
+
+    private FunDecl currFunDecl;
+    private int tempNum;
+
+    @Override
+    public Void visitFunDecl(FunDecl fd) {
+        currFunDecl = fd;
+        tempNum = 0;
+        fd.block.accept(this);
+        currFunDecl = null;
+        return null;
+    }
+
+    @Override
+    public Void visitBlock(Block b) {
+        super.visitBlock(b);
+        for (int i = 0; i < b.stmts.size(); i++) {
+            if (!(b.stmts.get(i) instanceof While)) continue;
+            Hoister hoister = new Hoister((While)b.stmts.get(i), b);
+            b.stmts.set(i, hoister.rewrite(hoister.loop));
+            b.stmts.addAll(i, hoister.preheader);
+            i += hoister.preheader.size();
+        }
+        return null;
+    }
+
+    /* Rewrites one loop, collecting the assignments to the hoisted temporaries in its preheader. */
+    private class Hoister extends ASTRewriter {
+        final While loop;
+        final Block block;
+        final List<Stmt> preheader = new ArrayList<Stmt>();
+
+        final HashSet<VarDecl> variant = new HashSet<VarDecl>();
+        final boolean hasCall;
+
+        final ExprKey keys = new ExprKey();
+        final HashMap<String, VarDecl> temps = new HashMap<String, VarDecl>();
+
+        Hoister(While loop, Block block) {
+            this.loop  = loop;
+            this.block = block;
+            this.hasCall = Purity.hasCall(loop);
+            loop.accept(new ASTWalker() {
+                @Override
+                public Void visitBlock(Block b) {
+                    variant.addAll(b.varDecls);
+                    return super.visitBlock(b);
+                }
+
+                @Override
+                public Void visitAssign(Assign a) {
+                    if (a.expr1 instanceof VarExpr) variant.add(((VarExpr)a.expr1).vd);
+                    return super.visitAssign(a);
+                }
+            });
+        }
+
+        @Override
+        protected Expr rewrite(Expr e) {
+            if (e != null && isInvariant(e) && isWorthHoisting(e)) return hoist(e);
+            return super.rewrite(e);
+        }
+
+        private VarExpr hoist(Expr e) {
+            String key = keys.of(e);
+            VarDecl temp = temps.get(key);
+            if (temp == null) {
+                temp = new VarDecl(BaseType.INT, "licm$" + tempNum++);
+                temp.num_bytes  = 4;
+                temp.parentFunc = currFunDecl;
+                block.varDecls.add(temp);
+                temps.put(key, temp);
+
+                Assign assign = new Assign(use(temp), e);
+                assign.position = loop.position;
+                preheader.add(assign);
+            }
+            return use(temp);
+        }
+
+        private VarExpr use(VarDecl temp) {
+            VarExpr v = new VarExpr(temp.ident);
+            v.vd   = temp;
+            v.type = temp.type;
+            return v;
+        }
+
+        private boolean isInvariant(Expr e) {
+            if (e instanceof IntLiteral || e instanceof ChrLiteral) return true;
+            if (e instanceof VarExpr) {
+                VarDecl vd = ((VarExpr)e).vd;
+                if (vd == null || !Purity.isScalar(vd) || variant.contains(vd)) return false;
+                return !(Purity.isGlobal(vd) && hasCall);
+            }
+            if (e instanceof TypecastExpr) return isInvariant(((TypecastExpr)e).expr);
+            if (e instanceof BinOp) {
+                BinOp bo = (BinOp)e;
+                if (bo.op == Op.ADD || bo.op == Op.SUB || bo.op == Op.DIV || bo.op == Op.MOD) return false;
+                return isInvariant(bo.expr1) && isInvariant(bo.expr2);
+            }
+            return false;
+        }
+
+        /* Constant expressions are left to the code generator, a lone variable is already a single load. */
+        private boolean isWorthHoisting(Expr e) {
+            while (e instanceof TypecastExpr) e = ((TypecastExpr)e).expr;
+            return e instanceof BinOp && Purity.countVars(e) > 0;
+        }
+    }
+}
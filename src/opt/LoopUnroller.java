@@ -0,0 +1,242 @@
+package opt;
+
+import ast.*;
+import util.Options;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Unrolls counted loops, i.e. loops of the shape
+ *
+ *   while (i < n) { ...; i = i + c; }
+ *
+ * where i is a local that the rest of the body does not assign, and n does not change in the loop.
+ * Any of <, <=, > and >= may be used, with c of the matching sign.
+ *
+ * A loop whose trip count is known, because i was just set to a constant and n is a constant, and
+ * whose unrolled code stays small, is replaced by one copy of its body per iteration, with i replaced
+ * by its value in each. Other loops are unrolled Options.unroll times, followed by the original loop
+ * for the remaining iterations:
+ *
+ *   if (n >= MIN_INT + 3 * c) {
+ *       while (i < n - 3 * c) { ...[i]; ...[i + c]; ...[i + 2 * c]; ...[i + 3 * c]; i = i + 4 * c; }
+ *   }
+ *   while (i < n) { ...; i = i + c; }
+ *
+ * The If keeps n - 3 * c from overflowing, which the source never computes. It is left out when n is a
+ * constant, and a constant n for which it would fail leaves the loop as it is.
+ *
+ * Copies refer to i + k * c rather than stepping i, so ConstantFolder can fold them and the code
+ * generator sees array indices with a constant offset from the same counter.
+ */
+public class LoopUnroller extends ASTWalker {
+
+    private static final int MAX_TRIPS    = 16;  // most iterations fully unrolled
+    private static final int FULL_BUDGET  = 160; // max size of a fully unrolled loop, see CodeSize
+    private static final int PARTIAL_BUDGET = 160; // same, for the unrolled body of a partially unrolled loop
+
+    @Override
+    public Void visitBlock(Block b) {
+        super.visitBlock(b);
+        for (int i = 0; i < b.stmts.size(); i++) {
+            if (!(b.stmts.get(i) instanceof While)) continue;
+            CountedLoop loop = CountedLoop.match((While)b.stmts.get(i));
+            if (loop == null) continue;
+
+            Integer init = i > 0 ? loop.initialValue(b.stmts.get(i - 1)) : null;
+            Integer trips = init == null ? null : loop.trips(init);
+            List<Stmt> unrolled;
+            if (trips != null && trips <= MAX_TRIPS && trips * loop.size <= FULL_BUDGET)
+                unrolled = loop.unrollFully(init, trips);
+            else if (Options.unroll > 1 && loop.isInvariant(loop.bound) && Options.unroll * loop.size <= PARTIAL_BUDGET)
+                unrolled = loop.unroll(Options.unroll);
+            else
+                continue;
+            if (unrolled == null) continue;
+            b.stmts.remove(i);
+            b.stmts.addAll(i, unrolled);
+            i += unrolled.size() - 1;
+        }
+        return null;
+    }
+
+    /* A loop of the shape described above. */
+    private static class CountedLoop {
+        final While   loop;
+        final VarDecl counter;
+        final Op      op;
+        final Expr    bound;
+        final int     step;
+        final Block   body;     // the body without the counter update
+        final int     size;
+
+        private CountedLoop(While loop, VarDecl counter, Expr bound, int step, Block body) {
+            this.loop    = loop;
+            this.counter = counter;
+            this.op      = ((BinOp)loop.expr).op;
+            this.bound   = bound;
+            this.step    = step;
+            this.body    = body;
+            this.size    = CodeSize.of(body) + 1;
+        }
+
+        static CountedLoop match(While w) {
+            if (!(w.expr instanceof BinOp) || !(w.stmt instanceof Block)) return null;
+            BinOp test = (BinOp)w.expr;
+            if (!(test.expr1 instanceof VarExpr)) return null;
+            VarDecl counter = ((VarExpr)test.expr1).vd;
+            if (counter == null || Purity.isGlobal(counter) || counter.type != BaseType.INT) return null;
+
+            Block block = (Block)w.stmt;
+            if (block.stmts.isEmpty()) return null;
+            Integer step = stepOf(counter, block.stmts.get(block.stmts.size() - 1));
+            if (step == null) return null;
+            boolean up = test.op == Op.LT || test.op == Op.LE;
+            boolean down = test.op == Op.GT || test.op == Op.GE;
+            if (!(up && step > 0) && !(down && step < 0)) return null;
+
+            Block body = new Block(block.varDecls, block.stmts.subList(0, block.stmts.size() - 1));
+            if (assigns(body, counter) || Purity.countUses(test.expr2, counter) > 0) return null;
+            return new CountedLoop(w, counter, test.expr2, step, body);
+        }
+
+        /* c for a statement "counter = counter + c" or "counter = counter - c". */
+        private static Integer stepOf(VarDecl counter, Stmt s) {
+            if (!(s instanceof Assign)) return null;
+            Assign a = (Assign)s;
+            if (!(a.expr1 instanceof VarExpr) || ((VarExpr)a.expr1).vd != counter) return null;
+            if (!(a.expr2 instanceof BinOp)) return null;
+            BinOp bo = (BinOp)a.expr2;
+            if (!(bo.expr1 instanceof VarExpr) || ((VarExpr)bo.expr1).vd != counter) return null;
+            if (!(bo.expr2 instanceof IntLiteral)) return null;
+            int c = ((IntLiteral)bo.expr2).val;
+            if (bo.op == Op.ADD) return c;
+            if (bo.op == Op.SUB && c != Integer.MIN_VALUE) return -c;
+            return null;
+        }
+
+        private static boolean assigns(Stmt s, final VarDecl vd) {
+            final boolean[] found = {false};
+            s.accept(new ASTWalker() {
+                @Override
+                public Void visitAssign(Assign a) {
+                    if (a.expr1 instanceof VarExpr && ((VarExpr)a.expr1).vd == vd) found[0] = true;
+                    return super.visitAssign(a);
+                }
+            });
+            return found[0];
+        }
+
+        /* The constant the counter is set to by s, or null. */
+        Integer initialValue(Stmt s) {
+            if (!(s instanceof Assign)) return null;
+            Assign a = (Assign)s;
+            if (!(a.expr1 instanceof VarExpr) || ((VarExpr)a.expr1).vd != counter) return null;
+            if (!(a.expr2 instanceof IntLiteral)) return null;
+            return ((IntLiteral)a.expr2).val;
+        }
+
+        /* The number of iterations starting from init, or null if unknown. */
+        Integer trips(int init) {
+            if (!(bound instanceof IntLiteral)) return null;
+            long n = ((IntLiteral)bound).val;
+            long span;
+            if (op == Op.LT) span = n - init;
+            else if (op == Op.LE) span = n - init + 1;
+            else if (op == Op.GT) span = init - n;
+            else span = init - n + 1;
+            if (span <= 0) return 0;
+            long trips = (span + Math.abs((long)step) - 1) / Math.abs((long)step);
+            // The counter must not wrap around on the way.
+            long last = init + trips * step;
+            if (last > Integer.MAX_VALUE || last < Integer.MIN_VALUE) return null;
+            return (int)trips;
+        }
+
+        /* The bound must not change while the loop runs. */
+        boolean isInvariant(Expr e) {
+            if (e instanceof IntLiteral) return true;
+            if (!(e instanceof VarExpr)) return false;
+            VarDecl vd = ((VarExpr)e).vd;
+            if (vd == null || !Purity.isScalar(vd) || assigns(loop.stmt, vd)) return false;
+            return !(Purity.isGlobal(vd) && Purity.hasCall(loop));
+        }
+
+        List<Stmt> unrollFully(int init, int trips) {
+            List<Stmt> stmts = new ArrayList<Stmt>();
+            for (int k = 0; k < trips; k++)
+                stmts.add(copy(literal(init + k * step)));
+            // Leave the counter as the loop would.
+            Assign last = new Assign(counterExpr(), literal(init + trips * step));
+            last.position = loop.position;
+            stmts.add(last);
+            return stmts;
+        }
+
+        /* The loop unrolled factor times, or null if its step or its bound would overflow. */
+        List<Stmt> unroll(int factor) {
+            if ((long)factor * step != (int)((long)factor * step)) return null;
+            // The unrolled loop runs while the counter of its last copy passes the test.
+            long ahead = (long)(factor - 1) * step;
+            long limit = step > 0 ? Integer.MIN_VALUE + ahead : Integer.MAX_VALUE + ahead;
+            boolean constant = bound instanceof IntLiteral;
+            if (constant && (step > 0 ? ((IntLiteral)bound).val < limit : ((IntLiteral)bound).val > limit)) return null;
+
+            List<Stmt> stmts = new ArrayList<Stmt>();
+            for (int k = 0; k < factor; k++)
+                stmts.add(copy(k == 0 ? counterExpr() : plus(counterExpr(), k * step)));
+            Assign update = new Assign(counterExpr(), plus(counterExpr(), factor * step));
+            update.position = loop.position;
+            stmts.add(update);
+
+            BinOp test = new BinOp(counterExpr(), op, plus(new ASTCloner().copy(bound), (int)-ahead));
+            test.type = BaseType.INT;
+            While unrolled = new While(test, new Block(new ArrayList<VarDecl>(), stmts));
+            unrolled.position = loop.position;
+
+            List<Stmt> loops = new ArrayList<Stmt>();
+            if (constant) {
+                loops.add(unrolled);
+            } else {
+                // n - (factor - 1) * c only where it does not overflow.
+                BinOp inRange = new BinOp(new ASTCloner().copy(bound), step > 0 ? Op.GE : Op.LE, literal((int)limit));
+                inRange.type = BaseType.INT;
+                List<Stmt> guarded = new ArrayList<Stmt>();
+                guarded.add(unrolled);
+                If guard = new If(inRange, new Block(new ArrayList<VarDecl>(), guarded), null);
+                guard.position = loop.position;
+                loops.add(guard);
+            }
+            loops.add(loop);
+            return loops;
+        }
+
+        /* A copy of the body, reading value instead of the counter. */
+        private Stmt copy(Expr value) {
+            HashMap<VarDecl, Expr> substitutions = new HashMap<VarDecl, Expr>();
+            substitutions.put(counter, value);
+            return new ASTCloner(substitutions).copy(body);
+        }
+
+        private VarExpr counterExpr() {
+            VarExpr v = new VarExpr(counter.ident);
+            v.vd   = counter;
+            v.type = counter.type;
+            return v;
+        }
+
+        private static Expr plus(Expr e, int c) {
+            BinOp sum = new BinOp(e, Op.ADD, literal(c));
+            sum.type = BaseType.INT;
+            return sum;
+        }
+
+        private static IntLiteral literal(int val) {
+            IntLiteral il = new IntLiteral(Integer.toString(val));
+            il.type = BaseType.INT;
+            return il;
+        }
+    }
+}
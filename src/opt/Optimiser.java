@@ -0,0 +1,20 @@
+package opt;
+
+import ast.Program;
+import util.Options;
+import util.Profile;
+
+/**
+ * Runs the AST level optimisations enabled by Options.optLevel, in order, before code generation.
+ */
+public class Optimiser {
+
+    public static void optimise(Program program, Profile profile) {
+        if (Options.optLevel == 0) return;
+
+        program.accept(new Inliner(profile));
+        program.accept(new LoopUnroller());
+        program.accept(new ConstantFolder());
+        program.accept(new LoopInvariantCodeMotion());
+    }
+}
@@ -0,0 +1,85 @@
+package opt;
+
+import ast.*;
+
+import java.util.List;
+
+/**
+ * Questions about what an expression reads and whether evaluating it has side effects.
+ *
+ * MiniC has no address-of operator, so locals and globals can only be changed by assigning
+ * to them by name: a store through a pointer can only reach the heap, and a call can only
+ * change globals and the heap.
+ */
+public class Purity {
+
+    /* A global VarDecl does not belong to any function. */
+    public static boolean isGlobal(VarDecl vd) {
+        return vd.parentFunc == null;
+    }
+
+    /* A scalar lives in a single word: int, char or pointer. */
+    public static boolean isScalar(VarDecl vd) {
+        return vd.type instanceof BaseType || vd.type instanceof PointerType;
+    }
+
+    /* Literals and local scalars can be evaluated any number of times, in any order. */
+    public static boolean isCheap(Expr e) {
+        if (e instanceof IntLiteral || e instanceof ChrLiteral) return true;
+        if (e instanceof VarExpr) {
+            VarDecl vd = ((VarExpr)e).vd;
+            return vd != null && !isGlobal(vd) && isScalar(vd);
+        }
+        return false;
+    }
+
+    public static boolean hasCall(ASTNode n) {
+        final boolean[] found = {false};
+        n.accept(new ASTWalker() {
+            @Override
+            public Void visitFunCallExpr(FunCallExpr fce) {
+                found[0] = true;
+                return null;
+            }
+        });
+        return found[0];
+    }
+
+    /* True if the only variables read by e are the given ones. */
+    public static boolean usesOnly(Expr e, final List<VarDecl> allowed) {
+        final boolean[] ok = {true};
+        e.accept(new ASTWalker() {
+            @Override
+            public Void visitVarExpr(VarExpr v) {
+                if (!allowed.contains(v.vd)) ok[0] = false;
+                return null;
+            }
+        });
+        return ok[0];
+    }
+
+    /* Number of variable reads in n. */
+    public static int countVars(ASTNode n) {
+        final int[] vars = {0};
+        n.accept(new ASTWalker() {
+            @Override
+            public Void visitVarExpr(VarExpr v) {
+                vars[0]++;
+                return null;
+            }
+        });
+        return vars[0];
+    }
+
+    public static int countUses(ASTNode n, final VarDecl vd) {
+        final int[] uses = {0};
+        n.accept(new ASTWalker() {
+            @Override
+            public Void visitVarExpr(VarExpr v) {
+                if (v.vd == vd) uses[0]++;
+                return null;
+            }
+        });
+        return uses[0];
+    }
+}
@@ -0,0 +1,235 @@
+package parser;
+
+import ast.*;
+import lexer.Scanner;
+import lexer.Tokeniser;
+import opt.ASTCloner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The headers programs include, each parsed once per JVM, e.g. across the compilations of Batch or Daemon,
+ * and kept by the SHA-256 of its contents, so a header edited since is parsed again.
+ *
+ * A header holds declarations like a program, and its declarations come before those of the file including it,
+ * those of its own includes first, each header being included once. An include names a file relative to the
+ * directory of the file including it. Files that do not exist are ignored, as are those named minic-stdlib.h:
+ * like the C headers programs include to build with gcc, it implements in C the functions the compiler provides.
+ */
+public class Headers {
+
+    private static final String RUNTIME = "minic-stdlib.h";
+    private static final int    CACHED  = 256;      // headers kept, least recently used dropped first
+
+    /* A header as parsed, shared by the programs including it, which each get a copy of its declarations. */
+    static class Header {
+        final File         file;
+        final String       hash;        // of its contents
+        final Program      program;     // its own declarations, without those of its includes
+        final List<String> includes;
+        final int          errors;      // lexing and parsing errors, reported when it was parsed
+
+        Header(File file, String hash, Program program, List<String> includes, int errors) {
+            this.file     = file;
+            this.hash     = hash;
+            this.program  = program;
+            this.includes = includes;
+            this.errors   = errors;
+        }
+    }
+
+    private static final LinkedHashMap<String, Header> parsed = new LinkedHashMap<String, Header>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Header> eldest) {
+            return size() > CACHED;
+        }
+    };
+
+    /* The headers source includes, directly or not, in the order their declarations come in. */
+    static List<Header> resolve(File source, List<String> includes) {
+        List<Header> headers = new ArrayList<Header>();
+        Set<File> included = new HashSet<File>();
+        included.add(canonical(source));
+        resolve(source.getAbsoluteFile().getParentFile(), includes, included, headers);
+        return headers;
+    }
+
+    private static void resolve(File dir, List<String> includes, Set<File> included, List<Header> headers) {
+        for (String name: includes) {
+            File file = locate(dir, name);
+            if (file == null || !included.add(file)) continue;
+            Header header = load(file, name);
+            if (header == null) continue;
+            resolve(file.getParentFile(), header.includes, included, headers);
+            headers.add(header);
+        }
+    }
+
+    /*
+     * The hashes of the headers source includes, directly or not, found without parsing anything, so the result
+     * of compiling source can be looked up before compiling it, see util.CompileCache.
+     */
+    public static String fingerprint(File source, byte[] contents) {
+        StringBuilder hashes = new StringBuilder();
+        Set<File> included = new HashSet<File>();
+        included.add(canonical(source));
+        fingerprint(source.getAbsoluteFile().getParentFile(), includesOf(contents), included, hashes);
+        return hashes.toString();
+    }
+
+    private static void fingerprint(File dir, List<String> includes, Set<File> included, StringBuilder hashes) {
+        for (String name: includes) {
+            File file = locate(dir, name);
+            if (file == null || !included.add(file)) continue;
+            byte[] contents;
+            try {
+                contents = Files.readAllBytes(file.toPath());
+            } catch (IOException e) {
+                continue;
+            }
+            fingerprint(file.getParentFile(), includesOf(contents), included, hashes);
+            hashes.append(file).append(' ').append(sha256(contents)).append('\n');
+        }
+    }
+
+    /* The file an include names, or null if there is none to include. */
+    private static File locate(File dir, String name) {
+        File file = new File(name);
+        if (!file.isAbsolute()) file = new File(dir, name);
+        if (!file.isFile() || file.getName().equals(RUNTIME)) return null;
+        return canonical(file);
+    }
+
+    private static File canonical(File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (IOException e) {
+            return file.getAbsoluteFile();
+        }
+    }
+
+    /*
+     * The header in file, which include name stands for, parsed unless it is unchanged since it last was,
+     * or null if it cannot be read.
+     */
+    private static Header load(File file, String name) {
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            return null;
+        }
+        String hash = sha256(contents);
+        synchronized (parsed) {
+            Header header = parsed.get(hash);
+            if (header != null && header.file.equals(file)) return header;
+        }
+
+        Tokeniser tokeniser = new Tokeniser(new Scanner(file, contents));
+        tokeniser.includedAs(name);
+        Parser parser = new Parser(tokeniser);
+        Program program = parser.parseDeclarations();
+        int errors = tokeniser.getErrorCount() + parser.getErrorCount();
+        Header header = new Header(file, hash, program, parser.getIncludes(), errors);
+        // Errors are reported each time the header is included.
+        if (errors == 0) synchronized (parsed) { parsed.put(hash, header); }
+        return header;
+    }
+
+    /*
+     * A copy of the declarations of a header, which the compilation including it may annotate and rewrite.
+     * Its names are interned again, as the header may have been parsed by another compilation, see util.Identifiers.
+     */
+    static Program copy(Program header) {
+        ASTCloner cloner = new ASTCloner() {
+            @Override
+            protected Type type(Type t) {
+                return copyType(t);
+            }
+        };
+        List<StructTypeDecl> stds = new ArrayList<StructTypeDecl>();
+        for (StructTypeDecl std: header.structTypeDecls) {
+            ArrayList<VarDecl> fields = new ArrayList<VarDecl>();
+            for (VarDecl vd: std.varDecls) fields.add((VarDecl)vd.accept(cloner));
+            stds.add(new StructTypeDecl((StructType)copyType(std.structType), fields));
+        }
+        List<VarDecl> vds = new ArrayList<VarDecl>();
+        for (VarDecl vd: header.varDecls) vds.add((VarDecl)vd.accept(cloner));
+        List<FunDecl> fds = new ArrayList<FunDecl>();
+        for (FunDecl fd: header.funDecls) {
+            List<VarDecl> params = new ArrayList<VarDecl>();
+            for (VarDecl vd: fd.params) params.add((VarDecl)vd.accept(cloner));
+            fds.add(new FunDecl(copyType(fd.type), fd.name, params, (Block)fd.block.accept(cloner)));
+        }
+        return new Program(stds, vds, fds);
+    }
+
+    /* A copy of t naming its struct anew, BaseTypes being shared. */
+    private static Type copyType(Type t) {
+        if (t instanceof StructType)
+            return new StructType(((StructType)t).identifier);
+        if (t instanceof PointerType)
+            return new PointerType(copyType(((PointerType)t).type));
+        if (t instanceof ArrayType) {
+            ArrayType at = (ArrayType)t;
+            return new ArrayType(copyType(at.arrayType), Integer.toString(at.size));
+        }
+        return t;
+    }
+
+    /* The names in the #include "name" directives source starts with, past white space and comments. */
+    private static List<String> includesOf(byte[] source) {
+        List<String> includes = new ArrayList<String>();
+        int i = 0;
+        while (i < source.length) {
+            if (Character.isWhitespace(source[i])) {
+                i++;
+            } else if (startsWith(source, i, "//")) {
+                while (i < source.length && source[i] != '\n') i++;
+            } else if (startsWith(source, i, "/*")) {
+                i += 2;
+                while (i < source.length && !startsWith(source, i, "*/")) i++;
+                i += 2;
+            } else if (startsWith(source, i, "#include")) {
+                i += "#include".length();
+                while (i < source.length && Character.isWhitespace(source[i])) i++;
+                if (i == source.length || source[i] != '"') break;
+                int start = ++i;
+                while (i < source.length && source[i] != '"' && source[i] != '\n') i++;
+                includes.add(new String(source, start, i - start));
+                i++;
+            } else {
+                break;
+            }
+        }
+        return includes;
+    }
+
+    private static boolean startsWith(byte[] source, int i, String prefix) {
+        if (i + prefix.length() > source.length) return false;
+        for (int j = 0; j < prefix.length(); j++)
+            if (source[i + j] != prefix.charAt(j)) return false;
+        return true;
+    }
+
+    private static String sha256(byte[] contents) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b: MessageDigest.getInstance("SHA-256").digest(contents))
+                hex.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every Java platform supports SHA-256", e);
+        }
+    }
+}
@@ -2,13 +2,15 @@ package parser;
 
 import ast.*;
 import lexer.Token;
+import lexer.TokenStream;
 import lexer.Tokeniser;
 import lexer.Token.TokenClass;
+import util.Options;
+import util.Position;
 
-import java.util.LinkedList;
+import java.io.File;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Queue;
 
 
 /**
@@ -16,26 +18,70 @@ import java.util.Queue;
  */
 public class Parser {
 
-    private Token token;
+    private Token token;             // the current token, made only when needed if read from tokens, see token()
+    private TokenClass tokenClass;   // its class
 
     // use for backtracking (useful for distinguishing decls from procs when parsing a program for instance)
-    private Queue<Token> buffer = new LinkedList<>();
+    // A circular buffer of the tokens looked ahead, from buffer[head], as lookAhead(i) never goes beyond LOOKAHEAD.
+    private static final int LOOKAHEAD = 4;
+    private final Token[] buffer = new Token[LOOKAHEAD];
+    private int head = 0;
+    private int buffered = 0;
 
     private final Tokeniser tokeniser;
 
+    // The tokens, all lexed before parsing, or null if they are read from the tokeniser, see Options.tokens.
+    private final TokenStream tokens;
+    private int current = 0;    // in tokens, of the current token
+    private int next = 0;       // in tokens, of the token after the current one
+
 
 
     public Parser(Tokeniser tokeniser) {
         this.tokeniser = tokeniser;
+        this.tokens = Options.tokens.equals("stream") ? new TokenStream(tokeniser) : null;
     }
 
     public Program parse() {
+        return withHeaders(parseDeclarations());
+    }
+
+    /* Parses the program without the declarations of the headers it includes, see getIncludes(). */
+    Program parseDeclarations() {
         // get the first token
         nextToken();
 
         return parseProgram();
     }
 
+    // The names of the headers included, as written.
+    private final List<String> includes = new ArrayList<String>();
+
+    List<String> getIncludes() {
+        return includes;
+    }
+
+    /* Prepends the declarations of the headers program includes, each once, to its own, see Headers. */
+    private Program withHeaders(Program program) {
+        File source = tokeniser.getSource();
+        if (includes.isEmpty() || source == null) return program;
+
+        List<StructTypeDecl> stds = new ArrayList<StructTypeDecl>();
+        List<VarDecl> vds = new ArrayList<VarDecl>();
+        List<FunDecl> fds = new ArrayList<FunDecl>();
+        for (Headers.Header header: Headers.resolve(source, includes)) {
+            error += header.errors;
+            Program declarations = Headers.copy(header.program);
+            stds.addAll(declarations.structTypeDecls);
+            vds.addAll(declarations.varDecls);
+            fds.addAll(declarations.funDecls);
+        }
+        stds.addAll(program.structTypeDecls);
+        vds.addAll(program.varDecls);
+        fds.addAll(program.funDecls);
+        return new Program(stds, vds, fds);
+    }
+
     public int getErrorCount() {
         return error;
     }
@@ -45,11 +91,12 @@ public class Parser {
 
     private void error(TokenClass... expected) {
 
-        if (lastErrorToken == token) {
+        if (lastErrorToken == token()) {
             // skip this error, same token causing trouble
             return;
         }
 
+        tokeniser.beforeError();
         StringBuilder sb = new StringBuilder();
         String sep = "";
         for (TokenClass e : expected) {
@@ -64,52 +111,78 @@ public class Parser {
     }
 
     /*
-     * Look ahead the i^th element from the stream of token.
+     * Look ahead the class of the i^th element from the stream of token.
      * i should be >= 1
      */
-    private Token lookAhead(int i) {
-        // ensures the buffer has the element we want to look ahead
-        while (buffer.size() < i)
-            buffer.add(tokeniser.nextToken());
-        assert buffer.size() >= i;
+    private TokenClass lookAhead(int i) {
+        if (tokens != null) return tokens.tokenClass(Math.min(next + i - 1, tokens.size() - 1));
 
-        int cnt=1;
-        for (Token t : buffer) {
-            if (cnt == i)
-                return t;
-            cnt++;
-        }
+        assert i <= LOOKAHEAD;
+        // ensures the buffer has the element we want to look ahead
+        while (buffered < i)
+            buffer[(head + buffered++) & (LOOKAHEAD - 1)] = tokeniser.nextToken();
 
-        assert false; // should never reach this
-        return null;
+        return buffer[(head + i - 1) & (LOOKAHEAD - 1)].tokenClass;
     }
 
 
     /*
-     * Consumes the next token from the tokeniser or the buffer if not empty.
+     * Consumes the next token from the stream if there is one, else from the buffer if not empty or the tokeniser.
      */
     private void nextToken() {
-        if (!buffer.isEmpty())
-            token = buffer.remove();
+        if (tokens != null) {
+            // Past the end, EOF again, as the tokeniser would.
+            current = next;
+            if (next < tokens.size() - 1) next++;
+            token = null;
+            tokenClass = tokens.tokenClass(current);
+            return;
+        }
+        else if (buffered > 0) {
+            token = buffer[head];
+            buffer[head] = null;
+            head = (head + 1) & (LOOKAHEAD - 1);
+            buffered--;
+        }
         else
             token = tokeniser.nextToken();
+        tokenClass = token.tokenClass;
+    }
+
+    /* The current token, made from tokens the first time it is needed. */
+    private Token token() {
+        if (token == null) token = tokens.token(current);
+        return token;
+    }
+
+    /* The position of the current token. */
+    private Position position() {
+        if (token == null) return new Position(tokens.line(current), tokens.column(current));
+        return token.position;
     }
 
     /*
      * If the current token is equals to the expected one, then skip it, otherwise report an error.
-     * Returns the expected token or null if an error occurred.
+     * Returns the data of the expected token, or of the current one if an error occurred.
      */
-    private Token expect(TokenClass... expected) {
+    private String expect(TokenClass... expected) {
         for (TokenClass e : expected) {
-            if (e == token.tokenClass) {
-                Token cur = token;
+            if (e == tokenClass) {
+                String data = token == null ? tokens.data(current) : token.data;
                 nextToken();
-                return cur;
+                return data;
             }
         }
 
         error(expected);
-        return token;
+        return token().data;
+    }
+
+    /* Expects INT, CHAR or VOID, returning the type it stands for. */
+    private Type expectBaseType() {
+        Type output = tokenToType(tokenClass);
+        expect(TokenClass.INT, TokenClass.CHAR, TokenClass.VOID);
+        return output;
     }
 
     /*
@@ -118,7 +191,7 @@ public class Parser {
     private boolean accept(TokenClass... expected) {
         boolean result = false;
         for (TokenClass e : expected)
-            result |= (e == token.tokenClass);
+            result |= (e == tokenClass);
         return result;
     }
 
@@ -137,7 +210,9 @@ public class Parser {
     private void parseIncludes() {
         if (accept(TokenClass.INCLUDE)) {
             expect(TokenClass.INCLUDE);
-            expect(TokenClass.STRING_LITERAL);
+            boolean named = accept(TokenClass.STRING_LITERAL);
+            String name = expect(TokenClass.STRING_LITERAL);
+            if (named) includes.add(name);
             parseIncludes();
         }
     }
@@ -148,7 +223,7 @@ public class Parser {
         ArrayList<StructTypeDecl> output = new ArrayList<StructTypeDecl>();
 
         // Check for struct being used as a vardecl.
-        if (lookAhead(2).tokenClass != TokenClass.LBRA) return output;
+        if (lookAhead(2) != TokenClass.LBRA) return output;
 
         // Parse the struct.
         if (accept(TokenClass.STRUCT)) {
@@ -157,7 +232,7 @@ public class Parser {
             ArrayList<VarDecl> varDecls = new ArrayList<VarDecl>();
 
             expect(TokenClass.STRUCT);
-            String structName = expect(TokenClass.IDENTIFIER).data;
+            String structName = expect(TokenClass.IDENTIFIER);
             expect(TokenClass.LBRA);
 
             // Add all VarDecl's to our varDecl List.
@@ -183,7 +258,7 @@ public class Parser {
         Type type;
         String varName;
         type = expectType();
-        varName = expect(TokenClass.IDENTIFIER).data;
+        varName = expect(TokenClass.IDENTIFIER);
         if (accept(TokenClass.LSBR)) {
             expect(TokenClass.LSBR);
             expect(TokenClass.INT_LITERAL);
@@ -201,9 +276,9 @@ public class Parser {
         List<VarDecl> output = new ArrayList<VarDecl>();
 
         // Check if this will be an invalid vardecl.
-        TokenClass twoAhead   = lookAhead(2).tokenClass;
-        TokenClass threeAhead = lookAhead(3).tokenClass;
-        TokenClass fourAhead =  lookAhead(4).tokenClass;
+        TokenClass twoAhead   = lookAhead(2);
+        TokenClass threeAhead = lookAhead(3);
+        TokenClass fourAhead =  lookAhead(4);
         if (twoAhead != TokenClass.SC) {
             if (twoAhead != TokenClass.LSBR) {
                 if (threeAhead != TokenClass.SC) {
@@ -224,7 +299,7 @@ public class Parser {
                 Type varType;
 
                 expect(TokenClass.STRUCT);
-                structType = expect(TokenClass.IDENTIFIER).data;
+                structType = expect(TokenClass.IDENTIFIER);
                 varType = new StructType(structType);
 
                 // Check if this is a pointer.
@@ -232,12 +307,12 @@ public class Parser {
                     expect(TokenClass.ASTERIX);
                     varType = new PointerType(varType);
                 }
-                varName = expect(TokenClass.IDENTIFIER).data;
+                varName = expect(TokenClass.IDENTIFIER);
 
                 // Check for array declaration.
                 if (accept(TokenClass.LSBR)) {
                     expect(TokenClass.LSBR);
-                    String arraySize = expect(TokenClass.INT_LITERAL).data;
+                    String arraySize = expect(TokenClass.INT_LITERAL);
                     expect(TokenClass.RSBR);
                     varType = new ArrayType(varType, arraySize);
                 }
@@ -249,7 +324,7 @@ public class Parser {
                 String varName;
                 Type varType;
 
-                varType = tokenToType(expect(TokenClass.INT, TokenClass.CHAR, TokenClass.VOID).tokenClass);
+                varType = expectBaseType();
 
                 if (accept(TokenClass.ASTERIX)) {
                     expect(TokenClass.ASTERIX);
@@ -260,12 +335,12 @@ public class Parser {
                     expect(TokenClass.ASTERIX);
                     varType = new PointerType(varType);
                 }
-                varName = expect(TokenClass.IDENTIFIER).data;
+                varName = expect(TokenClass.IDENTIFIER);
 
                 // Check for array declaration.
                 if (accept(TokenClass.LSBR)) {
                     expect(TokenClass.LSBR);
-                    String arraySize = expect(TokenClass.INT_LITERAL).data;
+                    String arraySize = expect(TokenClass.INT_LITERAL);
                     expect(TokenClass.RSBR);
                     varType = new ArrayType(varType, arraySize);
                 }
@@ -286,9 +361,9 @@ public class Parser {
         List<FunDecl> output = new ArrayList<FunDecl>();
 
         // Check if this will be an invalid fundecl.
-        TokenClass twoAhead   = lookAhead(2).tokenClass;
-        TokenClass threeAhead = lookAhead(3).tokenClass;
-        TokenClass fourAhead  = lookAhead(4).tokenClass;
+        TokenClass twoAhead   = lookAhead(2);
+        TokenClass threeAhead = lookAhead(3);
+        TokenClass fourAhead  = lookAhead(4);
         if (twoAhead != TokenClass.LPAR) {
             if (threeAhead != TokenClass.LPAR) {
                 if (fourAhead != TokenClass.LPAR) {
@@ -308,13 +383,13 @@ public class Parser {
             if (accept(TokenClass.STRUCT)) {
                 String structType;
                 expect(TokenClass.STRUCT);
-                structType = expect(TokenClass.IDENTIFIER).data;
+                structType = expect(TokenClass.IDENTIFIER);
                 funType = new StructType(structType);
                 if (accept(TokenClass.ASTERIX)) {
                     expect(TokenClass.ASTERIX);
                     funType = new PointerType(funType);
                 }
-                funName = expect(TokenClass.IDENTIFIER).data;
+                funName = expect(TokenClass.IDENTIFIER);
                 expect(TokenClass.LPAR);
                 funArgs = expectParams();
                 expect(TokenClass.RPAR);
@@ -329,12 +404,12 @@ public class Parser {
                 output.add(new FunDecl(funType, funName, funArgs, funBlock));
             }
             else if (accept(TokenClass.INT, TokenClass.CHAR, TokenClass.VOID)) {
-                funType = tokenToType(expect(TokenClass.INT, TokenClass.CHAR, TokenClass.VOID).tokenClass);
+                funType = expectBaseType();
                 if (accept(TokenClass.ASTERIX)) {
                     expect(TokenClass.ASTERIX);
                     funType = new PointerType(funType);
                 }
-                funName = expect(TokenClass.IDENTIFIER).data;
+                funName = expect(TokenClass.IDENTIFIER);
                 expect(TokenClass.LPAR);
                 funArgs = expectParams();
                 expect(TokenClass.RPAR);
@@ -361,7 +436,7 @@ public class Parser {
     private Type expectType() {
         Type output = null;
         if (accept(TokenClass.INT, TokenClass.CHAR, TokenClass.VOID)) {
-            output = tokenToType(expect(TokenClass.INT, TokenClass.CHAR, TokenClass.VOID).tokenClass);
+            output = expectBaseType();
             if (accept(TokenClass.ASTERIX)) {
                 expect(TokenClass.ASTERIX);
                 return new PointerType(output);
@@ -370,7 +445,7 @@ public class Parser {
         }
         else if (accept(TokenClass.STRUCT)) {
             expect(TokenClass.STRUCT);
-            output = new StructType(expect(TokenClass.IDENTIFIER).data);
+            output = new StructType(expect(TokenClass.IDENTIFIER));
             if (accept(TokenClass.ASTERIX)) {
                 expect(TokenClass.ASTERIX);
                 return new PointerType(output);
@@ -378,7 +453,7 @@ public class Parser {
             return output;
         }
         else {
-            error(token.tokenClass);
+            error(tokenClass);
             return null;
         }
     }
@@ -388,9 +463,9 @@ public class Parser {
     private List<VarDecl> expectParams() {
         ArrayList<VarDecl> output = new ArrayList<VarDecl>();
         // Check for vardecl && fundecl.
-        TokenClass twoAhead   = lookAhead(2).tokenClass;
-        TokenClass threeAhead = lookAhead(3).tokenClass;
-        TokenClass fourAhead = lookAhead(4).tokenClass;
+        TokenClass twoAhead   = lookAhead(2);
+        TokenClass threeAhead = lookAhead(3);
+        TokenClass fourAhead = lookAhead(4);
         if (twoAhead != TokenClass.RPAR) {
             if (twoAhead != TokenClass.COMMA) {
                 if (threeAhead != TokenClass.RPAR) {
@@ -407,23 +482,23 @@ public class Parser {
         if (accept(TokenClass.STRUCT, TokenClass.INT, TokenClass.CHAR, TokenClass.VOID)) {
             if (accept(TokenClass.STRUCT)) {
                 expect(TokenClass.STRUCT);
-                Type paramType = new StructType(expect(TokenClass.IDENTIFIER).data);
+                Type paramType = new StructType(expect(TokenClass.IDENTIFIER));
 
                 if (accept(TokenClass.ASTERIX)) {
                     expect(TokenClass.ASTERIX);
                     paramType = new PointerType(paramType);
                 }
-                String paramName = expect(TokenClass.IDENTIFIER).data;
+                String paramName = expect(TokenClass.IDENTIFIER);
 
                 output.add(new VarDecl(paramType, paramName));
             }
             else if (accept(TokenClass.INT, TokenClass.CHAR, TokenClass.VOID)) {
-                Type paramType = tokenToType(expect(TokenClass.INT, TokenClass.CHAR, TokenClass.VOID).tokenClass);
+                Type paramType = expectBaseType();
                 if (accept(TokenClass.ASTERIX)) {
                     expect(TokenClass.ASTERIX);
                     paramType = new PointerType(paramType);
                 }
-                String paramName = expect(TokenClass.IDENTIFIER).data;
+                String paramName = expect(TokenClass.IDENTIFIER);
 
                 output.add(new VarDecl(paramType, paramName));                
             }
@@ -431,7 +506,7 @@ public class Parser {
             while (accept(TokenClass.COMMA)) {
                 expect(TokenClass.COMMA);
                 Type paramType = expectType();             
-                String paramName = expect(TokenClass.IDENTIFIER).data;
+                String paramName = expect(TokenClass.IDENTIFIER);
                 
                 output.add(new VarDecl(paramType, paramName));                
             }
@@ -447,6 +522,7 @@ public class Parser {
     //         -> exp ASSIGN exp SC
     //         -> exp SC
     private Stmt expectStmt() {
+        Position position = position();
         // Block
         if (accept(TokenClass.LBRA)) {
             expect(TokenClass.LBRA);
@@ -454,7 +530,7 @@ public class Parser {
             List<Stmt> blockStmts = parseStmts();
             expect(TokenClass.RBRA);
 
-            return new Block(blockVars, blockStmts);
+            return positioned(new Block(blockVars, blockStmts), position);
         }
         // While
         else if (accept(TokenClass.WHILE)) {
@@ -464,7 +540,7 @@ public class Parser {
             expect(TokenClass.RPAR);
             Stmt stmt = expectStmt();
 
-            return new While(expr, stmt);
+            return positioned(new While(expr, stmt), position);
         }
         // If
         else if (accept(TokenClass.IF)) {
@@ -476,10 +552,10 @@ public class Parser {
             if (accept(TokenClass.ELSE)) {
                 expect(TokenClass.ELSE);
                 Stmt stmt2 = expectStmt();
-                return new If(expr, stmt1, stmt2);
+                return positioned(new If(expr, stmt1, stmt2), position);
             }
             else {
-                return new If(expr, stmt1, null);
+                return positioned(new If(expr, stmt1, null), position);
             }
         }
         // Return
@@ -491,7 +567,7 @@ public class Parser {
                 expr = expectExp();
             }
             expect(TokenClass.SC);
-            return new Return(expr);
+            return positioned(new Return(expr), position);
         }
         // Assign || ExprStmt
         else if (accept(TokenClass.LPAR, TokenClass.CHAR_LITERAL, TokenClass.STRING_LITERAL, TokenClass.IDENTIFIER, TokenClass.INT_LITERAL, TokenClass.MINUS, TokenClass.ASTERIX, TokenClass.SIZEOF)) {
@@ -501,16 +577,17 @@ public class Parser {
                 expect(TokenClass.ASSIGN);
                 Expr expr2 = expectExp();
                 expect(TokenClass.SC);
-                return new Assign(expr1, expr2);
+                return positioned(new Assign(expr1, expr2), position);
             }
             // ExprStmt
             else {
                 expect(TokenClass.SC);
-                return new ExprStmt(expr1);
+                return positioned(new ExprStmt(expr1), position);
             } 
         }
         // Error; no Stmt.
         else {
+            tokeniser.beforeError();
             System.out.println("Error: Expected a stmt");
             error(TokenClass.LBRA, TokenClass.WHILE, TokenClass.IF, TokenClass.RETURN, TokenClass.LPAR, TokenClass.CHAR_LITERAL, TokenClass.STRING_LITERAL, TokenClass.MINUS, TokenClass.IDENTIFIER, TokenClass.ASTERIX, TokenClass.SIZEOF);
             return null;
@@ -526,6 +603,7 @@ public class Parser {
     //         -> exp SC
     private List<Stmt> parseStmts() {
         ArrayList<Stmt> output = new ArrayList<Stmt>();
+        Position position = position();
         // Block
         if (accept(TokenClass.LBRA)) {
             ArrayList<VarDecl> blockVars = new ArrayList<VarDecl>();
@@ -536,7 +614,7 @@ public class Parser {
             blockStmts.addAll(parseStmts());
             expect(TokenClass.RBRA);
             
-            output.add(new Block(blockVars, blockStmts));
+            output.add(positioned(new Block(blockVars, blockStmts), position));
             output.addAll(parseStmts());
         }
         // While
@@ -550,7 +628,7 @@ public class Parser {
             expect(TokenClass.RPAR);
             stmt = expectStmt();
 
-            output.add(new While(expr, stmt));
+            output.add(positioned(new While(expr, stmt), position));
             output.addAll(parseStmts());
         }
         // If
@@ -563,10 +641,10 @@ public class Parser {
             if (accept(TokenClass.ELSE)) {
                 expect(TokenClass.ELSE);
                 Stmt stmt2 = expectStmt();
-                output.add(new If(expr, stmt1, stmt2));
+                output.add(positioned(new If(expr, stmt1, stmt2), position));
             }
             else {
-                output.add(new If(expr, stmt1, null));
+                output.add(positioned(new If(expr, stmt1, null), position));
             }
             output.addAll(parseStmts());
         }
@@ -581,7 +659,7 @@ public class Parser {
             }
             expect(TokenClass.SC);
 
-            output.add(new Return(expr));
+            output.add(positioned(new Return(expr), position));
             output.addAll(parseStmts());
         }
         // Assign || ExprStmt
@@ -592,14 +670,14 @@ public class Parser {
                 expect(TokenClass.ASSIGN);
                 Expr expr2 = expectExp();
                 expect(TokenClass.SC);
-                Assign assign = new Assign(expr1, expr2);
+                Assign assign = positioned(new Assign(expr1, expr2), position);
                 output.add(assign);
                 output.addAll(parseStmts());
             }
             // ExprStmt
             else {
                 expect(TokenClass.SC);
-                output.add(new ExprStmt(expr1));
+                output.add(positioned(new ExprStmt(expr1), position));
                 output.addAll(parseStmts());
             }
         }
@@ -745,7 +823,7 @@ public class Parser {
             return new BinOp(new IntLiteral("0"), Op.SUB, exp);
         }
         else if (accept(TokenClass.LPAR)) {
-            TokenClass oneAhead = lookAhead(1).tokenClass;
+            TokenClass oneAhead = lookAhead(1);
             if (oneAhead == TokenClass.INT || oneAhead == TokenClass.CHAR || oneAhead == TokenClass.VOID || oneAhead == TokenClass.STRUCT) {
                 expect(TokenClass.LPAR);
                 Type type = expectType();
@@ -792,7 +870,8 @@ public class Parser {
     // pIdent  -> LPAR [ exp (COMMA exp)* ] RPAR
     private Expr expectExp8() {
         if (accept(TokenClass.IDENTIFIER)) {
-            String name = expect(TokenClass.IDENTIFIER).data;
+            Position position = position();
+            String name = expect(TokenClass.IDENTIFIER);
             if (accept(TokenClass.LPAR)) {
                 expect(TokenClass.LPAR);
                 if (accept(TokenClass.SIZEOF, TokenClass.INT_LITERAL, TokenClass.CHAR_LITERAL, TokenClass.STRING_LITERAL, TokenClass.IDENTIFIER, TokenClass.INT_LITERAL, TokenClass.CHAR_LITERAL, TokenClass.ASTERIX, TokenClass.STRING_LITERAL, TokenClass.LPAR)) {
@@ -803,14 +882,14 @@ public class Parser {
                         args.add(expectExp());
                     }
                     expect(TokenClass.RPAR);
-                    return new FunCallExpr(name, args);
+                    return positioned(new FunCallExpr(name, args), position);
                 }
                 else {
                     expect(TokenClass.RPAR);
                     if (accept(TokenClass.DOT, TokenClass.LSBR)) {
-                        return expectPostExp(new FunCallExpr(name, new ArrayList<Expr>()));
+                        return expectPostExp(positioned(new FunCallExpr(name, new ArrayList<Expr>()), position));
                     }
-                    return new FunCallExpr(name, new ArrayList<Expr>());
+                    return positioned(new FunCallExpr(name, new ArrayList<Expr>()), position);
                 }
             }
             else {
@@ -821,21 +900,21 @@ public class Parser {
             }
         }
         else if (accept(TokenClass.INT_LITERAL)) {
-            String val = expect(TokenClass.INT_LITERAL).data;
+            String val = expect(TokenClass.INT_LITERAL);
             if (accept(TokenClass.DOT, TokenClass.LSBR)) {
                 return expectPostExp(new IntLiteral(val));
             }
             return new IntLiteral(val);
         }
         else if (accept(TokenClass.CHAR_LITERAL)) {
-            String val = expect(TokenClass.CHAR_LITERAL).data;
+            String val = expect(TokenClass.CHAR_LITERAL);
             if (accept(TokenClass.DOT, TokenClass.LSBR)) {
                 return expectPostExp(new ChrLiteral(val));
             }
             return new ChrLiteral(val);
         }
         else if (accept(TokenClass.STRING_LITERAL)) {
-            String val = expect(TokenClass.STRING_LITERAL).data;
+            String val = expect(TokenClass.STRING_LITERAL);
             if (accept(TokenClass.DOT, TokenClass.LSBR)) {
                 return expectPostExp(new StrLiteral(val));
             }
@@ -873,7 +952,7 @@ public class Parser {
         }
         else {
             expect(TokenClass.DOT);
-            String field = expect(TokenClass.IDENTIFIER).data;
+            String field = expect(TokenClass.IDENTIFIER);
             return new FieldAccessExpr(expr, field);
         }
     }
@@ -882,6 +961,18 @@ public class Parser {
                        HELPERS
     \*****************************************/
 
+    /* Records the source position of a Stmt, used to key profile counts */
+    private <S extends Stmt> S positioned(S stmt, Position position) {
+        stmt.position = position;
+        return stmt;
+    }
+
+    /* Records the source position of a call site, used to key profile counts */
+    private FunCallExpr positioned(FunCallExpr fce, Position position) {
+        fce.position = position;
+        return fce;
+    }
+
     /* Converts a TokenClass enum to a BaseType enum */
     private Type tokenToType(TokenClass input) {
         Type output;
@@ -1,5 +1,8 @@
 package sem;
 
+import ast.*;
+import java.util.ArrayList;
+
 
 /**
  * 
@@ -22,4 +25,38 @@ public abstract class BaseSemanticVisitor<T> implements SemanticVisitor<T> {
 		System.err.println("semantic error: " + message);
 		errors++;
 	}
+
+	/* Declares the functions of the runtime library, which programs call without declaring them. */
+	protected static void declareBuiltins(Scope scope) {
+		// --- read_i ---
+		scope.put(new Procedure(new FunDecl(BaseType.INT, "read_i", new ArrayList<VarDecl>(), null), "read_i"));
+		
+		// --- read_c ---
+		scope.put(new Procedure(new FunDecl(BaseType.CHAR, "read_c", new ArrayList<VarDecl>(), null), "read_c"));
+		
+		// --- mcmalloc ---
+		ArrayList<VarDecl> mcmallocParams = new ArrayList<VarDecl>();
+		mcmallocParams.add(new VarDecl(BaseType.INT, "size"));
+		scope.put(new Procedure(new FunDecl(new PointerType(BaseType.VOID), "mcmalloc", mcmallocParams, null), "mcmalloc"));
+		
+		// --- mcfree ---
+		ArrayList<VarDecl> mcfreeParams = new ArrayList<VarDecl>();
+		mcfreeParams.add(new VarDecl(new PointerType(BaseType.VOID), "ptr"));
+		scope.put(new Procedure(new FunDecl(BaseType.VOID, "mcfree", mcfreeParams, null), "mcfree"));
+		
+		// --- print_c ---
+		ArrayList<VarDecl> print_cParams = new ArrayList<VarDecl>();
+		print_cParams.add(new VarDecl(BaseType.CHAR, "c"));
+		scope.put(new Procedure(new FunDecl(BaseType.VOID, "print_c", print_cParams, null), "print_c"));
+		
+		// --- print_i ---
+		ArrayList<VarDecl> print_iParams = new ArrayList<VarDecl>();
+		print_iParams.add(new VarDecl(BaseType.INT, "i"));
+		scope.put(new Procedure(new FunDecl(BaseType.VOID, "print_i", print_iParams, null), "print_i"));
+		
+		// --- print_s ---
+		ArrayList<VarDecl> print_sParams = new ArrayList<VarDecl>();
+		print_sParams.add(new VarDecl(new PointerType(BaseType.CHAR), "s"));
+		scope.put(new Procedure(new FunDecl(BaseType.VOID, "print_s", print_sParams, null), "print_s"));
+	}
 }
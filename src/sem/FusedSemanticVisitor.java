@@ -0,0 +1,206 @@
+package sem;
+
+import ast.*;
+import util.IntMap;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Name analysis, type checking and variable sizes in a single traversal of the program, sharing one Scope.
+ * Each node gets the checks NameAnalysisVisitor would make, then those of TypeCheckVisitor, and the sizes
+ * VarDeclSizeVisitor would compute are computed once the traversal is over.
+ *
+ * The errors reported are those of running the three visitors one after the other, which stops at the first
+ * one finding errors: both kinds are held back until the end, and type errors dropped if there were name
+ * errors, and sizes are only computed if there were no errors at all.
+ * Where the type checker does not look at a subtree, e.g. an array index, its names are still resolved.
+ */
+public class FusedSemanticVisitor extends TypeCheckVisitor {
+
+	// The errors found, held back until the end of the traversal.
+	final List<String> nameErrors = new ArrayList<String>();
+	final List<String> typeErrors = new ArrayList<String>();
+	private int quiet = 0;			// > 0 while the names being resolved were already resolved
+
+	// The variables to size, and the functions declaring them, in the order VarDeclSizeVisitor sizes them.
+	final List<VarDecl> declared = new ArrayList<VarDecl>();
+	final List<FunDecl> owners   = new ArrayList<FunDecl>();
+	private boolean inStruct = false;
+
+	// Resolves the names of subtrees the type checker does not visit.
+	private final NameAnalysisVisitor names = new NameAnalysisVisitor() {
+		@Override
+		protected void error(String message) {
+			nameError(message);
+		}
+	};
+
+	@Override
+	public Type visitProgram(Program p) {
+		declareGlobals(p);
+		for (FunDecl funDecl: p.funDecls) funDecl.accept(this);
+
+		report(nameErrors, typeErrors);
+		if (getErrorCount() == 0) computeSizes(p, declared, owners);
+		return null;
+	}
+
+	/* Declares the built-ins, then the structs and globals of p, in a new Scope for the Program. */
+	void declareGlobals(Program p) {
+		structTypes = new IntMap<StructTypeDecl>();
+		currScope = new Scope();
+		names.currScope = currScope;
+		declareBuiltins(currScope);
+
+		for (StructTypeDecl structTypeDecl: p.structTypeDecls) structTypeDecl.accept(this);
+		for (VarDecl varDecl: p.varDecls) varDecl.accept(this);
+	}
+
+	/* Declares fd in the Program's scope without analysing its body, or reports to body why it cannot. */
+	boolean declareFunction(FunDecl fd, FusedSemanticVisitor body) {
+		if (currScope.lookupCurrent(fd.symbol) != null) {
+			body.nameError("Attemped to declare a function with identifier that is already in use: " + fd.name);
+			return false;
+		}
+		currScope.put(new Procedure(fd, fd.name));
+		return true;
+	}
+
+	/* A visitor for the body of one of the functions of the Program whose globals this one declared. */
+	FusedSemanticVisitor forFunction() {
+		FusedSemanticVisitor body = new FusedSemanticVisitor();
+		body.structTypes = structTypes;
+		return body;
+	}
+
+	/* Analyses the body of fd, already declared, in scope, which is left as it was found. */
+	void visitBody(FunDecl fd, Scope scope) {
+		currScope = scope;
+		names.currScope = scope;
+		currFunDecl = fd;
+		currScope.enter();
+		for (VarDecl varDecl: fd.params) varDecl.accept(this);
+		createBlockScope = false;
+		fd.block.accept(this);
+		currScope.exit();
+	}
+
+	/* Reports the name errors found, or the type errors if there were none, as running the visitors in turn would. */
+	void report(List<String> nameErrors, List<String> typeErrors) {
+		for (String message: nameErrors.isEmpty() ? typeErrors : nameErrors) super.error(message);
+	}
+
+	void computeSizes(Program p, List<VarDecl> declared, List<FunDecl> owners) {
+		VarDeclSizeVisitor sizes = new VarDeclSizeVisitor();
+		for (StructTypeDecl std: p.structTypeDecls) std.accept(sizes);
+		for (int i = 0; i < declared.size(); i++) {
+			sizes.currFun = owners.get(i);
+			declared.get(i).num_bytes = declared.get(i).accept(sizes);
+		}
+	}
+
+	private void nameError(String message) {
+		if (quiet == 0) nameErrors.add(message);
+	}
+
+	@Override
+	protected void error(String message) {
+		typeErrors.add(message);
+	}
+
+	@Override
+	public Type visitStructTypeDecl(StructTypeDecl std) {
+		int structTypeSymbol = std.structType.symbol;
+		if (structTypes.containsKey(structTypeSymbol) || currScope.lookupCurrent(structTypeSymbol) != null) {
+			nameError("Attempted to declare a Struct with an identifier that is already in use: " + std.structType.identifier);
+			return null;
+		}
+		inStruct = true;
+		super.visitStructTypeDecl(std);
+		inStruct = false;
+		return null;
+	}
+
+	@Override
+	public Type visitVarDecl(VarDecl vd) {
+		// Only the Program's scope is at depth 0.
+		vd.storage = currScope.depth() == 0 ? VarDecl.Storage.GLOBAL : VarDecl.Storage.FRAME;
+
+		if (currScope.lookupCurrent(vd.symbol) != null) {
+			nameError("Attempted to declare a Variable with an identifier already in use: " + vd.ident);
+			return null;
+		}
+		if (vd.type instanceof StructType && !structTypes.containsKey(((StructType)vd.type).symbol)) {
+			nameError("Attempted to declare a Variable of type [" + ((StructType)vd.type).identifier + "] which does not exist.");
+			return null;
+		}
+		if (!(vd.type instanceof BaseType) && !(vd.type instanceof StructType) && !(vd.type instanceof ArrayType) && !(vd.type instanceof PointerType)) {
+			nameError("FATAL ERROR: VarDecl has unknown Type");
+			return null;
+		}
+
+		super.visitVarDecl(vd);
+		// The type checker rejects void variables without declaring them, name analysis declares them.
+		if (vd.type == BaseType.VOID) currScope.put(new Variable(vd, vd.ident));
+
+		if (!inStruct) {
+			declared.add(vd);
+			owners.add(currFunDecl);
+		}
+		return null;
+	}
+
+	@Override
+	public Type visitFunDecl(FunDecl fd) {
+		if (!declareFunction(fd, this)) return null;
+		visitBody(fd, currScope);
+		return null;
+	}
+
+	@Override
+	public Type visitVarExpr(VarExpr v) {
+		Symbol varDecl = currScope.lookup(v.symbol);
+		if (varDecl == null) nameError("Reference to variable that does not exist: " + v.ident);
+		else if (!(varDecl instanceof Variable)) nameError("Variable referenced that does not exist: " + v.ident);
+		else v.vd = (VarDecl)varDecl.decl;
+
+		if (!(varDecl instanceof Variable) || v.vd.type != BaseType.VOID) return super.visitVarExpr(v);
+		// The type checker did not declare the void variable, and sees what it shadows instead.
+		for (Symbol sym: currScope.lookupAll(v.symbol)) {
+			if (sym instanceof Variable && ((VarDecl)sym.decl).type == BaseType.VOID) continue;
+			if (sym instanceof Variable) return ((VarDecl)sym.decl).type.accept(this);
+			break;
+		}
+		error("Incorrect usage of Function identifier: " + v.ident);
+		return null;
+	}
+
+	@Override
+	public Type visitFunCallExpr(FunCallExpr fce) {
+		Symbol funDecl = currScope.lookup(fce.symbol);
+		if (!(funDecl instanceof Procedure)) {
+			nameError("Reference to function that does not exist: " + fce.ident);
+			return null;
+		}
+		fce.fd = (FunDecl)funDecl.decl;
+		// The type checker stops at the first bad argument, resolve the names of all of them first.
+		for (Expr expr: fce.exprs) expr.accept(names);
+		quiet++;
+		Type type = super.visitFunCallExpr(fce);
+		quiet--;
+		return type;
+	}
+
+	@Override
+	public Type visitArrayAccessExpr(ArrayAccessExpr aae) {
+		Type type = super.visitArrayAccessExpr(aae);
+		aae.index.accept(names);
+		return type;
+	}
+
+	@Override
+	public Type visitTypecastExpr(TypecastExpr te) {
+		te.expr.accept(names);
+		return super.visitTypecastExpr(te);
+	}
+}
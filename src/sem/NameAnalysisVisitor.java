@@ -1,47 +1,22 @@
 package sem;
 
 import ast.*;
-import java.util.HashMap;
-import java.util.ArrayList;
+import util.IntMap;
 
 public class NameAnalysisVisitor extends BaseSemanticVisitor<Void> {
 
 	Scope currScope;
-	HashMap<String, StructTypeDecl> structTypes;
+	IntMap<StructTypeDecl> structTypes;		// by interned identifier
 	boolean createBlockScope = true;
 
 	@Override
 	public Void visitProgram(Program p) {
 		// Initialise the Scope of the Program, and the declared StructTypes
-		structTypes = new HashMap<String, StructTypeDecl>();
+		structTypes = new IntMap<StructTypeDecl>();
 		currScope = new Scope();
 		
 		// Set Up Imported Functions.
-		// --- read_i ---
-		currScope.put(new Procedure(new FunDecl(BaseType.INT, "read_i", new ArrayList<VarDecl>(), null), "read_i"));
-		
-		// --- read_c ---
-		currScope.put(new Procedure(new FunDecl(BaseType.CHAR, "read_c", new ArrayList<VarDecl>(), null), "read_c"));
-		
-		// --- mcmalloc ---
-		ArrayList<VarDecl> mcmallocParams = new ArrayList<VarDecl>();
-		mcmallocParams.add(new VarDecl(BaseType.INT, "size"));
-		currScope.put(new Procedure(new FunDecl(new PointerType(BaseType.VOID), "mcmalloc", mcmallocParams, null), "mcmalloc"));
-		
-		// --- print_c ---
-		ArrayList<VarDecl> print_cParams = new ArrayList<VarDecl>();
-		print_cParams.add(new VarDecl(BaseType.CHAR, "c"));
-		currScope.put(new Procedure(new FunDecl(BaseType.VOID, "print_c", print_cParams, null), "print_c"));
-		
-		// --- print_i ---
-		ArrayList<VarDecl> print_iParams = new ArrayList<VarDecl>();
-		print_iParams.add(new VarDecl(BaseType.INT, "i"));
-		currScope.put(new Procedure(new FunDecl(BaseType.VOID, "print_i", print_iParams, null), "print_i"));
-		
-		// --- print_s ---
-		ArrayList<VarDecl> print_sParams = new ArrayList<VarDecl>();
-		print_sParams.add(new VarDecl(new PointerType(BaseType.CHAR), "s"));
-		currScope.put(new Procedure(new FunDecl(BaseType.VOID, "print_s", print_sParams, null), "print_s"));
+		declareBuiltins(currScope);
 
 		// Check Names of all StructTypeDecls
 		for (StructTypeDecl structTypeDecl : p.structTypeDecls) structTypeDecl.accept(this);
@@ -57,30 +32,33 @@ public class NameAnalysisVisitor extends BaseSemanticVisitor<Void> {
 	@Override
 	public Void visitStructTypeDecl(StructTypeDecl std) {
 		String structTypeIdent = std.structType.identifier;
+		int    structTypeSymbol = std.structType.symbol;
 		// Check if we already have a StructIdent under this ident.
-		if (structTypes.containsKey(structTypeIdent)) {
+		if (structTypes.containsKey(structTypeSymbol)) {
 			error("Attempted to declare a Struct with an identifier that is already in use: " + structTypeIdent);
 			return null;
 		}
 		// Check if this identifier is already in current scope.
-		if (currScope.lookupCurrent(structTypeIdent) != null) {
+		if (currScope.lookupCurrent(structTypeSymbol) != null) {
 			error("Attempted to declare a Struct with an identifier that is already in use: " + structTypeIdent);
 			return null;
 		}
 		// Else we can create a StructType with ident: structTypeIdent
-		structTypes.put(structTypeIdent, std);
+		structTypes.put(structTypeSymbol, std);
 
 		// Create a new Scope for the StructTypeDecl, and check its VarDecls names dont clash.
-		currScope = new Scope(currScope);
+		currScope.enter();
 		for (VarDecl varDecl: std.varDecls) { varDecl.accept(this); }
-		currScope = currScope.outer;
+		currScope.exit();
 		return null;
 	}
 
 	@Override
 	public Void visitVarDecl(VarDecl vd) {
+		// Only the Program's scope is at depth 0.
+		vd.storage = currScope.depth() == 0 ? VarDecl.Storage.GLOBAL : VarDecl.Storage.FRAME;
 		// If this identifier is free.
-		if (currScope.lookupCurrent(vd.ident) == null) {
+		if (currScope.lookupCurrent(vd.symbol) == null) {
 			// Add standard INT/CHAR/VOID Variable to Scope.
 			if (vd.type instanceof BaseType) {
 				currScope.put(new Variable(vd, vd.ident));
@@ -91,8 +69,8 @@ public class NameAnalysisVisitor extends BaseSemanticVisitor<Void> {
 				StructType vdStructType = (StructType)vd.type;
 
 				// Check if a Struct of this type exists.
-				if (structTypes.containsKey(vdStructType.identifier)) {
-					currScope.put(new Struct(vd, vd.ident, structTypes.get(vdStructType.identifier)));
+				if (structTypes.containsKey(vdStructType.symbol)) {
+					currScope.put(new Struct(vd, vd.ident, structTypes.get(vdStructType.symbol)));
 					return null;
 				}
 				// Error if not.
@@ -130,11 +108,11 @@ public class NameAnalysisVisitor extends BaseSemanticVisitor<Void> {
 	@Override
 	public Void visitFunDecl(FunDecl fd) {
 		// If this identifier is free.
-		if (currScope.lookupCurrent(fd.name) == null) {
+		if (currScope.lookupCurrent(fd.symbol) == null) {
 			// Add this identifier to our current scope.
 			currScope.put(new Procedure(fd, fd.name));
 			
-			currScope = new Scope(currScope);
+			currScope.enter();
 		
 			// Check Params.
 			for (VarDecl varDecl: fd.params) varDecl.accept(this);	
@@ -142,7 +120,7 @@ public class NameAnalysisVisitor extends BaseSemanticVisitor<Void> {
 			createBlockScope = false;	// Mark that visitBlock is not to create a new Scope.
 			fd.block.accept(this);
 
-			currScope = currScope.outer;
+			currScope.exit();
 		}
 		else {
 			error("Attemped to declare a function with identifier that is already in use: " + fd.name);
@@ -153,11 +131,11 @@ public class NameAnalysisVisitor extends BaseSemanticVisitor<Void> {
 	@Override
 	public Void visitBlock(Block b) {
 		if (createBlockScope) {
-			currScope = new Scope(currScope);
+			currScope.enter();
 			// Go through all VarDecl's and Stmt's checking their scope.
 			for (VarDecl varDecl: b.varDecls) varDecl.accept(this);
 			for (Stmt stmt: b.stmts) stmt.accept(this);
-			currScope = currScope.outer;
+			currScope.exit();
 		}
 		else {
 			createBlockScope = true; // Reset blockScope informer.
@@ -205,7 +183,7 @@ public class NameAnalysisVisitor extends BaseSemanticVisitor<Void> {
 	@Override
 	public Void visitVarExpr(VarExpr v) {
 		// Get the Symbol associated with this identifier.
-		Symbol varDecl = currScope.lookup(v.ident);
+		Symbol varDecl = currScope.lookup(v.symbol);
 
 		// If no Symbol exists, program is referencing something undefined.
 		if (varDecl == null) error("Reference to variable that does not exist: " + v.ident);
@@ -287,7 +265,7 @@ public class NameAnalysisVisitor extends BaseSemanticVisitor<Void> {
     @Override
     public Void visitFunCallExpr(FunCallExpr fce) {
 		// Get the Symbol associated with this identifier.
-		Symbol funDecl = currScope.lookup(fce.ident);
+		Symbol funDecl = currScope.lookup(fce.symbol);
 
 		// If no Symbol exists, or the Symbol is not a Procedure.
 		if (funDecl == null || !(funDecl instanceof Procedure)) {
@@ -0,0 +1,108 @@
+package sem;
+
+import ast.*;
+import util.Identifiers;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The analysis of FusedSemanticVisitor, with the bodies of the functions analysed in parallel by fork/join.
+ *
+ * The structs, globals and function signatures are declared first, in order, so the Program's scope is
+ * complete before any body is analysed, and is then only read. Each body is analysed by a visitor of its own,
+ * on a Scope over the Program's which only sees what was declared up to its function, as in order.
+ * The errors of each function are held back, and all of them reported in the order of the program once every
+ * body has been analysed, so the output does not depend on which body finished first.
+ */
+public class ParallelSemanticAnalyzer {
+
+	// A task with at most this many functions analyses them itself rather than splitting them.
+	private static final int FUNCTIONS_PER_TASK = 16;
+
+	public int analyze(Program p) {
+		FusedSemanticVisitor program = new FusedSemanticVisitor();
+		program.declareGlobals(p);
+
+		int n = p.funDecls.size();
+		FusedSemanticVisitor[] bodies = new FusedSemanticVisitor[n];
+		int[] visible = new int[n];		// declarations of the Program's scope each body sees, -1 if it is not analysed
+		for (int i = 0; i < n; i++) {
+			bodies[i] = program.forFunction();
+			visible[i] = program.declareFunction(p.funDecls.get(i), bodies[i]) ? program.currScope.declarations() : -1;
+		}
+		new Bodies(p.funDecls, bodies, visible, 0, n, new Scopes(program.currScope), Identifiers.current()).invoke();
+
+		List<String> nameErrors = new ArrayList<String>(program.nameErrors);
+		List<String> typeErrors = new ArrayList<String>(program.typeErrors);
+		List<VarDecl> declared  = new ArrayList<VarDecl>(program.declared);
+		List<FunDecl> owners    = new ArrayList<FunDecl>(program.owners);
+		for (FusedSemanticVisitor body: bodies) {
+			nameErrors.addAll(body.nameErrors);
+			typeErrors.addAll(body.typeErrors);
+			declared.addAll(body.declared);
+			owners.addAll(body.owners);
+		}
+		program.report(nameErrors, typeErrors);
+		if (program.getErrorCount() == 0) program.computeSizes(p, declared, owners);
+		return program.getErrorCount();
+	}
+
+	/* A Scope over the Program's for each thread, reused by the bodies it analyses as each leaves it empty. */
+	private static class Scopes extends ThreadLocal<Scope> {
+		private final Scope program;
+
+		Scopes(Scope program) {
+			this.program = program;
+		}
+
+		@Override
+		protected Scope initialValue() {
+			return new Scope(program);
+		}
+	}
+
+	/* Analyses the bodies of the functions from to to - 1, splitting them in halves. */
+	private static class Bodies extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<FunDecl> funDecls;
+		private final FusedSemanticVisitor[] bodies;
+		private final int[] visible;
+		private final int from, to;
+		private final Scopes scopes;
+		private final Identifiers identifiers;	// of the compilation, for the threads analysing the bodies
+
+		Bodies(List<FunDecl> funDecls, FusedSemanticVisitor[] bodies, int[] visible, int from, int to, Scopes scopes,
+			   Identifiers identifiers) {
+			this.funDecls = funDecls;
+			this.bodies = bodies;
+			this.visible = visible;
+			this.from = from;
+			this.to = to;
+			this.scopes = scopes;
+			this.identifiers = identifiers;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > FUNCTIONS_PER_TASK) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Bodies(funDecls, bodies, visible, from, mid, scopes, identifiers),
+						  new Bodies(funDecls, bodies, visible, mid, to, scopes, identifiers));
+				return;
+			}
+			Identifiers previous = Identifiers.use(identifiers);
+			try {
+				Scope scope = scopes.get();
+				for (int i = from; i < to; i++) {
+					if (visible[i] < 0) continue;
+					scope.see(visible[i]);
+					bodies[i].visitBody(funDecls.get(i), scope);
+				}
+			} finally {
+				Identifiers.use(previous);
+			}
+		}
+	}
+}
@@ -1,38 +1,142 @@
 package sem;
 
-import java.util.Map;
-import java.util.HashMap;
+import util.Identifiers;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * The nested scopes of a program, innermost last, as one table indexed by interned name
+ * (see util.Identifiers) holding the innermost Symbol of each name.
+ *
+ * Declaring a name logs the Symbol it shadows, and leaving a scope restores the Symbols logged
+ * since it was entered, so lookups take constant time whatever the depth, and entering and
+ * leaving scopes allocates nothing once the arrays have grown to the program's needs.
+ *
+ * A Scope for the body of a function can sit on top of the Program's scope, which it shares with the other
+ * functions' without changing it, and of which it only sees the declarations made before its function's.
+ */
 public class Scope {
-	public Scope outer;
-	private Map<String, Symbol> symbolTable;
-	
-	public Scope(Scope outer) { 
-		this.outer = outer; 
-		symbolTable = new HashMap<String, Symbol>();
-	}
-	
-	public Scope() { this(null); }
-	
-	public Symbol lookup(String name) {
-		Scope currScope 	= this;
-		Symbol currSymbol 	= null;
-		while(currScope != null) {
-			currSymbol = currScope.lookupCurrent(name);
-			if (currSymbol != null) return currSymbol;
-			currScope = currScope.outer;
+	private Symbol[] symbols = new Symbol[Math.max(64, Identifiers.current().count())];	// innermost Symbol by name
+	private int[]    depths  = new int[symbols.length];							// depth of that Symbol
+	private int[]    orders  = new int[symbols.length];							// declarations before that Symbol, at depth 0
+	private int      declarations = 0;											// at depth 0
+
+	private final Scope program;	// the Program's scope under this one, or null
+	private int visible = 0;		// how many of its declarations this one sees
+
+	// Undo log: the name declared, and the Symbol and depth it replaced.
+	private int[]    logNames   = new int[64];
+	private Symbol[] logSymbols = new Symbol[64];
+	private int[]    logDepths  = new int[64];
+	private int      logSize    = 0;
+
+	private int[] marks = new int[16];		// logSize when each scope was entered
+	private int   depth = 0;				// 0 for the Program's scope
+
+	public Scope() {
+		this(null);
+	}
+
+	/* A Scope on top of program, which must not change while this one is in use. */
+	public Scope(Scope program) {
+		this.program = program;
+	}
+
+	/* Makes the first visible declarations of the Program's scope visible; only between functions. */
+	public void see(int visible) {
+		this.visible = visible;
+	}
+
+	/* The number of declarations made so far in the outermost scope, e.g. the Program's. */
+	public int declarations() {
+		return declarations;
+	}
+
+	public void enter() {
+		if (depth + 1 == marks.length) marks = grow(marks);
+		marks[++depth] = logSize;
+	}
+
+	public void exit() {
+		int mark = marks[depth--];
+		while (logSize > mark) {
+			logSize--;
+			int name = logNames[logSize];
+			symbols[name] = logSymbols[logSize];
+			depths[name]  = logDepths[logSize];
+			logSymbols[logSize] = null;
 		}
-		return null;
 	}
-	
-	public Symbol lookupCurrent(String name) {
-		if (symbolTable.containsKey(name)) {
-			return symbolTable.get(name);
+
+	public int depth() {
+		return depth;
+	}
+
+	public Symbol lookup(int symbol) {
+		Symbol sym = symbol < symbols.length ? symbols[symbol] : null;
+		return sym != null || program == null ? sym : program.lookupBefore(symbol, visible);
+	}
+
+	private Symbol lookupBefore(int symbol, int declarations) {
+		Symbol sym = lookup(symbol);
+		return sym != null && orders[symbol] < declarations ? sym : null;
+	}
+
+	/* The Symbols of a name in the scopes entered, innermost first. */
+	public List<Symbol> lookupAll(int symbol) {
+		List<Symbol> all = new ArrayList<Symbol>();
+		Symbol sym = symbol < symbols.length ? symbols[symbol] : null;
+		if (sym != null) all.add(sym);
+		// The log holds what each declaration of the name shadowed.
+		for (int i = logSize - 1; sym != null && i >= 0; i--) {
+			if (logNames[i] != symbol) continue;
+			if (logSymbols[i] == null) break;
+			all.add(logSymbols[i]);
 		}
-		return null;
+		if (program != null && (sym = program.lookupBefore(symbol, visible)) != null) all.add(sym);
+		return all;
 	}
-	
+
+	/* Declarations in the Program's scope under this one are not in the current scope. */
+	public Symbol lookupCurrent(int symbol) {
+		Symbol sym = symbol < symbols.length ? symbols[symbol] : null;
+		return sym != null && depths[symbol] == depth ? sym : null;
+	}
+
 	public void put(Symbol sym) {
-		symbolTable.put(sym.name, sym);
+		int name = sym.symbol;
+		if (name >= symbols.length) {
+			int size = Math.max(2 * symbols.length, name + 1);
+			Symbol[] grownSymbols = new Symbol[size];
+			System.arraycopy(symbols, 0, grownSymbols, 0, symbols.length);
+			symbols = grownSymbols;
+			int[] grownDepths = new int[size];
+			System.arraycopy(depths, 0, grownDepths, 0, depths.length);
+			depths = grownDepths;
+			int[] grownOrders = new int[size];
+			System.arraycopy(orders, 0, grownOrders, 0, orders.length);
+			orders = grownOrders;
+		}
+		if (logSize == logNames.length) {
+			logNames  = grow(logNames);
+			logDepths = grow(logDepths);
+			Symbol[] grown = new Symbol[2 * logSymbols.length];
+			System.arraycopy(logSymbols, 0, grown, 0, logSize);
+			logSymbols = grown;
+		}
+		logNames[logSize]   = name;
+		logSymbols[logSize] = symbols[name];
+		logDepths[logSize]  = depths[name];
+		logSize++;
+		symbols[name] = sym;
+		depths[name]  = depth;
+		// Nothing shadows what is declared at depth 0, nothing needs restoring.
+		if (depth == 0) orders[name] = declarations++;
+	}
+
+	private static int[] grow(int[] array) {
+		int[] grown = new int[2 * array.length];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
 	}
 }
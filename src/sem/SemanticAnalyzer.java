@@ -1,10 +1,20 @@
 package sem;
 
 import java.util.ArrayList;
+import util.Options;
 
 public class SemanticAnalyzer {
 	
 	public int analyze(ast.Program prog) {
+		// A single traversal doing the work of all three visitors below.
+		if (Options.semantic.equals("fused")) {
+			FusedSemanticVisitor fused = new FusedSemanticVisitor();
+			prog.accept(fused);
+			return fused.getErrorCount();
+		}
+		// The same, with the bodies of the functions analysed in parallel.
+		if (Options.semantic.equals("parallel")) return new ParallelSemanticAnalyzer().analyze(prog);
+
 		// List of visitors
 		ArrayList<SemanticVisitor> visitors = new ArrayList<SemanticVisitor>() {{
 			add(new NameAnalysisVisitor());
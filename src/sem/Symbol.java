@@ -1,14 +1,17 @@
 package sem;
 
 import ast.*;
+import util.Identifiers;
 
 public abstract class Symbol {
 	
 	ASTNode decl;
 	public String name;
+	public final int symbol;	// name interned, see Identifiers
 	
 	public Symbol(ASTNode decl, String name) {
 		this.name = name;
 		this.decl = decl;
+		this.symbol = Identifiers.current().intern(name);
 	}
 }
@@ -1,13 +1,12 @@
 package sem;
 
 import ast.*;
-import java.util.HashMap;
-import java.util.ArrayList;
+import util.IntMap;
 
 public class TypeCheckVisitor extends BaseSemanticVisitor<Type> {
 
 	Scope currScope = null;
-	HashMap<String, StructTypeDecl> structTypes;
+	IntMap<StructTypeDecl> structTypes;		// by interned identifier
 	boolean createBlockScope = true;
 	FunDecl currFunDecl = null;
 	
@@ -18,35 +17,11 @@ public class TypeCheckVisitor extends BaseSemanticVisitor<Type> {
 	@Override
 	public Type visitProgram(Program p) {
 		// Initialise the Scope of the Program, and the declared StructTypes
-		structTypes = new HashMap<String, StructTypeDecl>();
+		structTypes = new IntMap<StructTypeDecl>();
 		currScope = new Scope();
 
 		// Set Up Imported Functions.
-		// --- read_i ---
-		currScope.put(new Procedure(new FunDecl(BaseType.INT, "read_i", new ArrayList<VarDecl>(), null), "read_i"));
-		
-		// --- read_c ---
-		currScope.put(new Procedure(new FunDecl(BaseType.CHAR, "read_c", new ArrayList<VarDecl>(), null), "read_c"));
-		
-		// --- mcmalloc ---
-		ArrayList<VarDecl> mcmallocParams = new ArrayList<VarDecl>();
-		mcmallocParams.add(new VarDecl(BaseType.INT, "size"));
-		currScope.put(new Procedure(new FunDecl(new PointerType(BaseType.VOID), "mcmalloc", mcmallocParams, null), "mcmalloc"));
-		
-		// --- print_c ---
-		ArrayList<VarDecl> print_cParams = new ArrayList<VarDecl>();
-		print_cParams.add(new VarDecl(BaseType.CHAR, "c"));
-		currScope.put(new Procedure(new FunDecl(BaseType.VOID, "print_c", print_cParams, null), "print_c"));
-		
-		// --- print_i ---
-		ArrayList<VarDecl> print_iParams = new ArrayList<VarDecl>();
-		print_iParams.add(new VarDecl(BaseType.INT, "i"));
-		currScope.put(new Procedure(new FunDecl(BaseType.VOID, "print_i", print_iParams, null), "print_i"));
-		
-		// --- print_s ---
-		ArrayList<VarDecl> print_sParams = new ArrayList<VarDecl>();
-		print_sParams.add(new VarDecl(new PointerType(BaseType.CHAR), "s"));
-		currScope.put(new Procedure(new FunDecl(BaseType.VOID, "print_s", print_sParams, null), "print_s"));
+		declareBuiltins(currScope);
 
 		// Check Names of all StructTypeDecls
 		for (StructTypeDecl structTypeDecl : p.structTypeDecls) structTypeDecl.accept(this);
@@ -61,15 +36,15 @@ public class TypeCheckVisitor extends BaseSemanticVisitor<Type> {
 
 	@Override
 	public Type visitStructTypeDecl(StructTypeDecl std) {
-		String structTypeIdent = std.structType.identifier;
+		int structTypeSymbol = std.structType.symbol;
 
-		// We can create a StructType with ident: structTypeIdent
-		structTypes.put(structTypeIdent, std);
+		// We can create a StructType with ident: structTypeSymbol
+		structTypes.put(structTypeSymbol, std);
 		
 		// Create a new Scope for the StructTypeDecl, and check its VarDecls names dont clash.
-		currScope = new Scope(currScope);
+		currScope.enter();
 		for (VarDecl varDecl: std.varDecls) { varDecl.accept(this); }
-		currScope = currScope.outer;
+		currScope.exit();
 		
 		return null;
 	}
@@ -89,7 +64,7 @@ public class TypeCheckVisitor extends BaseSemanticVisitor<Type> {
 		if (vd.type instanceof StructType) {
 			StructType vdStructType = (StructType)vd.type;
 			// Add this Struct Variable to the current Scope.
-			currScope.put(new Struct(vd, vd.ident, structTypes.get(vdStructType.identifier)));
+			currScope.put(new Struct(vd, vd.ident, structTypes.get(vdStructType.symbol)));
 			
 			return null;
 		}
@@ -123,7 +98,7 @@ public class TypeCheckVisitor extends BaseSemanticVisitor<Type> {
 		// Add this identifier to our current scope.
 		currScope.put(new Procedure(fd, fd.name));
 		
-		currScope = new Scope(currScope);
+		currScope.enter();
 	
 		// Check Params.
 		for (VarDecl varDecl: fd.params) varDecl.accept(this);	
@@ -131,18 +106,18 @@ public class TypeCheckVisitor extends BaseSemanticVisitor<Type> {
 		createBlockScope = false;	// Mark that visitBlock is not to create a new Scope.
 		fd.block.accept(this);
 
-		currScope = currScope.outer;
+		currScope.exit();
 		return null;
 	}
 
 	@Override
 	public Type visitBlock(Block b) {
 		if (createBlockScope) {
-			currScope = new Scope(currScope);
+			currScope.enter();
 			// Go through all VarDecl's and Stmt's checking their scope.
 			for (VarDecl varDecl: b.varDecls) varDecl.accept(this);
 			for (Stmt stmt: b.stmts) stmt.accept(this);
-			currScope = currScope.outer;
+			currScope.exit();
 		}
 		else {
 			createBlockScope = true;
@@ -218,7 +193,7 @@ public class TypeCheckVisitor extends BaseSemanticVisitor<Type> {
 
 	@Override
 	public Type visitVarExpr(VarExpr v) {
-		Symbol varSym = currScope.lookup(v.ident);
+		Symbol varSym = currScope.lookup(v.symbol);
 
 		
 		// Check that this is a Variable and not a Procedure.
@@ -387,14 +362,14 @@ public class TypeCheckVisitor extends BaseSemanticVisitor<Type> {
 
 		if (exprType instanceof StructType) {
 			StructType structType = (StructType)exprType;
-			StructTypeDecl std = structTypes.get(structType.identifier);
+			StructTypeDecl std = structTypes.get(structType.symbol);
 			if (std == null) {
 				error("StructTypeDEcl does not exist for identifier: [" + structType.identifier + "]");
 				return null;
 			}
 			else {
 				for (VarDecl field: std.varDecls) {
-					if (field.ident.equals(fae.field)) {
+					if (field.symbol == fae.fieldSymbol) {
 						return field.type.accept(this);
 					}
 				}
@@ -411,7 +386,7 @@ public class TypeCheckVisitor extends BaseSemanticVisitor<Type> {
 
 	@Override
     public Type visitFunCallExpr(FunCallExpr fce) {
-		Symbol funSym = currScope.lookup(fce.ident);
+		Symbol funSym = currScope.lookup(fce.symbol);
 
 		// Check that we are dealing with a Procedure.
 		if (funSym instanceof Procedure) {
@@ -0,0 +1,293 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results of compilations, on local disk, keyed by the SHA-256 of all they depend on: the source and the
+ * headers it includes, the compiler's classes, the pass, the options and the profile. Compiling an unchanged source again only reads
+ * back what the compilation printed and the assembly it generated.
+ *
+ * Each result is a file <key>.entry in the cache directory: a line "<status> <printed> <generated>", the
+ * number of bytes printed and generated, -1 for no output file, followed by those bytes. The file index lists
+ * the entries least recently used first, each as its 32 byte key and its size as an int. It is only rewritten as
+ * entries are added or removed, and by close(), so finding a result reads nothing but its entry. Once the entries
+ * add up to more than the size bound the least recently used ones are removed. Files are written under another
+ * name and renamed, so a compiler sharing the directory never reads half of one.
+ */
+public class CompileCache {
+
+    private static final int KEY_BYTES = 32;
+
+    public static class Result {
+        public final int    status;
+        public final byte[] printed;
+        public final byte[] generated;      // the output file, null if none was written
+
+        public Result(int status, byte[] printed, byte[] generated) {
+            this.status    = status;
+            this.printed   = printed;
+            this.generated = generated;
+        }
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Integer> sizes = new LinkedHashMap<String, Integer>(16, 0.75f, true);  // by key, in use order
+    private long totalBytes = 0;
+    private boolean reordered = false;      // since the index was written
+
+    public CompileCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+        loadIndex();
+    }
+
+    /* The key of compiling source with pass under the current Options, headers identifying the headers it includes. */
+    public static String key(String pass, byte[] source, String headers) {
+        MessageDigest sha = sha256();
+        sha.update(compilerVersion());
+        update(sha, pass + " " + Options.fingerprint() + "\n");
+        if (Options.profile != null) {
+            try {
+                sha.update(Files.readAllBytes(new File(Options.profile).toPath()));
+            } catch (IOException e) {
+                update(sha, "unreadable profile " + Options.profile);
+            }
+        }
+        update(sha, headers + "\n");
+        sha.update(source);
+        return hex(sha.digest());
+    }
+
+    /* The result stored under key, or null. */
+    public synchronized Result get(String key) {
+        if (sizes.get(key) == null) return null;           // which makes it the most recently used
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(entry(key))));
+            try {
+                String[] header = readLine(input).split(" ");
+                byte[] printed = new byte[Integer.parseInt(header[1])];
+                input.readFully(printed);
+                int generatedBytes = Integer.parseInt(header[2]);
+                byte[] generated = null;
+                if (generatedBytes >= 0) {
+                    generated = new byte[generatedBytes];
+                    input.readFully(generated);
+                }
+                reordered = true;
+                return new Result(Integer.parseInt(header[0]), printed, generated);
+            } finally {
+                input.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Removed or damaged by someone else, compile again.
+            remove(key);
+            return null;
+        }
+    }
+
+    public synchronized void put(String key, Result result) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            int generatedBytes = result.generated == null ? -1 : result.generated.length;
+            bytes.write((result.status + " " + result.printed.length + " " + generatedBytes + "\n").getBytes("UTF-8"));
+            bytes.write(result.printed);
+            if (result.generated != null) bytes.write(result.generated);
+            writeAtomically(entry(key), bytes.toByteArray());
+        } catch (IOException e) {
+            // The result is only not cached.
+            return;
+        }
+        Integer old = sizes.put(key, bytes.size());
+        totalBytes += bytes.size() - (old == null ? 0 : old);
+        evict();
+        writeIndex();
+    }
+
+    /* Writes the order the entries were last used in, for the next compiler using the directory. */
+    public synchronized void close() {
+        if (reordered) writeIndex();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Integer>> lru = sizes.entrySet().iterator();
+        while (totalBytes > maxBytes && sizes.size() > 1) {
+            Map.Entry<String, Integer> eldest = lru.next();
+            totalBytes -= eldest.getValue();
+            entry(eldest.getKey()).delete();
+            lru.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Integer size = sizes.remove(key);
+        if (size != null) totalBytes -= size;
+        entry(key).delete();
+        writeIndex();
+    }
+
+    private File entry(String key) {
+        return new File(dir, key + ".entry");
+    }
+
+    private void loadIndex() {
+        File index = new File(dir, "index");
+        if (index.exists()) {
+            try {
+                DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+                try {
+                    byte[] key = new byte[KEY_BYTES];
+                    for (long left = index.length() / (KEY_BYTES + 4); left > 0; left--) {
+                        input.readFully(key);
+                        int size = input.readInt();
+                        String name = hex(key);
+                        if (!entry(name).exists() || sizes.containsKey(name)) continue;
+                        sizes.put(name, size);
+                        totalBytes += size;
+                    }
+                } finally {
+                    input.close();
+                }
+            } catch (IOException e) {
+                // A damaged index only loses the order of the entries, found again below.
+            }
+        }
+        // Entries the index does not list, e.g. added by another compiler, count as least recently used.
+        File[] files = dir.listFiles();
+        List<String> unlisted = new ArrayList<String>();
+        for (File file: files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (!name.endsWith(".entry")) continue;
+            name = name.substring(0, name.length() - ".entry".length());
+            if (!sizes.containsKey(name) && name.length() == 2 * KEY_BYTES) unlisted.add(name);
+        }
+        LinkedHashMap<String, Integer> listed = new LinkedHashMap<String, Integer>(sizes);
+        sizes.clear();
+        for (String name: unlisted) {
+            int size = (int)entry(name).length();
+            sizes.put(name, size);
+            totalBytes += size;
+        }
+        sizes.putAll(listed);
+        evict();
+    }
+
+    private void writeIndex() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(sizes.size() * (KEY_BYTES + 4));
+        DataOutputStream output = new DataOutputStream(bytes);
+        try {
+            for (Map.Entry<String, Integer> entry: sizes.entrySet()) {
+                output.write(unhex(entry.getKey()));
+                output.writeInt(entry.getValue());
+            }
+            writeAtomically(new File(dir, "index"), bytes.toByteArray());
+            reordered = false;
+        } catch (IOException e) {
+            // The next index written has the entries in their order.
+        }
+    }
+
+    private void writeAtomically(File file, byte[] bytes) throws IOException {
+        File temp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                output.write(bytes);
+            } finally {
+                output.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static byte[] version;
+
+    /* A hash of the compiler's classes, so that rebuilding the compiler changes every key. */
+    private static synchronized byte[] compilerVersion() {
+        if (version != null) return version;
+        MessageDigest sha = sha256();
+        try {
+            File classes = new File(CompileCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            hashFiles(sha, classes, "");
+        } catch (Exception e) {
+            // Without knowing the compiler, only this JVM can reuse the results it caches.
+            update(sha, "unknown compiler " + System.nanoTime());
+        }
+        version = sha.digest();
+        return version;
+    }
+
+    private static void hashFiles(MessageDigest sha, File file, String name) throws IOException {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files == null) return;
+            Arrays.sort(files);
+            for (File inner: files) hashFiles(sha, inner, name + "/" + inner.getName());
+            return;
+        }
+        if (!name.isEmpty() && !name.endsWith(".class")) return;
+        update(sha, name + "\n");
+        sha.update(Files.readAllBytes(file.toPath()));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every Java platform supports SHA-256", e);
+        }
+    }
+
+    private static void update(MessageDigest sha, String text) {
+        try {
+            sha.update(text.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = input.read(); c != '\n'; c = input.read()) {
+            if (c < 0) throw new IOException("Truncated entry");
+            line.append((char)c);
+        }
+        return line.toString();
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b: bytes) hex.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        return hex.toString();
+    }
+
+    private static byte[] unhex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte)Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+}
@@ -0,0 +1,121 @@
+package util;
+
+/**
+ * The identifiers of a compilation, each interned once and numbered densely from 0.
+ *
+ * The Tokeniser interns every identifier it lexes, so each name is only ever held by one String,
+ * and the AST nodes naming a symbol keep its number, by which the symbol tables are keyed.
+ *
+ * Each compilation has identifiers of its own, those of the thread running it, see use(), so the compilations
+ * of Batch and Daemon neither share nor keep each other's. Threads not running one, e.g. Main's, share a table.
+ * The threads of one compilation look identifiers up without locking, only adding one takes a lock.
+ */
+public class Identifiers {
+
+    private static final Identifiers shared = new Identifiers();
+    private static final ThreadLocal<Identifiers> current = new ThreadLocal<Identifiers>();
+
+    /* The names and the hash table over them, replaced together as they grow. */
+    private static class Table {
+        final String[] names;   // by number
+        final int[]    slots;   // open addressing, number + 1, 0 when empty, at most half full
+
+        Table(int capacity) {
+            names = new String[capacity];
+            slots = new int[2 * capacity];
+        }
+    }
+
+    private volatile Table table = new Table(256);
+    // Written last when a name is added, so a reader seeing a number below it also sees the name.
+    private volatile int count = 0;
+
+    /* The identifiers of the compilation this thread runs. */
+    public static Identifiers current() {
+        Identifiers identifiers = current.get();
+        return identifiers != null ? identifiers : shared;
+    }
+
+    /*
+     * Makes identifiers those of the compilation this thread runs, null for the shared ones,
+     * and returns the ones it had, for the thread to go back to.
+     */
+    public static Identifiers use(Identifiers identifiers) {
+        Identifiers previous = current.get();
+        current.set(identifiers);
+        return previous;
+    }
+
+    /* The number of the identifier held in chars. */
+    public int intern(CharSequence chars) {
+        int id = find(chars);
+        return id >= 0 ? id : add(chars);
+    }
+
+    /* The String interned as number id. */
+    public String name(int id) {
+        if (id < count) return table.names[id];
+        synchronized (this) {
+            return table.names[id];
+        }
+    }
+
+    /* The number of identifiers interned so far; every number is below it. */
+    public int count() {
+        return count;
+    }
+
+    /* The number of the identifier held in chars, or -1 if it is not seen interned, e.g. while it is being added. */
+    private int find(CharSequence chars) {
+        Table t = table;
+        int mask = t.slots.length - 1;
+        for (int slot = hash(chars) & mask; ; slot = (slot + 1) & mask) {
+            int id = t.slots[slot] - 1;
+            if (id < 0 || id >= count) return -1;
+            if (matches(t.names[id], chars)) return id;
+        }
+    }
+
+    private synchronized int add(CharSequence chars) {
+        int id = find(chars);
+        if (id >= 0) return id;
+        Table t = table;
+        if (count == t.names.length) t = table = grown(t);
+        String name = chars.toString();
+        int mask = t.slots.length - 1;
+        int slot = hash(name) & mask;
+        while (t.slots[slot] != 0) slot = (slot + 1) & mask;
+        t.names[count] = name;
+        t.slots[slot] = count + 1;
+        count++;
+        return count - 1;
+    }
+
+    private Table grown(Table t) {
+        Table grown = new Table(2 * t.names.length);
+        System.arraycopy(t.names, 0, grown.names, 0, count);
+        int mask = grown.slots.length - 1;
+        for (int id = 0; id < count; id++) {
+            int slot = hash(grown.names[id]) & mask;
+            while (grown.slots[slot] != 0) slot = (slot + 1) & mask;
+            grown.slots[slot] = id + 1;
+        }
+        return grown;
+    }
+
+    /* Same as String.hashCode(), which Strings cache, but for any CharSequence. */
+    private static int hash(CharSequence chars) {
+        if (chars instanceof String) return chars.hashCode();
+        int h = 0;
+        for (int i = 0; i < chars.length(); i++) h = 31 * h + chars.charAt(i);
+        return h;
+    }
+
+    private static boolean matches(String name, CharSequence chars) {
+        if (name == chars) return true;
+        if (name.length() != chars.length()) return false;
+        for (int i = 0; i < name.length(); i++)
+            if (name.charAt(i) != chars.charAt(i)) return false;
+        return true;
+    }
+}
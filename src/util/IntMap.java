@@ -0,0 +1,72 @@
+package util;
+
+/**
+ * A map from non negative ints, e.g. identifier numbers, to values, without boxing the keys.
+ * Open addressing with linear probing; null values are not supported.
+ */
+public class IntMap<V> {
+
+    private int[]    keys;      // key + 1, 0 when empty
+    private Object[] values;
+    private int      size = 0;
+
+    public IntMap() {
+        this(8);
+    }
+
+    /* capacity must be a power of two. */
+    public IntMap(int capacity) {
+        keys   = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int mask = keys.length - 1;
+        for (int slot = mix(key) & mask; keys[slot] != 0; slot = (slot + 1) & mask)
+            if (keys[slot] == key + 1) return (V)values[slot];
+        return null;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    public void put(int key, V value) {
+        int mask = keys.length - 1;
+        int slot = mix(key) & mask;
+        while (keys[slot] != 0 && keys[slot] != key + 1) slot = (slot + 1) & mask;
+        if (keys[slot] == 0) {
+            keys[slot] = key + 1;
+            size++;
+        }
+        values[slot] = value;
+        // Keep the table at most half full.
+        if (2 * size > keys.length) grow();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void grow() {
+        int[]    oldKeys   = keys;
+        Object[] oldValues = values;
+        keys   = new int[2 * oldKeys.length];
+        values = new Object[2 * oldKeys.length];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) continue;
+            int slot = mix(oldKeys[i] - 1) & mask;
+            while (keys[slot] != 0) slot = (slot + 1) & mask;
+            keys[slot]   = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    /* Spreads consecutive keys over the table. */
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,50 @@
+package util;
+
+/**
+ * Compiler wide options.
+ *
+ * Main's command line is fixed, so options are read from system properties, e.g.
+ *   java -Dminic.O=2 -Dminic.profile=prog.prof -cp bin Main -gen prog.c prog.s
+ */
+public class Options {
+
+    // Optimisation level: 0 disables all optimisations, 1 enables the cheap ones, 2 enables everything.
+    public static int optLevel = Integer.getInteger("minic.O", 1);
+
+    // Number of copies of the body in a partially unrolled loop, 1 to disable partial unrolling.
+    public static int unroll = Integer.getInteger("minic.unroll", optLevel >= 2 ? 4 : 1);
+
+    // Register allocator: "stack" hands out registers while generating each expression, "graph" colours
+    // the interference graph of each function once it is generated, see gen.GraphColouring.
+    public static String regAlloc = System.getProperty("minic.regalloc", optLevel >= 2 ? "graph" : "stack");
+
+    // Semantic analysis: "fused" resolves names, checks types and sizes variables in one traversal, see
+    // sem.FusedSemanticVisitor, "parallel" does the same with function bodies analysed in parallel, see
+    // sem.ParallelSemanticAnalyzer, "staged" runs a visitor for each.
+    public static String semantic = System.getProperty("minic.sem", "fused");
+
+    // Tokens the parser reads: "tokeniser" lexes each as the parser reaches it, "stream" lexes the whole source
+    // first, into a lexer.TokenStream, so reports the lexing errors of all of it before any parsing error.
+    public static String tokens = System.getProperty("minic.tokens", "tokeniser");
+
+    // Number of threads generating functions, see gen.CodeGenerator.generateFunctions().
+    public static int jobs = Integer.getInteger("minic.jobs", Runtime.getRuntime().availableProcessors());
+
+    // Directory caching compilation results for Batch and Daemon, see CompileCache, or null for none,
+    // and the bytes it may hold.
+    public static String cache = System.getProperty("minic.cache");
+    public static long cacheSize = Long.getLong("minic.cache.size", 64L << 20);
+
+    // Execution profile used to steer code generation, or null if there is none.
+    public static String profile = System.getProperty("minic.profile");
+
+    /*
+     * The options that can change what a compilation prints or generates, e.g. to key the results CompileCache
+     * keeps. An option added above must be added here unless it changes neither, as jobs and the cache ones.
+     */
+    public static String fingerprint() {
+        return "O" + optLevel + " unroll=" + unroll + " regalloc=" + regAlloc + " sem=" + semantic
+                + " tokens=" + tokens + " profile=" + profile;
+    }
+
+}
@@ -0,0 +1,84 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * An execution profile, recording how often each block and call site was executed.
+ *
+ * The profile is a text file with one record per line:
+ *   <function> entry <count>        number of times the function was entered
+ *   <function> <line:col> <count>   number of times the statement or call site at line:col was executed
+ * Blank lines and lines starting with '#' are ignored.
+ * Positions are those reported by the Tokeniser, i.e. the ones found on Stmt.position and FunCallExpr.position.
+ */
+public class Profile {
+
+    public static final long UNKNOWN = -1;
+
+    private final HashMap<String, Long> counts = new HashMap<String, Long>();
+    private long maxCount = 0;
+
+    public Profile(File source) throws IOException {
+        BufferedReader input = new BufferedReader(new FileReader(source));
+        try {
+            String line;
+            int lineNum = 0;
+            while ((line = input.readLine()) != null) {
+                lineNum++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split("\\s+");
+                if (fields.length != 3)
+                    throw new IOException("Malformed profile record at line " + lineNum + ": " + line);
+                long count;
+                try {
+                    count = Long.parseLong(fields[2]);
+                } catch (NumberFormatException nfe) {
+                    throw new IOException("Malformed profile count at line " + lineNum + ": " + fields[2]);
+                }
+                counts.put(fields[0] + " " + fields[1], count);
+                if (count > maxCount) maxCount = count;
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /* Loads the profile named by Options.profile, or returns null if there is none. */
+    public static Profile load() {
+        if (Options.profile == null) return null;
+        try {
+            return new Profile(new File(Options.profile));
+        } catch (IOException ioe) {
+            System.out.println("Ignoring profile " + Options.profile + ": " + ioe.getMessage());
+            return null;
+        }
+    }
+
+    /* Number of times the function was entered, or UNKNOWN. */
+    public long entryCount(String function) {
+        Long count = counts.get(function + " entry");
+        return count == null ? UNKNOWN : count;
+    }
+
+    /* Number of times the statement/call site at pos inside function was executed, or UNKNOWN. */
+    public long count(String function, Position pos) {
+        if (pos == null) return UNKNOWN;
+        Long count = counts.get(function + " " + pos);
+        return count == null ? UNKNOWN : count;
+    }
+
+    /* A count is hot if it is within an order of magnitude of the hottest record in the profile. */
+    public boolean isHot(long count) {
+        return count > 0 && count * 10 >= maxCount;
+    }
+
+    /* A count is cold if the code was never executed. */
+    public boolean isCold(long count) {
+        return count == 0;
+    }
+}
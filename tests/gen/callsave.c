@@ -0,0 +1,14 @@
+// The result of the first call must survive the second one.
+int f0(int p0, int p1) {
+    int c0;
+    c0 = 2;
+    return p0 + p1 * 10 + c0 * 100;
+}
+
+void main() {
+    int x0;
+    int x1;
+    x0 = 3;
+    x1 = 4;
+    print_i(f0(x0, x1) + f0(x1, x0) * 1000);
+}
@@ -0,0 +1,16 @@
+// x + 1 overflows, but only in a branch that never runs, so it must not be hoisted out of the loop.
+void main() {
+    int x;
+    int i;
+    int s;
+    x = 2147483647;
+    i = 0;
+    s = 0;
+    while (i < 3) {
+        if (x < 100) {
+            s = s + (x + 1);
+        }
+        i = i + 1;
+    }
+    print_i(s);
+}
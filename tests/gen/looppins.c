@@ -0,0 +1,40 @@
+// Three nested loops keep array and global addresses in registers, the innermost body still needs enough left over.
+int g0;
+int g1;
+int ga[10];
+int gb[10];
+int gc[10];
+int gl[10];
+
+void main() {
+    int x0;
+    int x1;
+    int c0;
+    int i0;
+    int i1;
+    int i2;
+    x0 = 2;
+    x1 = 23;
+    c0 = 37;
+    i0 = 0;
+    while (i0 < 10) { ga[i0] = i0; gb[i0] = i0 * 2; gc[i0] = 3; gl[i0] = i0 + 1; i0 = i0 + 1; }
+    i0 = 0;
+    while (i0 < 3) {
+        i1 = 0;
+        while (i1 < 3) {
+            i2 = 0;
+            while (i2 < 3) {
+                g0 = (88 < (((x0 + gl[3]) < ((gl[2]) % 100)) * x0)) % 10007;
+                if (((gc[8] - i0) % 100)) {
+                    ga[2] = ((g1 % 7) < x1) % 10007;
+                }
+                x1 = (((gb[6] - c0) >= gl[1]) <= ((gc[1] > gb[3]) <= (71 % 7))) % 10007;
+                i2 = i2 + 1;
+            }
+            gl[5] = ((ga[1] > c0) + (c0 >= gc[0])) % 10007;
+            i1 = i1 + 1;
+        }
+        i0 = i0 + 1;
+    }
+    print_i(g0); print_c(' '); print_i(ga[2]); print_c(' '); print_i(x1); print_c(' '); print_i(gl[5]);
+}
@@ -0,0 +1,18 @@
+// A partially unrolled loop whose bound is so close to the smallest int that n - 3 overflows.
+int count(int n) {
+    int i;
+    int s;
+    i = 0;
+    s = 0;
+    while (i < n) {
+        s = s + 1;
+        i = i + 1;
+    }
+    return s;
+}
+
+void main() {
+    print_i(count(0 - 2147483647)); print_c(' ');
+    print_i(count(10)); print_c(' ');
+    print_i(count(2));
+}
@@ -0,0 +1,30 @@
+// An If whose condition is a value its branch assigns, the register of the condition being held across the branch.
+int g0;
+int g1;
+int ga[10];
+
+void main() {
+    int x0;
+    int x1;
+    int c0;
+    int i0;
+    x0 = 33;
+    x1 = 27;
+    c0 = 17;
+    i0 = 0;
+    while (i0 < 10) { ga[i0] = i0; i0 = i0 + 1; }
+    c0 = g1 % 10007;
+    i0 = 0;
+    while (i0 < 2) {
+        g0 = 87 % 10007;
+        if (g1) {
+            x1 = ((((x1)%7))%10007) % 10007;
+            if (((x1 <= g1) >= g1)) {
+                g1 = (g1 < (((c0 * 94) < (70 + g1)) == ((x0)%10007))) % 10007;
+            }
+        }
+        ga[2] = ((i0 - g0) * (g0 > g0)) % 10007;
+        i0 = i0 + 1;
+    }
+    print_i(g0);
+}
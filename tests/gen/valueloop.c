@@ -0,0 +1,27 @@
+// Values found before the loop and read in it, with a loop body needing most of the registers.
+void main() {
+    int a;
+    int b;
+    int c;
+    int d;
+    int e;
+    int f;
+    int i;
+    int t;
+    int u;
+    int y0;
+    int y1;
+    int y2;
+    int y3;
+    a = 1; b = 2; c = 3; d = 4; e = 5; f = 6;
+    y0 = 7; y1 = 8; y2 = 9; y3 = 10;
+    t = a + b + c + d + e + f;
+    i = 0;
+    u = 0;
+    while (i < 2) {
+        u = u + a + b + c + d + e + f;
+        u = u + (y2 - (y1 - (y0 - (y3 - (y2 - (y1 - y0))))));
+        i = i + 1;
+    }
+    print_i(t); print_c(' '); print_i(u);
+}
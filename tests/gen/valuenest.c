@@ -0,0 +1,116 @@
+// Loops nested in Ifs deep enough that registers run out while forgotten values wait to be released.
+int g0;
+int g1;
+int ga[10];
+
+void main() {
+    int x0;
+    int x1;
+    int c0;
+    int i0;
+    int i1;
+    int i2;
+
+    x0 = 13;
+    x1 = 31;
+    c0 = 26;
+    i0 = 0;
+    while (i0 < 10) { ga[i0] = i0; i0 = i0 + 1; }
+    i0 = 0;
+    while (i0 < 2) {
+        if (((96 > 4) > (g1 <= i0))) {
+            g0 = (g0 > g1) % 10007;
+            i1 = 0;
+            while (i1 < 2) {
+                g1 = 61 % 10007;
+                ga[9] = g0 % 10007;
+                i1 = i1 + 1;
+            }
+        }
+        i0 = i0 + 1;
+    }
+    if (((g1 - x1) <= (c0 == ga[0]))) {
+        if (((x0 * x1) + (g1 + x1))) {
+            i0 = 0;
+            while (i0 < 3) {
+                g1 = (((i0 <= g0) <= (ga[8] + c0)) < 70) % 10007;
+                g1 = ((ga[9] < x1) + (g1 * x0)) % 10007;
+                i1 = 0;
+                while (i1 < 2) {
+                    i2 = 0;
+                    while (i2 < 1) {
+                        if ((((g0 - g1))%100)) {
+                            if (((i0 * g0) <= (g0 <= i1))) {
+                                g1 = (((g1 * (i2 >= g1)) < g0) < (((g0 * i0) * i2) > ((g1 >= ga[0]) < (i2 - 48)))) % 10007;
+                                if (g0) {
+                                    if ((((c0)%10007) + (g1 + g0))) {
+                                        g0 = (((14)%10007) + (x1 <= ga[6])) % 10007;
+                                    }
+                                }
+                                g0 = (g0 <= i1) % 10007;
+                            }
+                            if ((((16)%10007) - (15 - i0))) {
+                                g0 = ((ga[1] * 91) > 88) % 10007;
+                                if (((48 >= g0) == (g1 - 45))) {
+                                    c0 = (((g1 >= 47) >= (i0 - ga[1])) <= ((i0 == g1) - ((g0)%7))) % 10007;
+                                }
+                                x1 = g1 % 10007;
+                            }
+                        }
+                        if (((63 >= g0) == ((c0)%10007))) {
+                            if ((x1 < g0)) {
+                                if ((61 + ga[2])) {
+                                    g1 = ((ga[3])%10007) % 10007;
+                                }
+                                if ((ga[2] >= 66)) {
+                                    x1 = (((45 < (x1 < x0)))%100) % 10007;
+                                    if (((ga[1] < ga[9]) + ((g0)%7))) {
+                                        c0 = (((x1 >= c0) < (g0 == 55)) >= (((g1 - c0))%10007)) % 10007;
+                                        if ((c0 > (c0 < i1))) {
+                                            g0 = (x1 > ((g1 == 16) - (x1 <= g1))) % 10007;
+                                        }
+                                    }
+                                    g0 = (g0 == (i1 < ((i0 + g0) - ((17)%7)))) % 10007;
+                                }
+                                if ((((g0)%7) < (g1 == ga[5]))) {
+                                    if (((i2 <= 52) < i1)) {
+                                        ga[3] = i1 % 10007;
+                                        ga[7] = ((c0 >= ga[1]) > (i1 - g0)) % 10007;
+                                    }
+                                    if (((ga[2] == g0) <= (x1 == i2))) {
+                                        g1 = (g1 * (ga[2] >= x0)) % 10007;
+                                    }
+                                }
+                            }
+                            x1 = (g1 == i2) % 10007;
+                            g1 = g1 % 10007;
+                        }
+                        i2 = i2 + 1;
+                    }
+                    i2 = 0;
+                    while (i2 < 2) {
+                        if ((g1 < (-9 < g0))) {
+                            g1 = g1 % 10007;
+                        }
+                        if (ga[3]) {
+                            if ((((g1 - 3))%7)) {
+                                c0 = (g0 > (g0 <= 42)) % 10007;
+                            }
+                            c0 = ga[9] % 10007;
+                        }
+                        i2 = i2 + 1;
+                    }
+                    i1 = i1 + 1;
+                }
+                i0 = i0 + 1;
+            }
+        }
+        ga[5] = ((((x0)%10007))%7) % 10007;
+    }
+    i0 = 0;
+    while (i0 < 3) {
+        ga[5] = ((((g0 == g0) * (ga[5] + i0)) <= x1) == (g1 + ((x1 <= x1) >= (60 <= 13)))) % 10007;
+        i0 = i0 + 1;
+    }
+    print_i(g0); print_c(' '); print_i(g1); print_c(' '); print_i(ga[3]); print_c(' '); print_i(ga[4]); print_c(' '); print_i(ga[7]); print_c(' '); print_i(x0);
+}
@@ -0,0 +1,19 @@
+// The values kept from the earlier statements leave too few registers for the last one, unless some are given up.
+void main() {
+    int a;
+    int b;
+    int c;
+    int d;
+    int e;
+    int f;
+    int t;
+    int y0;
+    int y1;
+    int y2;
+    int y3;
+    a = 1; b = 2; c = 3; d = 4; e = 5; f = 6;
+    y0 = 7; y1 = 8; y2 = 9; y3 = 10;
+    t = a + b + c + d + e + f;
+    t = t + (y2 - (y1 - (y0 - (y3 - (y2 - (y1 - y0))))));
+    print_i(t); print_c(' '); print_i(a + b + c + d + e + f);
+}
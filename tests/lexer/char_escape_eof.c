@@ -0,0 +1,2 @@
+char c;
+c = '\
\ No newline at end of file
@@ -0,0 +1,5 @@
+int w;
+wh ifx;
+w 
+while
+int w
\ No newline at end of file
@@ -0,0 +1,4 @@
+/* U+FFFF, the char Scanner.EOF, within a source: ￿ and the comment goes on */
+int c;
+// ￿ and the line comment goes on
+int d;
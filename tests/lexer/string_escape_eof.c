@@ -0,0 +1,2 @@
+char* s;
+s = "abc\
\ No newline at end of file
@@ -0,0 +1,4 @@
+#include "header_error.h"
+
+void main() {
+}
@@ -0,0 +1,3 @@
+// Included by header_error.c, whose errors name this header.
+int f(int a)
+int $;